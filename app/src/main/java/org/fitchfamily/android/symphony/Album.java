@@ -36,11 +36,11 @@ public class Album {
 
     private static final String TAG = "Symphony:Album";
 
-    private Album(long albumId,
-                  String albumTitle,
-                  long imageID,
-                  int startTrack,
-                  int endTrack) {
+    Album(long albumId,
+          String albumTitle,
+          long imageID,
+          int startTrack,
+          int endTrack) {
 //       Log.d(TAG,"Album() entry.");
         id = albumId;
         title = albumTitle;
@@ -65,9 +65,17 @@ public class Album {
         return lastTrackIndex;
     }
 
-    public static ArrayList<Album> getAlbumIndexes(ArrayList<Song> songs) {
+    public static ArrayList<Album> getAlbumIndexes(SongTable songs) {
+        return getAlbumIndexes(songs, null);
+    }
+
+    // If trackToAlbum is not null it must have a slot for each song, which is set to
+    // the index of the song's album in the returned list.
+    public static ArrayList<Album> getAlbumIndexes(SongTable songs, int[] trackToAlbum) {
         Log.d(TAG, "getAlbumIndexes() entry.");
         ArrayList<Album> rslt = new ArrayList<>();
+        if (songs.isEmpty())
+            return rslt;
 
         long curAlbumId = 0;
         int albumStartTrack = -1;
@@ -76,24 +84,25 @@ public class Album {
         long imageID = 0;
 
         for (int i = 0; i < songs.size(); i++) {
-            Song s = songs.get(i);
-            long nextAlbumId = s.getAlbumId();
+            long nextAlbumId = songs.getAlbumId(i);
             if (i==0) {
                 curAlbumId = nextAlbumId;
                 albumStartTrack = i;
                 albumEndTrack = i;
-                albumTitle = s.getAlbum();
-                imageID = s.getId();
+                albumTitle = songs.getAlbum(i);
+                imageID = songs.getId(i);
             } else if (nextAlbumId != curAlbumId) {
                 rslt.add(new Album(curAlbumId, albumTitle, imageID, albumStartTrack, albumEndTrack));
                 curAlbumId = nextAlbumId;
                 albumStartTrack = i;
                 albumEndTrack = i;
-                albumTitle = s.getAlbum();
-                imageID = s.getId();
+                albumTitle = songs.getAlbum(i);
+                imageID = songs.getId(i);
             } else {
                 albumEndTrack = i;
             }
+            if (trackToAlbum != null)
+                trackToAlbum[i] = rslt.size();
         }
         rslt.add(new Album(curAlbumId, albumTitle, imageID, albumStartTrack, albumEndTrack));
         return rslt;
@@ -0,0 +1,79 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.fitchfamily.android.symphony;
+
+//
+// Albums in the order given by a ShuffleOrder over the albums, the tracks of each
+// album in list order. Going back from the first track of an album gives the last
+// track of the album before it.
+//
+public class AlbumShuffleOrder implements PlayOrderEngine {
+    private final ShuffleOrder albumOrder;
+    private final int[] trackToAlbum;       // Album of each track
+    private final int[] firstTrack;         // First track of each album
+    private final int[] lastTrack;          // Last track of each album
+
+    // The arrays are kept, not copied, and must not be changed.
+    public AlbumShuffleOrder(ShuffleOrder albumOrder, int[] trackToAlbum,
+                             int[] firstTrack, int[] lastTrack) {
+        this.albumOrder = albumOrder;
+        this.trackToAlbum = trackToAlbum;
+        this.firstTrack = firstTrack;
+        this.lastTrack = lastTrack;
+    }
+
+    @Override
+    public int size() {
+        return trackToAlbum.length;
+    }
+
+    @Override
+    public int next(int track) {
+        int albums = albumOrder.size();
+        if ((albums == 0) || (trackToAlbum.length == 0))
+            return 0;
+        if ((track < 0) || (track >= trackToAlbum.length))
+            return firstTrack[albumOrder.trackAt(0)];
+        int album = trackToAlbum[track];
+        if (track < lastTrack[album])
+            return track + 1;
+        int pos = albumOrder.positionOf(album) + 1;
+        if (pos >= albums)
+            pos = 0;
+        return firstTrack[albumOrder.trackAt(pos)];
+    }
+
+    @Override
+    public int previous(int track) {
+        int albums = albumOrder.size();
+        if ((albums == 0) || (trackToAlbum.length == 0))
+            return 0;
+        if ((track < 0) || (track >= trackToAlbum.length))
+            return lastTrack[albumOrder.trackAt(albums - 1)];
+        int album = trackToAlbum[track];
+        if (track > firstTrack[album])
+            return track - 1;
+        int pos = albumOrder.positionOf(album) - 1;
+        if (pos < 0)
+            pos = albums - 1;
+        return lastTrack[albumOrder.trackAt(pos)];
+    }
+}
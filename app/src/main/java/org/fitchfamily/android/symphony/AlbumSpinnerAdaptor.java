@@ -30,7 +30,7 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -42,7 +42,7 @@ public class AlbumSpinnerAdaptor extends ArrayAdapter {
         super(context, resource);
     }
 
-    private ArrayList<Album> mAlbums;
+    private List<Album> mAlbums;
     private Context mContext;
     private ImageLoader mImageLoader;
 
@@ -51,13 +51,18 @@ public class AlbumSpinnerAdaptor extends ArrayAdapter {
         TextView mName;
     }
 
-    public AlbumSpinnerAdaptor(@NonNull Context context, ArrayList<Album> albums, ImageLoader loader) {
+    public AlbumSpinnerAdaptor(@NonNull Context context, PlaylistSnapshot playlist, ImageLoader loader) {
         super(context, R.layout.album_spinner_row);
-        this.mAlbums = albums;
+        this.mAlbums = playlist.getAlbums();
         this.mContext = context;
         this.mImageLoader = loader;
     }
 
+    public void setPlaylist(PlaylistSnapshot playlist) {
+        mAlbums = playlist.getAlbums();
+        notifyDataSetChanged();
+    }
+
     @Override
     public int getCount() {
         return mAlbums.size();
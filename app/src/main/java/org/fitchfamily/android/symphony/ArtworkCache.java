@@ -0,0 +1,174 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. The media session shows the artwork of the playing track. Getting it means opening the
+ *    file with a MediaMetadataRetriever and decoding the embedded picture, which can be a
+ *    large JPEG. Done when a track starts, that held up the playback thread just as the next
+ *    track needed preparing.
+ * 2. So artwork is only ever decoded here, on a thread of our own, and the result is passed
+ *    back through a Handler. The service publishes the track's text straight away and the
+ *    artwork when it arrives.
+ * 3. Pictures are decoded at a reduced size (the session and lock screen never show them
+ *    large) and the last few are kept in an LruCache. Tracks with no artwork are remembered
+ *    too and get the app icon, so neither kind is looked at twice while it is in the cache.
+ * 4. The service asks for the on deck track's artwork when it is prepared, so normally the
+ *    artwork is already in the cache when that track starts.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ArtworkCache {
+    private static final String TAG = "Symphony:ArtworkCache";
+    private static final int MAX_SIZE = 512;            // Pixels, decode no larger than about this
+    private static final int CACHE_KB = 4 * 1024;
+
+    public interface Listener {
+        // Called through the Handler given to the cache.
+        void onArtwork(long songId, Bitmap artwork);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor();
+    private final LruCache<Long, Bitmap> mCache;
+    private final LruCache<Long, Boolean> mNoArtwork = new LruCache<>(200);
+    private final HashSet<Long> mLoading = new HashSet<>();     // Under mLoading
+    private volatile Bitmap mDefault;
+
+    public ArtworkCache(Context context, Handler handler) {
+        mContext = context.getApplicationContext();
+        mHandler = handler;
+        mCache = new LruCache<Long, Bitmap>(CACHE_KB) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount() / 1024;
+            }
+        };
+    }
+
+    // The artwork if we already have it, otherwise null. Never waits.
+    public Bitmap get(long songId) {
+        Bitmap rslt = mCache.get(songId);
+        if ((rslt == null) && (mNoArtwork.get(songId) != null))
+            rslt = mDefault;
+        return rslt;
+    }
+
+    //
+    // Get the artwork in the background. The listener (if any) is given it, or
+    // the app icon if the track has none. Nothing is done if it is cached.
+    //
+    public void load(final long songId, final Listener listener) {
+        if (get(songId) != null)
+            return;
+        synchronized (mLoading) {
+            if (!mLoading.add(songId) && (listener == null))
+                return;
+        }
+        mLoader.execute(() -> {
+            Bitmap artwork = get(songId);
+            if (artwork == null) {
+                artwork = decode(songId);
+                if (artwork != null) {
+                    mCache.put(songId, artwork);
+                } else {
+                    mNoArtwork.put(songId, true);
+                    artwork = getDefault();
+                }
+            }
+            synchronized (mLoading) {
+                mLoading.remove(songId);
+            }
+            if (listener != null) {
+                final Bitmap rslt = artwork;
+                mHandler.post(() -> listener.onArtwork(songId, rslt));
+            }
+        });
+    }
+
+    public void release() {
+        mLoader.shutdownNow();
+        mCache.evictAll();
+    }
+
+    private Bitmap decode(long songId) {
+        long startTime = System.currentTimeMillis();
+        Uri trackUri = ContentUris.withAppendedId(
+                android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, songId);
+        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        byte[] data;
+        try {
+            mmr.setDataSource(mContext, trackUri);
+            data = mmr.getEmbeddedPicture();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "decode(" + songId + ") Error getting album artwork", e);
+            return null;
+        } finally {
+            mmr.release();
+        }
+        if (data == null)
+            return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int sample = 1;
+        while ((options.outWidth / (sample * 2) >= MAX_SIZE) && (options.outHeight / (sample * 2) >= MAX_SIZE))
+            sample *= 2;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        Bitmap rslt = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        Log.d(TAG, "decode(" + songId + ") " + options.outWidth + "x" + options.outHeight +
+                " in " + (System.currentTimeMillis() - startTime) + "ms.");
+        return rslt;
+    }
+
+    private Bitmap getDefault() {
+        if (mDefault == null) {
+            Drawable drawable = mContext.getDrawable(R.drawable.ic_launcher_icon);
+            if (drawable != null) {
+                Bitmap icon = Bitmap.createBitmap(drawable.getIntrinsicWidth(),
+                        drawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(icon);
+                drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+                drawable.draw(canvas);
+                mDefault = icon;
+            }
+        }
+        return mDefault;
+    }
+}
@@ -0,0 +1,712 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. MP3 and AAC encoders add silence before (delay) and after (padding) the music. The
+ *    track's header says how much and MediaPlayer plays it anyway, so tracks that should
+ *    run into each other have a tiny gap. This engine decodes the tracks with MediaCodec,
+ *    drops the delay and padding, and plays the result through one AudioTrack, so the first
+ *    sample of a track follows the last sample of the one before.
+ * 2. Playing from a track is a "pipeline" with two threads joined by a PcmRing:
+ *      - The decoding thread decodes the track from its position into the ring. At the end
+ *        of the track it carries straight on with the track's next player, if it has one.
+ *        If not it waits for one to be set until everything decoded has been played.
+ *      - The output thread moves PCM from the ring to the AudioTrack and follows the
+ *        playback head. It keeps each track's position up to date, and as the head passes
+ *        into the next track it marks that track playing and the last one complete, with
+ *        the time the head passed the boundary worked out from how far past it it is.
+ *    The decoder marks where each track starts in the ring (with its sample rate, channels
+ *    and position). The output thread turns that into where it starts in the AudioTrack.
+ *    A track at a different sample rate needs a new AudioTrack, which waits for the old
+ *    one to finish playing, so only tracks that share a format are gapless.
+ * 3. Anything that makes what is in the ring wrong (a seek, starting another track, taking
+ *    away a next player the decoder has already moved on to) throws the pipeline away and
+ *    starts a new one from the right place. Skips and seeks are rare next to playing, so
+ *    that is simpler than editing the ring.
+ * 4. Trimming: the decoder throws away frames before the delay (or before the position it
+ *    started from) and always holds back the last "padding" frames it has decoded. When the
+ *    track ends those are dropped.
+ * 5. Locking. Engine state, and the position, playing flag and next player of each track,
+ *    are under the engine's lock. The output thread holds mTrackLock for as long as it uses
+ *    the AudioTrack, so a new pipeline's output waits for the old one to let go. Each
+ *    track's decoder is used under its codecLock. Nothing waits for mTrackLock or a
+ *    codecLock while holding the engine's lock.
+ * 6. Neither thread polls. The output thread writes to the AudioTrack with blocking writes,
+ *    a few milliseconds of audio at a time so a pause or cancel is soon seen. With nothing
+ *    to write, or while paused, it waits on the engine's lock. Anything that gives it work
+ *    notifies that lock: the ring being written to, the decoder marking a track, start(),
+ *    pause(), setNext() and cancelling the pipeline. While the AudioTrack still has audio to
+ *    play the wait is timed to when the head will get to the next thing to follow (a track
+ *    boundary or the end of what it was given). The decoder waits on the same lock for a
+ *    next track, and is notified when one is set or prepared and when all has been played.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CodecEngine implements PlaybackEngine {
+    private static final String TAG = "Symphony:CodecEngine";
+
+    private static final int RING_BYTES = 512 * 1024;     // About 3 seconds of 44.1kHz stereo
+    private static final int CHUNK_BYTES = 16 * 1024;     // Taken from the ring at a time
+    private static final int WRITE_BYTES = 4 * 1024;      // Given to the AudioTrack at a time
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    private final ExecutorService mPreparer = Executors.newSingleThreadExecutor();
+    private final PowerManager.WakeLock mWakeLock;
+    private final Object mTrackLock = new Object();
+    private AudioTrack mTrack;                      // Under mTrackLock
+    private int mTrackRate;
+    private int mTrackChannels;
+    private Pipeline mPipeline;                     // Under this, null when nothing is playing
+
+    public CodecEngine(Context context) {
+        PowerManager pm = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public TrackPlayer newPlayer(TrackPlayer.Listener listener) {
+        Looper looper = Looper.myLooper();
+        return new CodecTrackPlayer(this, listener,
+                new Handler((looper != null) ? looper : Looper.getMainLooper()));
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            stopPipeline();
+        }
+        mPreparer.shutdownNow();
+        synchronized (mTrackLock) {
+            if (mTrack != null)
+                mTrack.release();
+            mTrack = null;
+        }
+        mWakeLock.release();
+    }
+
+    void prepare(Runnable work) {
+        mPreparer.execute(work);
+    }
+
+    //
+    // Player controls, from CodecTrackPlayer.
+    //
+
+    synchronized void start(CodecTrackPlayer p) {
+        Pipeline pl = mPipeline;
+        if ((pl != null) && (pl.audible == p)) {
+            pl.paused = false;
+            p.playing = true;
+            notifyAll();
+            return;
+        }
+        stopPipeline();
+        if ((p.durationMs > 0) && (p.position >= p.durationMs))
+            p.position = 0;
+        begin(p);
+    }
+
+    synchronized void pause(CodecTrackPlayer p) {
+        Pipeline pl = mPipeline;
+        if ((pl != null) && (pl.audible == p))
+            pl.paused = true;
+        p.playing = false;
+        notifyAll();
+    }
+
+    synchronized void seek(CodecTrackPlayer p, int msec) {
+        if (p.durationMs > 0)
+            msec = Math.min(msec, p.durationMs);
+        msec = Math.max(msec, 0);
+        Pipeline pl = mPipeline;
+        if ((pl != null) && (pl.audible == p)) {
+            boolean wasPlaying = p.playing;
+            stopPipeline();
+            p.position = msec;
+            if (wasPlaying)
+                begin(p);
+        } else {
+            p.position = msec;
+            if ((pl != null) && pl.sources.contains(p))
+                restart(pl.audible);
+        }
+    }
+
+    synchronized void setNext(CodecTrackPlayer p, CodecTrackPlayer next) {
+        if (next == p)
+            next = null;
+        if (p.next == next)
+            return;
+        p.next = next;
+        Pipeline pl = mPipeline;
+        if ((pl != null) && pl.queuedAfter(p)) {
+            // The decoder has already moved on to the old next track.
+            restart(pl.audible);
+        }
+        notifyAll();
+    }
+
+    // A player has been prepared, the decoder may be waiting for it.
+    synchronized void prepared(CodecTrackPlayer p) {
+        notifyAll();
+    }
+
+    // A player is being reset or released, stop using it.
+    synchronized void detach(CodecTrackPlayer p) {
+        Pipeline pl = mPipeline;
+        if ((pl != null) && pl.sources.contains(p)) {
+            if (pl.audible == p)
+                stopPipeline();
+            else
+                restart(pl.audible);
+        }
+        p.next = null;
+        p.playing = false;
+    }
+
+    //
+    // Pipelines, under the engine's lock.
+    //
+
+    private void begin(CodecTrackPlayer p) {
+        p.playing = true;
+        mPipeline = new Pipeline(p, p.position);
+        mPipeline.start();
+    }
+
+    // Throw away what has been decoded and carry on from where we are.
+    private void restart(CodecTrackPlayer audible) {
+        boolean wasPlaying = audible.playing;
+        stopPipeline();
+        if (wasPlaying)
+            begin(audible);
+    }
+
+    private void stopPipeline() {
+        Pipeline pl = mPipeline;
+        if (pl == null)
+            return;
+        pl.cancel();
+        if (pl.audible != null)
+            pl.audible.playing = false;
+        mPipeline = null;
+    }
+
+    // Where a track's audio starts, first in the ring and then in the AudioTrack.
+    private static class Segment {
+        final CodecTrackPlayer player;      // null for the end of everything
+        final long ringPos;
+        final int rate;
+        final int channels;
+        final long startFrame;              // Position in the track of its first frame
+        long trackFrame;                    // Set when passed to the AudioTrack
+
+        Segment(CodecTrackPlayer player, long ringPos, int rate, int channels, long startFrame) {
+            this.player = player;
+            this.ringPos = ringPos;
+            this.rate = rate;
+            this.channels = channels;
+            this.startFrame = startFrame;
+        }
+    }
+
+    private class Pipeline {
+        final ArrayList<CodecTrackPlayer> sources = new ArrayList<>();  // Decoded, not yet complete
+        final ConcurrentLinkedQueue<Segment> marks = new ConcurrentLinkedQueue<>();
+        final PcmRing ring = new PcmRing(RING_BYTES, CodecEngine.this);
+        final CodecTrackPlayer first;
+        final int firstPosition;
+        CodecTrackPlayer audible;           // The track being heard
+        volatile boolean cancelled = false;
+        volatile boolean paused = false;
+        volatile long drainedAt = -1;       // Ring position played up to when all was played
+
+        Pipeline(CodecTrackPlayer first, int position) {
+            this.first = first;
+            firstPosition = position;
+            audible = first;
+            sources.add(first);
+        }
+
+        void start() {
+            new Thread(this::decodeAll, "Symphony:Decode").start();
+            new Thread(this::output, "Symphony:Output").start();
+        }
+
+        void cancel() {
+            cancelled = true;
+            ring.close();
+            CodecEngine.this.notifyAll();
+        }
+
+        // The decoder has gone past p to another track.
+        boolean queuedAfter(CodecTrackPlayer p) {
+            int i = sources.indexOf(p);
+            return (i >= 0) && (i < sources.size() - 1);
+        }
+
+        //
+        // Decoding thread
+        //
+
+        private void decodeAll() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            CodecTrackPlayer src = first;
+            int position = firstPosition;
+            while (src != null) {
+                if (!decode(src, position))
+                    return;
+                synchronized (CodecEngine.this) {
+                    src = waitForNext(src);
+                    if (src != null)
+                        position = src.position;
+                }
+            }
+            if (!cancelled)
+                mark(new Segment(null, ring.getWritePosition(), 0, 0, 0));
+        }
+
+        // Tell the output thread where a track starts, or everything ends.
+        private void mark(Segment s) {
+            marks.add(s);
+            synchronized (CodecEngine.this) {
+                CodecEngine.this.notifyAll();
+            }
+        }
+
+        // Under the engine's lock.
+        private CodecTrackPlayer waitForNext(CodecTrackPlayer src) {
+            while (!cancelled) {
+                CodecTrackPlayer n = src.next;
+                if ((n != null) && n.isPrepared()) {
+                    sources.add(n);
+                    return n;
+                }
+                if ((drainedAt == ring.getWritePosition()) && marks.isEmpty())
+                    return null;
+                try {
+                    CodecEngine.this.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        //
+        // Decode one track into the ring from a position. False if cancelled or
+        // the decoder failed.
+        //
+        private boolean decode(CodecTrackPlayer src, int positionMs) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] chunk = new byte[0];
+            int rate;
+            int channels;
+            synchronized (src.codecLock) {
+                if (cancelled || (src.codec == null))
+                    return false;
+                src.extractor.seekTo(positionMs * 1000L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                src.codec.flush();
+                rate = src.sampleRate;
+                channels = src.channels;
+            }
+            Trimmer trimmer = null;
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                int len = 0;
+                long pts = 0;
+                synchronized (src.codecLock) {
+                    if (cancelled || (src.codec == null))
+                        return false;
+                    try {
+                        MediaCodec codec = src.codec;
+                        if (!inputDone) {
+                            int in = codec.dequeueInputBuffer(0);
+                            if (in >= 0) {
+                                ByteBuffer buffer = codec.getInputBuffer(in);
+                                int size = src.extractor.readSampleData(buffer, 0);
+                                if (size < 0) {
+                                    codec.queueInputBuffer(in, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                    inputDone = true;
+                                } else {
+                                    codec.queueInputBuffer(in, 0, size, src.extractor.getSampleTime(), 0);
+                                    src.extractor.advance();
+                                }
+                            }
+                        }
+                        int out = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                        if (out == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            MediaFormat format = codec.getOutputFormat();
+                            rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                            channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                        } else if (out >= 0) {
+                            ByteBuffer buffer = codec.getOutputBuffer(out);
+                            if (chunk.length < info.size)
+                                chunk = new byte[info.size];
+                            buffer.position(info.offset);
+                            buffer.get(chunk, 0, info.size);
+                            len = info.size;
+                            pts = info.presentationTimeUs;
+                            codec.releaseOutputBuffer(out, false);
+                            outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                        }
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "decode() decoder failed", e);
+                        fail(src);
+                        return false;
+                    }
+                }
+
+                if ((len > 0) && (trimmer == null)) {
+                    // The first audio: now we know where in the track we are.
+                    long firstFrame = pts * rate / 1000000L;
+                    long wanted = (long) positionMs * rate / 1000 + src.delayFrames;
+                    long skip = Math.max(0, wanted - firstFrame);
+                    mark(new Segment(src, ring.getWritePosition(), rate, channels,
+                            Math.max(0, firstFrame + skip - src.delayFrames)));
+                    trimmer = new Trimmer(ring, skip, src.paddingFrames, channels * 2);
+                }
+                if ((len > 0) && !trimmer.add(chunk, len))
+                    return false;
+            }
+            if (trimmer == null) {
+                // No audio at all, it still has to start and complete.
+                mark(new Segment(src, ring.getWritePosition(), rate, channels,
+                        (long) positionMs * rate / 1000));
+            }
+            return true;
+        }
+
+        private void fail(CodecTrackPlayer src) {
+            if (src == null)
+                return;
+            synchronized (CodecEngine.this) {
+                if (cancelled)
+                    return;
+                if (mPipeline == this)
+                    stopPipeline();
+            }
+            src.postError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        }
+
+        //
+        // Output thread
+        //
+
+        private void output() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            synchronized (mTrackLock) {
+                try {
+                    play();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "output() failed", e);
+                    CodecTrackPlayer heard;
+                    synchronized (CodecEngine.this) {
+                        heard = audible;
+                    }
+                    fail(heard);
+                } finally {
+                    if (mTrack != null) {
+                        mTrack.pause();
+                        mTrack.flush();
+                    }
+                    mWakeLock.release();
+                }
+            }
+        }
+
+        // Under mTrackLock.
+        private void play() {
+            ArrayList<Segment> started = new ArrayList<>();     // In the AudioTrack, not complete
+            Segment end = null;
+            byte[] chunk = new byte[CHUNK_BYTES];
+            ByteBuffer pending = ByteBuffer.allocateDirect(CHUNK_BYTES);
+            pending.limit(0);
+            long writtenBytes = 0;
+            int frameBytes = 4;
+            long headBase = (mTrack != null) ? head() : 0;
+            float volume = -1;
+
+            while (!cancelled) {
+                boolean wantData = !pending.hasRemaining() && (end == null);
+
+                if (wantData) {
+                    Segment mark = marks.peek();
+                    long readPos = ring.getReadPosition();
+                    if ((mark != null) && (mark.ringPos == readPos)) {
+                        marks.poll();
+                        if ((mark.player != null) && ((mTrack == null) ||
+                                (mark.rate != mTrackRate) || (mark.channels != mTrackChannels))) {
+                            // Different format: let the old track finish, then a new one.
+                            if (!playOut(started, writtenBytes / frameBytes, headBase))
+                                return;
+                            if (!openTrack(mark.rate, mark.channels)) {
+                                fail(mark.player);
+                                return;
+                            }
+                            started.clear();
+                            writtenBytes = 0;
+                            headBase = 0;
+                            volume = -1;
+                        }
+                        mark.trackFrame = writtenBytes / frameBytes;
+                        if (mark.player == null) {
+                            end = mark;
+                        } else {
+                            started.add(mark);
+                            frameBytes = mark.channels * 2;
+                        }
+                        continue;
+                    }
+                    int limit = CHUNK_BYTES - (CHUNK_BYTES % frameBytes);
+                    if (mark != null)
+                        limit = (int) Math.min(limit, mark.ringPos - readPos);
+                    int n = ring.read(chunk, 0, limit);
+                    if (n > 0) {
+                        pending.clear();
+                        pending.put(chunk, 0, n);
+                        pending.flip();
+                    }
+                }
+
+                if (mTrack == null) {
+                    // Nothing decoded yet.
+                    park(0, true);
+                    continue;
+                }
+
+                if (paused) {
+                    if (mTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING)
+                        mTrack.pause();
+                    mWakeLock.release();
+                } else {
+                    if (mTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
+                        mTrack.play();
+                    mWakeLock.acquire();
+                    if (pending.hasRemaining()) {
+                        int n = mTrack.write(pending, Math.min(pending.remaining(), WRITE_BYTES),
+                                AudioTrack.WRITE_BLOCKING);
+                        if (n < 0)
+                            throw new IllegalStateException("AudioTrack write error " + n);
+                        writtenBytes += n;
+                    }
+                }
+
+                long played = head() - headBase;
+                if (!follow(started, end, played))
+                    return;
+                CodecTrackPlayer heard = audible;
+                if ((heard != null) && (heard.volume != volume)) {
+                    volume = heard.volume;
+                    mTrack.setVolume(volume);
+                }
+                long written = writtenBytes / frameBytes;
+                boolean drained = !pending.hasRemaining() && (ring.available() == 0) &&
+                        marks.isEmpty() && (played >= written);
+                setDrainedAt(drained ? ring.getReadPosition() : -1);
+
+                if (paused || !pending.hasRemaining()) {
+                    long toFollow = written - played;
+                    if (started.size() > 1)
+                        toFollow = Math.min(toFollow, started.get(1).trackFrame - played);
+                    park(toFollow, !pending.hasRemaining() && (end == null));
+                }
+            }
+        }
+
+        private void setDrainedAt(long pos) {
+            if (pos == drainedAt)
+                return;
+            synchronized (CodecEngine.this) {
+                drainedAt = pos;
+                CodecEngine.this.notifyAll();       // The decoder may be waiting on it
+            }
+        }
+
+        //
+        // Move the tracks on to where the playback head has got to. False if we
+        // have been cancelled or everything has been played.
+        //
+        private boolean follow(ArrayList<Segment> started, Segment end, long played) {
+            long now = SystemClock.elapsedRealtime();
+            synchronized (CodecEngine.this) {
+                if (cancelled)
+                    return false;
+                while ((started.size() > 1) && (started.get(1).trackFrame <= played))
+                    complete(started.remove(0), heardAt(started.get(0).trackFrame, played, now));
+                if ((end != null) && (end.trackFrame <= played)) {
+                    long at = heardAt(end.trackFrame, played, now);
+                    for (Segment s : started)
+                        complete(s, at);
+                    started.clear();
+                    audible = null;
+                    if (mPipeline == this)
+                        mPipeline = null;
+                    return false;
+                }
+                if (!started.isEmpty()) {
+                    Segment s = started.get(0);
+                    CodecTrackPlayer p = s.player;
+                    if (audible != p) {
+                        audible = p;
+                        p.playing = !paused;
+                    }
+                    long frame = s.startFrame + Math.max(0, played - s.trackFrame);
+                    int ms = (int) (frame * 1000 / s.rate);
+                    p.position = (p.durationMs > 0) ? Math.min(ms, p.durationMs) : ms;
+                }
+                return true;
+            }
+        }
+
+        // Under the engine's lock. at is when the last of the track was heard.
+        private void complete(Segment s, long at) {
+            CodecTrackPlayer p = s.player;
+            sources.remove(p);
+            p.playing = false;
+            p.position = Math.max(p.position, p.durationMs);
+            p.completedAt = at;
+            p.postCompletion();
+        }
+
+        //
+        // When the head passed a frame, from where it was at a time. Only between tracks
+        // of one AudioTrack, so its rate is the AudioTrack's.
+        //
+        private long heardAt(long frame, long played, long now) {
+            return now - Math.max(0, played - frame) * 1000 / mTrackRate;
+        }
+
+        // Wait for everything written to the track to be played.
+        private boolean playOut(ArrayList<Segment> started, long written, long headBase) {
+            while (!cancelled && (mTrack != null)) {
+                if (!paused && (mTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING))
+                    mTrack.play();
+                long played = head() - headBase;
+                long now = SystemClock.elapsedRealtime();
+                if (!follow(started, null, played))
+                    return false;
+                if (played >= written) {
+                    synchronized (CodecEngine.this) {
+                        long at = heardAt(written, played, now);
+                        for (Segment s : started)
+                            complete(s, at);
+                    }
+                    return !cancelled;
+                }
+                long toFollow = written - played;
+                if (started.size() > 1)
+                    toFollow = Math.min(toFollow, started.get(1).trackFrame - played);
+                park(toFollow, false);
+            }
+            return !cancelled;
+        }
+
+        private long head() {
+            return mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        }
+
+        //
+        // Wait to be notified that there is something to do, see "Theory of operation".
+        // wantData if more from the ring or a mark is something to do. If the AudioTrack is
+        // playing, frames is how far its head has to go to the next thing to follow, and
+        // we don't wait longer than that.
+        //
+        private void park(long frames, boolean wantData) {
+            synchronized (CodecEngine.this) {
+                if (cancelled)
+                    return;
+                if (!paused && wantData && ((ring.available() > 0) || !marks.isEmpty()))
+                    return;
+                long ms = 0;                            // Until notified
+                if (!paused && (frames > 0) && (mTrack != null))
+                    ms = Math.max(1, frames * 1000 / mTrackRate);
+                try {
+                    CodecEngine.this.wait(ms);
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                }
+            }
+        }
+    }
+
+    // Under mTrackLock.
+    private boolean openTrack(int rate, int channels) {
+        if (mTrack != null)
+            mTrack.release();
+        mTrack = null;
+        int mask;
+        if (channels == 1)
+            mask = AudioFormat.CHANNEL_OUT_MONO;
+        else if (channels == 2)
+            mask = AudioFormat.CHANNEL_OUT_STEREO;
+        else {
+            Log.e(TAG, "openTrack() " + channels + " channels not supported.");
+            return false;
+        }
+        int size = AudioTrack.getMinBufferSize(rate, mask, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack(
+                new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build(),
+                new AudioFormat.Builder()
+                        .setSampleRate(rate)
+                        .setChannelMask(mask)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build(),
+                Math.max(size * 2, CHUNK_BYTES), AudioTrack.MODE_STREAM,
+                AudioManager.AUDIO_SESSION_ID_GENERATE);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            return false;
+        }
+        Log.d(TAG, "openTrack() " + rate + "Hz, " + channels + " channels.");
+        mTrack = track;
+        mTrackRate = rate;
+        mTrackChannels = channels;
+        return true;
+    }
+}
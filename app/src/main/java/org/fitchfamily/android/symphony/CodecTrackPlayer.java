@@ -0,0 +1,276 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. A CodecTrackPlayer is one track for the CodecEngine: a MediaExtractor and a MediaCodec
+ *    decoder for it, plus the encoder delay and padding to trim. It doesn't play anything
+ *    itself, starting it hands it to the engine which decodes it into the shared output.
+ * 2. Preparing (opening the file and setting up the decoder) is done on the engine's prepare
+ *    thread. If the player is reset before that finishes what was made is thrown away.
+ * 3. The decoder is used by the engine's decoding thread while the player plays and by
+ *    reset() here, so both hold codecLock while using it.
+ * 4. Position, playing, completion time and the next player are kept up to date by the
+ *    engine, under the engine's lock.
+ * 5. Listener calls are posted to the Looper of the thread that made the player. Each one
+ *    is dropped if the player has been reset since it was posted.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+
+public class CodecTrackPlayer implements TrackPlayer {
+    private static final String TAG = "Symphony:CodecTrack";
+
+    // Set by the extractor for MP3 (LAME/Xing header) and AAC (iTunSMPB) tracks.
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+    private static final String KEY_ENCODER_PADDING = "encoder-padding";
+
+    private static final int IDLE = 0;
+    private static final int INITIALIZED = 1;
+    private static final int PREPARING = 2;
+    private static final int PREPARED = 3;
+    private static final int ERROR = 4;
+    private static final int RELEASED = 5;
+
+    private final CodecEngine engine;
+    private final TrackPlayer.Listener listener;
+    private final Handler handler;
+    private Context context;
+    private Uri uri;
+    private volatile int state = IDLE;
+    private volatile int generation = 0;    // Changed by reset(), to drop stale work
+
+    // The decoder, used under codecLock
+    final Object codecLock = new Object();
+    MediaExtractor extractor;
+    MediaCodec codec;
+    int sampleRate;
+    int channels;
+    int delayFrames;                        // Encoder delay to trim from the start
+    int paddingFrames;                      // Encoder padding to trim from the end
+    volatile int durationMs;
+
+    // Kept up to date by the engine
+    volatile int position = 0;
+    volatile boolean playing = false;
+    volatile float volume = 1.0f;
+    volatile long completedAt = 0;          // When the last frame was played
+    CodecTrackPlayer next;                  // Under the engine's lock
+
+    CodecTrackPlayer(CodecEngine engine, TrackPlayer.Listener listener, Handler handler) {
+        this.engine = engine;
+        this.listener = listener;
+        this.handler = handler;
+    }
+
+    boolean isPrepared() {
+        return state == PREPARED;
+    }
+
+    @Override
+    public void setDataSource(Context context, Uri uri) throws IOException {
+        if (state != IDLE)
+            throw new IllegalStateException("setDataSource() in state " + state);
+        this.context = context.getApplicationContext();
+        this.uri = uri;
+        state = INITIALIZED;
+    }
+
+    @Override
+    public void prepareAsync() {
+        if (state != INITIALIZED)
+            throw new IllegalStateException("prepareAsync() in state " + state);
+        state = PREPARING;
+        final int gen = generation;
+        engine.prepare(() -> prepare(gen));
+    }
+
+    //
+    // On the engine's prepare thread. Open the track and get a decoder ready for it.
+    //
+    private void prepare(int gen) {
+        MediaExtractor ex = new MediaExtractor();
+        MediaCodec dec = null;
+        try {
+            ex.setDataSource(context, uri, null);
+            MediaFormat format = null;
+            for (int i = 0; i < ex.getTrackCount(); i++) {
+                MediaFormat f = ex.getTrackFormat(i);
+                String mime = f.getString(MediaFormat.KEY_MIME);
+                if ((mime != null) && mime.startsWith("audio/")) {
+                    ex.selectTrack(i);
+                    format = f;
+                    break;
+                }
+            }
+            if (format == null)
+                throw new IOException("No audio in " + uri);
+
+            int delay = format.containsKey(KEY_ENCODER_DELAY) ? format.getInteger(KEY_ENCODER_DELAY) : 0;
+            int padding = format.containsKey(KEY_ENCODER_PADDING) ? format.getInteger(KEY_ENCODER_PADDING) : 0;
+            long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ?
+                    format.getLong(MediaFormat.KEY_DURATION) : 0;
+
+            // We do the trimming, don't let the decoder do it too.
+            format.setInteger(KEY_ENCODER_DELAY, 0);
+            format.setInteger(KEY_ENCODER_PADDING, 0);
+            dec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            dec.configure(format, null, null, 0);
+            dec.start();
+
+            synchronized (codecLock) {
+                if (gen != generation) {
+                    dec.release();
+                    ex.release();
+                    return;
+                }
+                extractor = ex;
+                codec = dec;
+                sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                delayFrames = Math.max(0, delay);
+                paddingFrames = Math.max(0, padding);
+                durationMs = (int) (durationUs / 1000);
+                state = PREPARED;
+            }
+            Log.d(TAG, "prepare() " + uri + " delay=" + delay + ", padding=" + padding);
+            engine.prepared(this);
+            post(gen, () -> listener.onPrepared(this));
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "prepare() failed for " + uri, e);
+            if (dec != null)
+                dec.release();
+            ex.release();
+            postError(gen, MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (state != PREPARED)
+            throw new IllegalStateException("start() in state " + state);
+        engine.start(this);
+    }
+
+    @Override
+    public void pause() {
+        engine.pause(this);
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        if (state != PREPARED)
+            throw new IllegalStateException("seekTo() in state " + state);
+        engine.seek(this, msec);
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return position;
+    }
+
+    @Override
+    public int getDuration() {
+        return durationMs;
+    }
+
+    @Override
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    @Override
+    public void setNextPlayer(TrackPlayer next) {
+        engine.setNext(this, (CodecTrackPlayer) next);
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        this.volume = volume;
+    }
+
+    @Override
+    public void reset() {
+        engine.detach(this);
+        synchronized (codecLock) {
+            generation++;
+            if (codec != null)
+                codec.release();
+            if (extractor != null)
+                extractor.release();
+            codec = null;
+            extractor = null;
+            state = IDLE;
+        }
+        uri = null;
+        position = 0;
+        playing = false;
+        volume = 1.0f;
+        completedAt = 0;
+        durationMs = 0;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        state = RELEASED;
+    }
+
+    //
+    // From the engine's threads.
+    //
+
+    void postCompletion() {
+        post(generation, () -> listener.onCompletion(this));
+    }
+
+    void postError(int what, int extra) {
+        postError(generation, what, extra);
+    }
+
+    private void postError(int gen, int what, int extra) {
+        post(gen, () -> {
+            state = ERROR;
+            listener.onError(this, what, extra);
+        });
+    }
+
+    private void post(int gen, Runnable r) {
+        handler.post(() -> {
+            if (gen == generation)
+                r.run();
+        });
+    }
+}
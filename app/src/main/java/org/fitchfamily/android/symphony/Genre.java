@@ -19,21 +19,25 @@
 
 package org.fitchfamily.android.symphony;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by tfitch on 7/13/17.
  */
 
 public class Genre {
+    public static final long COMPOUND_ID = -1;         // Made from other genres, see GenreCatalog
+
     private long id;
     private String name;
-    private ArrayList<Song> playlist;
+    private SongTable playlist;
+    private PlaylistSnapshot snapshot;  // Play list with album index, built on first use
 
     public Genre(long genreId, String genreName) {
         id = genreId;
         name = genreName;
         playlist = null;
+        snapshot = null;
     }
 
     public long getId() {
@@ -44,17 +48,49 @@ public class Genre {
         return name;
     }
 
+    public boolean isCompound() {
+        return id == COMPOUND_ID;
+    }
+
     @Override
     public String toString() {
         return this.name;
     }
 
-    public ArrayList<Song> getPlaylist() {
+    public SongTable getPlaylist() {
         return playlist;
     }
 
-    public void setPlaylist(ArrayList<Song> playlist) {
+    public void setPlaylist(SongTable playlist) {
         this.playlist = playlist;
+        this.snapshot = null;
     }
 
+    // Used when restoring a playlist whose album index was saved with it.
+    public void setPlaylist(SongTable playlist, List<Album> albums) {
+        this.playlist = playlist;
+        this.snapshot = new PlaylistSnapshot(playlist, albums);
+    }
+
+    // Null if the play list has not been built yet.
+    public PlaylistSnapshot getSnapshot() {
+        if ((snapshot == null) && (playlist != null))
+            snapshot = PlaylistSnapshot.of(playlist);
+        return snapshot;
+    }
+
+    public List<Album> getAlbums() {
+        PlaylistSnapshot s = getSnapshot();
+        return (s == null) ? null : s.getAlbums();
+    }
+
+    // Zero if the play list has not been built yet.
+    public int getTrackCount() {
+        return (playlist == null) ? 0 : playlist.size();
+    }
+
+    public int getAlbumCount() {
+        List<Album> a = getAlbums();
+        return (a == null) ? 0 : a.size();
+    }
 }
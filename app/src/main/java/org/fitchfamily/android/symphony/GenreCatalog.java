@@ -0,0 +1,366 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. The genre list is what the genre spinner shows, so it stays an ArrayList in display order.
+ *    Finding a genre by name or id used to mean walking that list. The catalog keeps hash maps
+ *    for both, rebuilt by update() whenever the list or its play lists change.
+ * 2. A play list may also come from several genres: all tracks in any of them (union) or only
+ *    the tracks in all of them (intersection). Such a compound genre is named after its parts,
+ *    e.g. "Baroque ∪ Chamber", so the name alone is enough to rebuild it after a restart.
+ * 3. To combine genres quickly every track in the loaded genres is given an ordinal: its
+ *    position in the play order of the whole library. Each genre's members are held as a
+ *    SongBitmap of ordinals. A union or intersection is then bit set logic, and reading the
+ *    result in ordinal order gives the tracks already sorted for play.
+ * 4. The library table and the bit sets take a sort of the whole library to build, far too long
+ *    for the UI thread on a large library. So they are built in the background, only when a
+ *    compound genre is asked for (as most of the time none is wanted) and kept until the play
+ *    list of some genre changes. combine() and resolve() hand their result to a listener, at
+ *    once if the index is ready and otherwise when it has been built.
+ * 5. The background build works from the genre ids and play lists as they were when it
+ *    started. A SongTable is never changed once built, so nothing is shared that could change
+ *    under it. If update() finds a play list has changed since then the build is abandoned and
+ *    another started for whoever is still waiting.
+ * 6. A compound genre saved from last time may be asked for before its parts have been loaded
+ *    (a cold start with no library snapshot). That is not the same as a part having gone from
+ *    the library, so resolve() holds on to the request and update() tries it again once every
+ *    part has a play list. The listener is only given null when a part is not in the genre
+ *    list at all.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GenreCatalog {
+    private static final String TAG = "Symphony:GenreCatalog";
+
+    public static final String UNION = " ∪ ";
+    public static final String INTERSECTION = " ∩ ";
+
+    public interface Listener {
+        // Called in the UI thread with the genre made, or null if it couldn't be.
+        void onGenreCombined(Genre genre);
+    }
+
+    private final ArrayList<Genre> genres;              // Shared with the genre spinner
+    private final SortKeys sortKeys;
+    private final HashMap<String, Integer> positions;
+    private final HashMap<Long, Genre> byId;
+
+    // Membership index, built in the background on first use.
+    private static class Index {
+        Map<Long, SongTable> sources;                   // The play lists it was built from
+        SongTable library;                              // Every loaded track, in play order
+        long[] libraryIds;                              // Sorted
+        int[] idOrdinal;                                // Ordinal of each entry in libraryIds
+        HashMap<Long, SongBitmap> members;              // By genre id
+    }
+
+    private Index index;
+    private IndexBuilder builder;                       // Building the index, if anything is
+    private final ArrayList<Runnable> waiting = new ArrayList<>();      // For the index
+    private final LinkedHashMap<String, Listener> pending = new LinkedHashMap<>();   // For parts
+
+    public GenreCatalog(ArrayList<Genre> genres, SortKeys sortKeys) {
+        this.genres = genres;
+        this.sortKeys = sortKeys;
+        positions = new HashMap<>();
+        byId = new HashMap<>();
+        update();
+    }
+
+    // The genre list or a genre's play list has changed.
+    public void update() {
+        positions.clear();
+        byId.clear();
+        for (int i = 0; i < genres.size(); i++) {
+            Genre g = genres.get(i);
+            positions.put(g.getName(), i);
+            if (!g.isCompound())
+                byId.put(g.getId(), g);
+        }
+
+        Map<Long, SongTable> sources = sources();
+        if ((index != null) && !index.sources.equals(sources))
+            index = null;
+        if ((builder != null) && !builder.sources.equals(sources)) {
+            builder.cancel(false);
+            builder = null;
+            if (!waiting.isEmpty())
+                startBuild();
+        }
+
+        // Try again the compound genres that were waiting for their parts.
+        if (!pending.isEmpty()) {
+            ArrayList<Map.Entry<String, Listener>> retry = new ArrayList<>();
+            for (Map.Entry<String, Listener> e : pending.entrySet()) {
+                if (partsLoaded(e.getKey()))
+                    retry.add(e);
+            }
+            for (Map.Entry<String, Listener> e : retry) {
+                pending.remove(e.getKey());
+                resolve(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    // Start building the index now if it isn't built, as it is about to be wanted.
+    public void prepare() {
+        if ((index == null) && (builder == null))
+            startBuild();
+    }
+
+    // Nobody is waiting any more (the activity is going away).
+    public void cancel() {
+        waiting.clear();
+        pending.clear();
+        if (builder != null) {
+            builder.cancel(false);
+            builder = null;
+        }
+    }
+
+    // Position in the genre list, -1 if not there.
+    public int indexOf(String name) {
+        Integer rslt = (name == null) ? null : positions.get(name);
+        return (rslt == null) ? -1 : rslt;
+    }
+
+    public Genre get(String name) {
+        int i = indexOf(name);
+        return (i < 0) ? null : genres.get(i);
+    }
+
+    public Genre getById(long id) {
+        return byId.get(id);
+    }
+
+    public static boolean isCompoundName(String name) {
+        return (name != null) && (name.contains(UNION) || name.contains(INTERSECTION));
+    }
+
+    //
+    // Make a genre from several others. The listener is given null if any of the
+    // parts have not been loaded yet.
+    //
+    public void combine(final List<Genre> parts, final boolean intersect, final Listener listener) {
+        if (parts.isEmpty()) {
+            listener.onGenreCombined(null);
+            return;
+        }
+        whenIndexed(() -> listener.onGenreCombined(combine(parts, intersect)));
+    }
+
+    //
+    // Rebuild a compound genre from its name. The listener is given null if that can't be
+    // done because a part is not in the genre list. If a part is there but not loaded yet
+    // the listener is kept until update() finds all the parts loaded.
+    //
+    public void resolve(final String name, final Listener listener) {
+        if (!isCompoundName(name)) {
+            listener.onGenreCombined(null);
+            return;
+        }
+        final boolean intersect = name.contains(INTERSECTION);
+        String[] partNames = name.split(intersect ? INTERSECTION : UNION);
+        final ArrayList<Genre> parts = new ArrayList<>(partNames.length);
+        for (String partName : partNames) {
+            Genre g = get(partName);
+            if ((g == null) || g.isCompound()) {
+                listener.onGenreCombined(null);
+                return;
+            }
+            parts.add(g);
+        }
+        if (!partsLoaded(name)) {
+            Log.d(TAG, "resolve(" + name + ") waiting for its parts to load.");
+            pending.put(name, listener);
+            return;
+        }
+        whenIndexed(() -> {
+            Genre rslt = combine(parts, intersect);
+            if (rslt != null)
+                listener.onGenreCombined(rslt);
+            else
+                pending.put(name, listener);    // A part was reset while the index was built
+        });
+    }
+
+    // True if every part of a compound genre that is in the genre list has a play list.
+    private boolean partsLoaded(String name) {
+        String[] partNames = name.split(name.contains(INTERSECTION) ? INTERSECTION : UNION);
+        for (String partName : partNames) {
+            Genre g = get(partName);
+            if ((g != null) && !g.isCompound() && (g.getPlaylist() == null))
+                return false;
+        }
+        return true;
+    }
+
+    private Genre combine(List<Genre> parts, boolean intersect) {
+        StringBuilder name = new StringBuilder();
+        SongBitmap set = null;
+        for (Genre g : parts) {
+            SongBitmap m = index.members.get(g.getId());
+            if (m == null) {
+                Log.d(TAG, "combine() " + g.getName() + " not loaded.");
+                return null;
+            }
+            if (set == null)
+                set = m;
+            else
+                set = intersect ? set.and(m) : set.or(m);
+            if (name.length() > 0)
+                name.append(intersect ? INTERSECTION : UNION);
+            name.append(g.getName());
+        }
+        Genre rslt = new Genre(Genre.COMPOUND_ID, name.toString());
+        rslt.setPlaylist(index.library.select(set.toArray()));
+        Log.d(TAG, "combine() " + rslt.getName() + " has " + rslt.getTrackCount() + " tracks.");
+        return rslt;
+    }
+
+    private void whenIndexed(Runnable r) {
+        if (index != null) {
+            r.run();
+            return;
+        }
+        waiting.add(r);
+        if (builder == null)
+            startBuild();
+    }
+
+    private void startBuild() {
+        builder = new IndexBuilder(sources());
+        // Don't queue behind the artwork extraction tasks on the serial executor.
+        builder.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    // The loaded play list of each genre, the input to the index.
+    private Map<Long, SongTable> sources() {
+        LinkedHashMap<Long, SongTable> rslt = new LinkedHashMap<>();
+        for (Genre g : genres) {
+            if (!g.isCompound() && (g.getPlaylist() != null))
+                rslt.put(g.getId(), g.getPlaylist());
+        }
+        return rslt;
+    }
+
+    private class IndexBuilder extends AsyncTask<Void, Void, Index> {
+        final Map<Long, SongTable> sources;
+
+        IndexBuilder(Map<Long, SongTable> sources) {
+            this.sources = sources;
+        }
+
+        @Override
+        protected Index doInBackground(Void... params) {
+            return buildIndex(sources, sortKeys);
+        }
+
+        @Override
+        protected void onPostExecute(Index result) {
+            if (builder != this)
+                return;
+            builder = null;
+            index = result;
+            ArrayList<Runnable> ready = new ArrayList<>(waiting);
+            waiting.clear();
+            for (Runnable r : ready)
+                r.run();
+        }
+    }
+
+    //
+    // Give every track in the loaded genres an ordinal (its position in library play
+    // order) and build the member bit set of each genre. In the background.
+    //
+    private static Index buildIndex(Map<Long, SongTable> sources, SortKeys sortKeys) {
+        long startTime = System.currentTimeMillis();
+
+        // Gather every loaded row and sort by id to find the distinct tracks.
+        int total = 0;
+        for (SongTable t : sources.values())
+            total += t.size();
+        SongTable[] tables = new SongTable[total];
+        int[] tableRows = new int[total];
+        long[] ids = new long[total];
+        int n = 0;
+        for (SongTable t : sources.values()) {
+            for (int row = 0; row < t.size(); row++) {
+                tables[n] = t;
+                tableRows[n] = row;
+                ids[n++] = t.getId(row);
+            }
+        }
+        int[] order = new int[total];
+        for (int i = 0; i < total; i++)
+            order[i] = i;
+        PlaylistSorter.radixSort(ids, order);
+
+        SongTable.Builder distinct = new SongTable.Builder(
+                (total > 0) ? tables[0].getStrings() : new StringPool(), total);
+        long[] distinctIds = new long[total];
+        int count = 0;
+        for (int i = 0; i < total; i++) {
+            if ((count > 0) && (ids[i] == distinctIds[count - 1]))
+                continue;
+            distinctIds[count++] = ids[i];
+            distinct.add(tables[order[i]], tableRows[order[i]]);
+        }
+        SongTable byId = distinct.build();
+
+        Index rslt = new Index();
+        rslt.sources = sources;
+        int[] playOrder = PlaylistSorter.sort(byId, sortKeys);
+        rslt.library = byId.select(playOrder);
+        rslt.libraryIds = Arrays.copyOf(distinctIds, count);
+        rslt.idOrdinal = new int[count];
+        for (int i = 0; i < count; i++)
+            rslt.idOrdinal[playOrder[i]] = i;
+
+        rslt.members = new HashMap<>();
+        for (Map.Entry<Long, SongTable> source : sources.entrySet()) {
+            SongTable t = source.getValue();
+            int[] ordinals = new int[t.size()];
+            int m = 0;
+            for (int row = 0; row < t.size(); row++) {
+                int i = Arrays.binarySearch(rslt.libraryIds, t.getId(row));
+                if (i >= 0)
+                    ordinals[m++] = rslt.idOrdinal[i];
+            }
+            ordinals = Arrays.copyOf(ordinals, m);
+            Arrays.sort(ordinals);
+            rslt.members.put(source.getKey(), SongBitmap.fromSorted(ordinals));
+        }
+        Log.d(TAG, "buildIndex() " + count + " tracks, " + rslt.members.size() + " genres in " +
+                (System.currentTimeMillis() - startTime) + "ms.");
+        return rslt;
+    }
+}
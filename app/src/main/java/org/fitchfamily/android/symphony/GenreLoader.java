@@ -0,0 +1,161 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Building the play list for a genre means walking the MediaStore cursor for all the
+ *    members of the genre and then sorting the result. For a large library (tens of thousands
+ *    of tracks in a genre) that can take seconds, so it must not be done in the UI thread.
+ * 2. We don't want the user to stare at an empty list while the load runs, so we read the
+ *    cursor in chunks. Each chunk is sorted and merged into the tracks read so far and the
+ *    merged (sorted) list is published to the UI thread which displays it.
+ * 3. The chunk size starts small so that something shows up quickly and doubles with each
+ *    chunk. That keeps the total merge cost at O(n log n) and limits the number of times the
+ *    UI has to redraw the list.
+ * 4. Every table we publish is a new SongTable which is never modified, so the UI thread can
+ *    hold on to it without any locking.
+ * 5. If the user selects a different genre while a load is running, the caller cancels the
+ *    load. We check for cancellation between rows so the cursor is closed promptly.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+import android.util.Log;
+
+public class GenreLoader extends AsyncTask<Void, SongTable, SongTable> {
+    private static final String TAG = "Symphony:GenreLoader";
+    private static final int FIRST_CHUNK_SIZE = 200;    // Rows read before first display update
+
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.COMPOSER,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.TRACK
+    };
+
+    public interface Listener {
+        // Called in the UI thread each time more of the genre has been read.
+        void onGenreSongsProgress(Genre genre, SongTable songsSoFar);
+
+        // Called in the UI thread when the whole genre has been read.
+        void onGenreSongsLoaded(Genre genre, SongTable songs);
+    }
+
+    private Genre mGenre;
+    private StringPool mStrings;
+    private SortKeys mSortKeys;
+    private SongTable.RowComparator mPlayOrder;
+    private ContentResolver mResolver;
+    private Listener mListener;
+
+    public GenreLoader(ContentResolver resolver, Genre genre, StringPool strings,
+                       SortKeys sortKeys, Listener listener) {
+        mResolver = resolver;
+        mStrings = strings;
+        mSortKeys = sortKeys;
+        mPlayOrder = sortKeys.playOrder();
+        mGenre = genre;
+        mListener = listener;
+    }
+
+    public Genre getGenre() {
+        return mGenre;
+    }
+
+    @Override
+    protected SongTable doInBackground(Void... params) {
+        Log.d(TAG, "doInBackground(" + mGenre.getName() + ") entry");
+        SongTable loaded = new SongTable.Builder(mStrings).build();
+        final Uri musicUri = MediaStore.Audio.Genres.Members.getContentUri("external", mGenre.getId());
+
+        Cursor musicCursor = mResolver.query(musicUri, PROJECTION, null, null, null);
+        if (musicCursor == null)
+            return loaded;
+
+        try {
+            if (!musicCursor.moveToFirst())
+                return loaded;
+
+            //get columns
+            int idColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            int albumColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            int albumIdColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            int titleColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            int composerColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.COMPOSER);
+            int artistColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            int trackColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
+
+            int chunkSize = FIRST_CHUNK_SIZE;
+            SongTable.Builder chunk = new SongTable.Builder(mStrings, chunkSize);
+            do {
+                if (isCancelled())
+                    return null;
+                chunk.add(musicCursor.getLong(idColumn),
+                        musicCursor.getString(titleColumn),
+                        musicCursor.getString(artistColumn),
+                        musicCursor.getString(albumColumn),
+                        musicCursor.getLong(albumIdColumn),
+                        musicCursor.getString(composerColumn),
+                        musicCursor.getInt(trackColumn));
+
+                if (chunk.size() >= chunkSize) {
+                    loaded = mergeChunk(loaded, chunk.build());
+                    publishProgress(loaded);
+                    chunkSize *= 2;
+                    chunk = new SongTable.Builder(mStrings, chunkSize);
+                }
+            } while (musicCursor.moveToNext());
+
+            if (chunk.size() > 0)
+                loaded = mergeChunk(loaded, chunk.build());
+        } finally {
+            musicCursor.close();
+        }
+        Log.d(TAG, "doInBackground(" + mGenre.getName() + ") loaded " + loaded.size() + " tracks.");
+        return loaded;
+    }
+
+    @Override
+    protected void onProgressUpdate(SongTable... values) {
+        if (!isCancelled() && (values.length > 0))
+            mListener.onGenreSongsProgress(mGenre, values[values.length - 1]);
+    }
+
+    @Override
+    protected void onPostExecute(SongTable songs) {
+        if (songs != null)
+            mListener.onGenreSongsLoaded(mGenre, songs);
+    }
+
+    //
+    // Sort a newly read chunk and merge it with the (already sorted) tracks read
+    // so far. A new table is returned as the old one may already be on display.
+    //
+    private SongTable mergeChunk(SongTable sorted, SongTable chunk) {
+        return SongTable.merge(sorted, chunk.select(PlaylistSorter.sort(chunk, mSortKeys)), mPlayOrder);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. GenreLoader builds one genre at a time, reading every column of every member track and
+ *    sorting them. A track in several genres is read and sorted several times. When we have
+ *    no snapshot of the library we want all of the genres, so we build them all at once here.
+ * 2. The audio table is read once, ordered by id, into a single library table. The members of
+ *    each genre are read with a query that returns only the audio ids, which is cheap. (The
+ *    media store has no public way to read the genre membership of all tracks in one query
+ *    on the API levels we support.)
+ * 3. The whole library is sorted into play order once. Sorting is a total order so the tracks
+ *    of any genre, taken in library play order, are already in genre play order. For each
+ *    genre we just map its audio ids to their library position and sort those integers.
+ * 4. Building each genre's table and album index is independent of the others, so the genres
+ *    are spread over one thread per core.
+ * 5. The result is handed to the UI thread. After that switching genres needs no queries.
+ * 6. The media store stamp (see LibrarySnapshot) is taken before anything is read and handed
+ *    over with the result. Any change made while we read then leaves the stamp out of date, so
+ *    a snapshot saved from the result is seen to be stale, never wrongly taken as current.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class LibraryLoader extends AsyncTask<Void, Void, LibraryLoader.Result> {
+    private static final String TAG = "Symphony:LibraryLoader";
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.COMPOSER,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.TRACK
+    };
+
+    public interface Listener {
+        // Called in the UI thread when all genres have been built.
+        void onLibraryLoaded(Result result);
+    }
+
+    // Play list and album index for each genre, in the order the genres were given.
+    public static class Result {
+        private final Genre[] genres;
+        private final SongTable[] playlists;
+        private final ArrayList<ArrayList<Album>> albums;
+        private final long stamp;
+
+        Result(Genre[] genres, SongTable[] playlists, ArrayList<ArrayList<Album>> albums, long stamp) {
+            this.stamp = stamp;
+            this.genres = genres;
+            this.playlists = playlists;
+            this.albums = albums;
+        }
+
+        public int size() {
+            return genres.length;
+        }
+
+        public Genre getGenre(int i) {
+            return genres[i];
+        }
+
+        public SongTable getPlaylist(int i) {
+            return playlists[i];
+        }
+
+        public ArrayList<Album> getAlbums(int i) {
+            return albums.get(i);
+        }
+
+        // Media store stamp from before the library was read.
+        public long getStamp() {
+            return stamp;
+        }
+    }
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private Genre[] mGenres;
+    private StringPool mStrings;
+    private SortKeys mSortKeys;
+    private Listener mListener;
+
+    public LibraryLoader(Context context, ArrayList<Genre> genres, StringPool strings,
+                         SortKeys sortKeys, Listener listener) {
+        mContext = context.getApplicationContext();
+        mResolver = mContext.getContentResolver();
+        ArrayList<Genre> wanted = new ArrayList<>(genres.size());
+        for (Genre g : genres) {
+            if (!g.isCompound())
+                wanted.add(g);
+        }
+        mGenres = wanted.toArray(new Genre[0]);
+        mStrings = strings;
+        mSortKeys = sortKeys;
+        mListener = listener;
+    }
+
+    @Override
+    protected Result doInBackground(Void... params) {
+        Log.d(TAG, "doInBackground() entry, " + mGenres.length + " genres.");
+        long startTime = System.currentTimeMillis();
+
+        long stamp = LibrarySnapshot.computeStamp(mContext);
+        final SongTable library = readLibrary();
+        if ((library == null) || isCancelled())
+            return null;
+
+        // Position of each library row in play order.
+        int[] sorted = PlaylistSorter.sort(library, mSortKeys);
+        final int[] rank = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            rank[sorted[i]] = i;
+        final long[] ids = new long[library.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = library.getId(i);
+        final int[] byRank = sorted;
+
+        final int[][] members = new int[mGenres.length][];
+        for (int g = 0; g < mGenres.length; g++) {
+            if (isCancelled())
+                return null;
+            members[g] = readMembers(mGenres[g].getId(), ids, rank);
+        }
+
+        final SongTable[] playlists = new SongTable[mGenres.length];
+        final ArrayList<ArrayList<Album>> albums = new ArrayList<>(mGenres.length);
+        for (int g = 0; g < mGenres.length; g++)
+            albums.add(null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            ArrayList<Future<?>> work = new ArrayList<>(mGenres.length);
+            for (int g = 0; g < mGenres.length; g++) {
+                final int genre = g;
+                work.add(executor.submit(() -> {
+                    int[] rows = members[genre];
+                    Arrays.sort(rows);                  // Ranks, so now in play order
+                    for (int i = 0; i < rows.length; i++)
+                        rows[i] = byRank[rows[i]];
+                    playlists[genre] = library.select(rows);
+                    albums.set(genre, Album.getAlbumIndexes(playlists[genre]));
+                }));
+            }
+            for (Future<?> f : work)
+                f.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "doInBackground() genre build failed", e);
+            return null;
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int g = 0; g < mGenres.length; g++) {
+            Log.d(TAG, "doInBackground() " + mGenres[g].getName() + ": " +
+                    playlists[g].size() + " tracks, " + albums.get(g).size() + " albums.");
+        }
+        Log.d(TAG, "doInBackground() " + library.size() + " tracks in " +
+                (System.currentTimeMillis() - startTime) + "ms.");
+        return new Result(mGenres, playlists, albums, stamp);
+    }
+
+    @Override
+    protected void onPostExecute(Result result) {
+        if (result != null)
+            mListener.onLibraryLoaded(result);
+    }
+
+    // Read every audio track, ordered by id.
+    private SongTable readLibrary() {
+        Cursor cursor = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                PROJECTION, null, null, MediaStore.Audio.Media._ID);
+        if (cursor == null)
+            return null;
+        SongTable.Builder rslt = new SongTable.Builder(mStrings, cursor.getCount());
+        try {
+            int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            int albumColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            int albumIdColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            int titleColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            int composerColumn = cursor.getColumnIndex(MediaStore.Audio.Media.COMPOSER);
+            int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            int trackColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
+            while (cursor.moveToNext()) {
+                if (isCancelled())
+                    return null;
+                rslt.add(cursor.getLong(idColumn),
+                        cursor.getString(titleColumn),
+                        cursor.getString(artistColumn),
+                        cursor.getString(albumColumn),
+                        cursor.getLong(albumIdColumn),
+                        cursor.getString(composerColumn),
+                        cursor.getInt(trackColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rslt.build();
+    }
+
+    //
+    // Read the audio ids of a genre's members and return the play order rank of
+    // each in the library. Ids not in the library (shouldn't happen) are dropped.
+    //
+    private int[] readMembers(long genreId, long[] ids, int[] rank) {
+        Uri uri = MediaStore.Audio.Genres.Members.getContentUri("external", genreId);
+        Cursor cursor = mResolver.query(uri,
+                new String[]{MediaStore.Audio.Genres.Members.AUDIO_ID}, null, null, null);
+        if (cursor == null)
+            return new int[0];
+        int[] rslt = new int[cursor.getCount()];
+        int n = 0;
+        try {
+            while (cursor.moveToNext() && (n < rslt.length)) {
+                int row = Arrays.binarySearch(ids, cursor.getLong(0));
+                if (row >= 0)
+                    rslt[n++] = rank[row];
+            }
+        } finally {
+            cursor.close();
+        }
+        return Arrays.copyOf(rslt, n);
+    }
+}
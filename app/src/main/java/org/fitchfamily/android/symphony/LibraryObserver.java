@@ -0,0 +1,352 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Once a genre's play list is built we keep it. Without something watching the media store,
+ *    music added while we are running would not show up until the app is restarted.
+ * 2. We register a ContentObserver on the audio table. The media scanner sends a burst of
+ *    notifications while it works, so we wait for things to be quiet for a while before
+ *    looking for changes.
+ * 3. To find the changes we keep the id and modification date of every audio row, sorted by
+ *    id, in two primitive arrays. A fresh copy is read (in the background) and the two are
+ *    walked together to find the rows that were inserted, deleted or modified.
+ * 4. Modified rows are treated as a delete plus an insert. The full information for inserted
+ *    rows, and the genres they belong to, is read from the media store.
+ * 5. The result is handed to the UI thread which applies it to each loaded genre: rows that
+ *    were deleted are dropped, rows that belong to the genre are added and the genre is sorted
+ *    again. Sorting a mostly sorted play list with PlaylistSorter is cheap.
+ * 6. Each scan takes the media store stamp (see LibrarySnapshot) before reading anything and
+ *    hands it over with the changes, for saving a snapshot of the changed library.
+ * 7. If a great many rows changed (a new SD card, say) it is cheaper to simply reload, so the
+ *    listener is told to do that instead.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class LibraryObserver extends ContentObserver {
+    private static final String TAG = "Symphony:LibraryObserver";
+    private static final long SETTLE_TIME_MS = 2000;    // Quiet time before looking for changes
+    private static final int MAX_CHANGES = 1000;        // More than this and we reload everything
+    private static final int MAX_QUERY_ARGS = 500;      // SQLite limits number of arguments
+
+    private static final Uri AUDIO_URI = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.COMPOSER,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.TRACK
+    };
+
+    public interface Listener {
+        // Called in the UI thread with the changes since the last call.
+        void onLibraryChanged(Changes changes);
+
+        // Called in the UI thread when it is better to reload the whole library.
+        void onLibraryReloadNeeded();
+    }
+
+    //
+    // Changes to the audio table. Tracks that were modified appear both as removed
+    // and as added.
+    //
+    public static class Changes {
+        private long[] removedIds;          // Sorted
+        private SongTable added;
+        private long[][] addedGenreIds;     // Genres for each row of added
+        private ArrayList<Genre> genres;    // All genres now in the media store
+        private long stamp;                 // Media store stamp from before the scan
+
+        public ArrayList<Genre> getGenres() {
+            return genres;
+        }
+
+        public long getStamp() {
+            return stamp;
+        }
+
+        // Return the new play list for a genre, or null if the genre isn't changed.
+        public SongTable applyTo(Genre genre, SortKeys sortKeys) {
+            SongTable old = genre.getPlaylist();
+            if ((old == null) || genre.isCompound())
+                return null;
+
+            SongTable.Builder combined = new SongTable.Builder(old.getStrings(), old.size() + added.size());
+            boolean changed = false;
+            for (int row = 0; row < old.size(); row++) {
+                if (Arrays.binarySearch(removedIds, old.getId(row)) >= 0)
+                    changed = true;
+                else
+                    combined.add(old, row);
+            }
+            for (int row = 0; row < added.size(); row++) {
+                for (long genreId : addedGenreIds[row]) {
+                    if (genreId == genre.getId()) {
+                        combined.add(added, row);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            if (!changed)
+                return null;
+            SongTable rslt = combined.build();
+            return rslt.select(PlaylistSorter.sort(rslt, sortKeys));
+        }
+    }
+
+    private Context mContext;
+    private StringPool mStrings;
+    private SortKeys mSortKeys;
+    private Listener mListener;
+    private Handler mHandler;
+
+    // Id and modification date of each audio row, sorted by id. Only touched by the
+    // scan task and only one scan task runs at a time.
+    private long[] mKnownIds;
+    private long[] mKnownModified;
+
+    private ScanTask mScanTask;
+    private boolean mRescanNeeded;
+
+    public LibraryObserver(Context context, StringPool strings, SortKeys sortKeys, Listener listener) {
+        super(new Handler());
+        mContext = context.getApplicationContext();
+        mStrings = strings;
+        mSortKeys = sortKeys;
+        mListener = listener;
+        mHandler = new Handler();
+        mKnownIds = null;
+        mKnownModified = null;
+        mScanTask = null;
+        mRescanNeeded = false;
+    }
+
+    public void register() {
+        Log.d(TAG, "register() entry.");
+        mContext.getContentResolver().registerContentObserver(AUDIO_URI, true, this);
+        startScan();            // Get our starting point
+    }
+
+    public void unregister() {
+        Log.d(TAG, "unregister() entry.");
+        mContext.getContentResolver().unregisterContentObserver(this);
+        mHandler.removeCallbacks(settled);
+        if (mScanTask != null) {
+            mScanTask.cancel(false);
+            mScanTask = null;
+        }
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        mHandler.removeCallbacks(settled);
+        mHandler.postDelayed(settled, SETTLE_TIME_MS);
+    }
+
+    private Runnable settled = new Runnable() {
+        @Override
+        public void run() {
+            startScan();
+        }
+    };
+
+    private void startScan() {
+        if (mScanTask != null) {
+            mRescanNeeded = true;
+            return;
+        }
+        mRescanNeeded = false;
+        mScanTask = new ScanTask();
+        mScanTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void scanFinished(ScanTask task, Changes changes, boolean reload) {
+        if (task != mScanTask)
+            return;
+        mScanTask = null;
+        if (reload)
+            mListener.onLibraryReloadNeeded();
+        else if (changes != null)
+            mListener.onLibraryChanged(changes);
+        if (mRescanNeeded)
+            startScan();
+    }
+
+    private class ScanTask extends AsyncTask<Void, Void, Changes> {
+        private boolean mReload = false;
+
+        @Override
+        protected Changes doInBackground(Void... params) {
+            ContentResolver resolver = mContext.getContentResolver();
+            long stamp = (mKnownIds != null) ? LibrarySnapshot.computeStamp(mContext) : 0;
+            String[] projection = {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED};
+            Cursor cursor = resolver.query(AUDIO_URI, projection, null, null,
+                    MediaStore.Audio.Media._ID);
+            if (cursor == null)
+                return null;
+            long[] ids = new long[cursor.getCount()];
+            long[] modified = new long[ids.length];
+            int n = 0;
+            while (cursor.moveToNext() && (n < ids.length)) {
+                ids[n] = cursor.getLong(0);
+                modified[n++] = cursor.getLong(1);
+            }
+            cursor.close();
+
+            long[] oldIds = mKnownIds;
+            long[] oldModified = mKnownModified;
+            mKnownIds = Arrays.copyOf(ids, n);
+            mKnownModified = Arrays.copyOf(modified, n);
+            if (oldIds == null)
+                return null;            // First scan, nothing to compare with
+
+            // Walk the old and new rows together looking for differences.
+            long[] removed = new long[MAX_CHANGES];
+            long[] inserted = new long[MAX_CHANGES];
+            int removedCount = 0;
+            int insertedCount = 0;
+            int i = 0;
+            int j = 0;
+            while ((i < oldIds.length) || (j < n)) {
+                if ((removedCount >= MAX_CHANGES) || (insertedCount >= MAX_CHANGES)) {
+                    Log.d(TAG, "ScanTask: Too many changes, reload.");
+                    mReload = true;
+                    return null;
+                }
+                if ((j >= n) || ((i < oldIds.length) && (oldIds[i] < ids[j]))) {
+                    removed[removedCount++] = oldIds[i++];
+                } else if ((i >= oldIds.length) || (ids[j] < oldIds[i])) {
+                    inserted[insertedCount++] = ids[j++];
+                } else {
+                    if (oldModified[i] != modified[j]) {
+                        removed[removedCount++] = oldIds[i];
+                        inserted[insertedCount++] = ids[j];
+                    }
+                    i++;
+                    j++;
+                }
+            }
+            if ((removedCount == 0) && (insertedCount == 0))
+                return null;
+            Log.d(TAG, "ScanTask: " + removedCount + " removed, " + insertedCount + " inserted.");
+
+            Changes changes = new Changes();
+            changes.stamp = stamp;
+            changes.removedIds = Arrays.copyOf(removed, removedCount);
+            changes.added = readTracks(resolver, Arrays.copyOf(inserted, insertedCount));
+            changes.addedGenreIds = new long[changes.added.size()][];
+            for (int row = 0; row < changes.added.size(); row++) {
+                changes.addedGenreIds[row] = readGenreIds(resolver, changes.added.getId(row));
+                mSortKeys.forgetAlbum(changes.added.getAlbumId(row));    // Title may have changed
+            }
+            changes.genres = readGenres(resolver);
+            return changes;
+        }
+
+        @Override
+        protected void onPostExecute(Changes changes) {
+            scanFinished(this, changes, mReload);
+        }
+
+        @Override
+        protected void onCancelled(Changes changes) {
+            scanFinished(this, null, false);
+        }
+    }
+
+    private SongTable readTracks(ContentResolver resolver, long[] ids) {
+        SongTable.Builder rslt = new SongTable.Builder(mStrings, ids.length);
+        for (int start = 0; start < ids.length; start += MAX_QUERY_ARGS) {
+            int end = Math.min(ids.length, start + MAX_QUERY_ARGS);
+            StringBuilder selection = new StringBuilder(MediaStore.Audio.Media._ID + " IN (");
+            String[] args = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append((i == start) ? "?" : ",?");
+                args[i - start] = Long.toString(ids[i]);
+            }
+            selection.append(")");
+
+            Cursor cursor = resolver.query(AUDIO_URI, PROJECTION, selection.toString(), args, null);
+            if (cursor == null)
+                continue;
+            int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            int albumColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            int albumIdColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            int titleColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            int composerColumn = cursor.getColumnIndex(MediaStore.Audio.Media.COMPOSER);
+            int artistColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            int trackColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
+            while (cursor.moveToNext()) {
+                rslt.add(cursor.getLong(idColumn),
+                        cursor.getString(titleColumn),
+                        cursor.getString(artistColumn),
+                        cursor.getString(albumColumn),
+                        cursor.getLong(albumIdColumn),
+                        cursor.getString(composerColumn),
+                        cursor.getInt(trackColumn));
+            }
+            cursor.close();
+        }
+        return rslt.build();
+    }
+
+    private static long[] readGenreIds(ContentResolver resolver, long audioId) {
+        Uri uri = MediaStore.Audio.Genres.getContentUriForAudioId("external", (int) audioId);
+        Cursor cursor = resolver.query(uri, new String[]{MediaStore.Audio.Genres._ID}, null, null, null);
+        if (cursor == null)
+            return new long[0];
+        long[] rslt = new long[cursor.getCount()];
+        int n = 0;
+        while (cursor.moveToNext() && (n < rslt.length))
+            rslt[n++] = cursor.getLong(0);
+        cursor.close();
+        return Arrays.copyOf(rslt, n);
+    }
+
+    private static ArrayList<Genre> readGenres(ContentResolver resolver) {
+        ArrayList<Genre> rslt = new ArrayList<>();
+        String[] projection = {MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME};
+        Cursor cursor = resolver.query(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                projection, null, null, null);
+        if (cursor == null)
+            return rslt;
+        while (cursor.moveToNext())
+            rslt.add(new Genre(cursor.getLong(0), cursor.getString(1)));
+        cursor.close();
+        return rslt;
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Querying the media store for the genre list and the tracks in a genre is slow on a large
+ *    library and, without a snapshot, is repeated every time the app is started.
+ * 2. So after a genre has been loaded we write everything we know about the library (the genre
+ *    list, the tracks of each loaded genre and the album index for each of those genres) to a
+ *    compact binary file in our cache directory.
+ * 3. On the next start the file is memory mapped and decoded. The layout matches the in memory
+ *    layout: the library StringPool is stored as a string table and each genre's SongTable is
+ *    stored column by column, so restoring a column is a single bulk copy out of the mapping.
+ * 4. The first screen is built from the snapshot without querying the media store. Then, in
+ *    the background, we compute a stamp from the media store (its version plus the id and
+ *    modification date of every audio row plus the genre list) and compare it against the
+ *    stamp saved with the snapshot. If they differ the caller is told the snapshot is stale
+ *    so it can throw it away and reload from the media store.
+ *    The stamp saved is one the caller took before reading what is being saved (LibraryLoader
+ *    and LibraryObserver take one), or the stamp of the snapshot it was loaded from. A change
+ *    made while reading then shows as a stale snapshot next time instead of being missed, and
+ *    saving doesn't scan the media store again.
+ * 5. The file is written to a temporary file and renamed into place so a crash while writing
+ *    can not leave a partial snapshot behind. A trailing magic number catches truncation.
+ *    Saves are made one at a time on their own thread, so two can never write the temporary
+ *    file at once. The caller can ask for a save to wait a while, so that a run of changes
+ *    (the user looking through genres) is written once. A save that has been overtaken by a newer one before it starts (or before
+ *    its file is renamed into place) is dropped, the newer one has everything it had.
+ *    Every count and length read back is checked against what is left of the file before
+ *    anything is allocated for it, so a damaged file is rejected rather than crashing us.
+ *
+ * File layout (big endian):
+ *      int     MAGIC
+ *      int     VERSION
+ *      long    media store stamp
+ *      int     string count, then for each: int byte length, UTF-8 bytes
+ *      int     genre count, then for each:
+ *              long    genre id
+ *              int     genre name (index into string table)
+ *              int     track count, -1 if the genre was never loaded. If loaded then:
+ *              long[]  track ids, long[] album ids, int[] track numbers
+ *              int[]   artists, int[] albums, int[] composers
+ *                      (indexes into the string table, -1 for null)
+ *              titles  for each track: int byte length (-1 for null), UTF-8 bytes
+ *              int     album count, then for each: long album id, long image id,
+ *                      int first track, int last track
+ *      int     MAGIC
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LibrarySnapshot {
+    private static final String TAG = "Symphony:LibrarySnapshot";
+    private static final String FILE_NAME = "library.snapshot";
+    private static final int MAGIC = 0x53594d50;        // "SYMP"
+    private static final int VERSION = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ScheduledExecutorService sSaver = Executors.newSingleThreadScheduledExecutor();
+    private static final AtomicInteger sSaveGeneration = new AtomicInteger();   // Newest save
+
+    private long mStamp;
+    private StringPool mStrings;
+    private ArrayList<Genre> mGenres;
+
+    private LibrarySnapshot(long stamp, StringPool strings, ArrayList<Genre> genres) {
+        mStamp = stamp;
+        mStrings = strings;
+        mGenres = genres;
+    }
+
+    public long getStamp() {
+        return mStamp;
+    }
+
+    public StringPool getStrings() {
+        return mStrings;
+    }
+
+    public ArrayList<Genre> getGenres() {
+        return mGenres;
+    }
+
+    public static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    public static void delete(Context context) {
+        sSaveGeneration.incrementAndGet();      // Anything waiting to be saved is out of date
+        if (!getFile(context).delete())
+            Log.d(TAG, "delete() No snapshot to delete.");
+    }
+
+    //
+    // Map and decode the snapshot. Returns null if there is no usable snapshot.
+    //
+    public static LibrarySnapshot load(Context context) {
+        File file = getFile(context);
+        if (!file.exists())
+            return null;
+
+        long startTime = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if ((buf.getInt() != MAGIC) || (buf.getInt() != VERSION)) {
+                Log.d(TAG, "load() Snapshot has wrong format.");
+                return null;
+            }
+            long stamp = buf.getLong();
+
+            String[] saved = new String[getCount(buf, 4)];
+            for (int i = 0; i < saved.length; i++)
+                saved[i] = getString(buf);
+            StringPool strings = new StringPool(saved);
+
+            int genreCount = getCount(buf, 16);
+            int songCount = 0;
+            ArrayList<Genre> genres = new ArrayList<>(genreCount);
+            for (int i = 0; i < genreCount; i++) {
+                Genre genre = new Genre(buf.getLong(), strings.get(buf.getInt()));
+                int n = buf.getInt();
+                if (n >= 0) {
+                    checkCount(buf, n, 8 + 8 + 4 * 4 + 4);
+                    long[] ids = getLongs(buf, n);
+                    long[] albumIds = getLongs(buf, n);
+                    int[] tracks = getInts(buf, n);
+                    int[] artists = getInts(buf, n);
+                    int[] albums = getInts(buf, n);
+                    int[] composers = getInts(buf, n);
+                    String[] titles = new String[n];
+                    for (int j = 0; j < n; j++)
+                        titles[j] = getString(buf);
+                    SongTable playlist = new SongTable(strings, n, ids, albumIds, tracks, titles,
+                            artists, albums, composers);
+
+                    int albumCount = getCount(buf, 24);
+                    ArrayList<Album> albumIndex = new ArrayList<>(albumCount);
+                    for (int j = 0; j < albumCount; j++) {
+                        long albumId = buf.getLong();
+                        long imageId = buf.getLong();
+                        int first = buf.getInt();
+                        int last = buf.getInt();
+                        String title = ((first >= 0) && (first < n)) ? playlist.getAlbum(first) : "";
+                        albumIndex.add(new Album(albumId, title, imageId, first, last));
+                    }
+                    genre.setPlaylist(playlist, albumIndex);
+                    songCount += n;
+                }
+                genres.add(genre);
+            }
+
+            if (buf.getInt() != MAGIC) {
+                Log.d(TAG, "load() Snapshot is truncated.");
+                return null;
+            }
+            Log.d(TAG, "load() " + genreCount + " genres, " + songCount + " tracks in " +
+                    (System.currentTimeMillis() - startTime) + "ms.");
+            return new LibrarySnapshot(stamp, strings, genres);
+        } catch (Exception e) {
+            Log.e(TAG, "load() Unable to read snapshot", e);
+            return null;
+        }
+    }
+
+    //
+    // Compute a stamp that changes whenever tracks are added, removed or modified
+    // or the genre list changes. Must not be called in the UI thread.
+    //
+    public static long computeStamp(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        long stamp = mix(MediaStore.getVersion(context).hashCode());
+
+        // Row order is not specified so combine the rows in an order independent way.
+        String[] audioProjection = {MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED};
+        Cursor audioCursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                audioProjection, null, null, null);
+        if (audioCursor != null) {
+            while (audioCursor.moveToNext())
+                stamp += mix(audioCursor.getLong(0) * 31 + audioCursor.getLong(1));
+            stamp += mix(audioCursor.getCount());
+            audioCursor.close();
+        }
+
+        String[] genreProjection = {MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME};
+        Cursor genreCursor = resolver.query(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                genreProjection, null, null, null);
+        if (genreCursor != null) {
+            while (genreCursor.moveToNext()) {
+                String name = genreCursor.getString(1);
+                stamp += mix(genreCursor.getLong(0) * 31 + (name == null ? 0 : name.hashCode()));
+            }
+            genreCursor.close();
+        }
+        return stamp;
+    }
+
+    //
+    // Write a snapshot of the genres in the background after delayMs, unless another save
+    // is asked for first. The genre playlists and album indexes are captured here, in the
+    // caller's thread, so later changes to the genres can not give the writer an
+    // inconsistent view. stamp must be from before any of the genres were read.
+    //
+    public static void saveAsync(Context context, ArrayList<Genre> genres, final long stamp,
+                                 long delayMs) {
+        final Context appContext = context.getApplicationContext();
+        final ArrayList<Genre> captured = new ArrayList<>(genres.size());
+        for (Genre g : genres) {
+            if (g.isCompound())
+                continue;               // Rebuilt from its parts when needed
+            Genre copy = new Genre(g.getId(), g.getName());
+            if (g.getPlaylist() != null)
+                copy.setPlaylist(g.getPlaylist(), g.getAlbums());
+            captured.add(copy);
+        }
+        final int generation = sSaveGeneration.incrementAndGet();
+        sSaver.schedule(() -> {
+            if (generation == sSaveGeneration.get())
+                save(appContext, captured, stamp, generation);
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // On the saver thread.
+    private static void save(Context context, ArrayList<Genre> genres, long stamp, int generation) {
+        long startTime = System.currentTimeMillis();
+
+        // All the genres share the library string pool. Genre names are added to it
+        // so they can be saved by index too.
+        StringPool strings = null;
+        for (Genre g : genres) {
+            if (g.getPlaylist() != null) {
+                strings = g.getPlaylist().getStrings();
+                break;
+            }
+        }
+        if (strings == null)
+            strings = new StringPool();
+        int[] names = new int[genres.size()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = strings.intern(genres.get(i).getName());
+        String[] saved = strings.toArray();
+
+        int songCount = 0;
+        File file = getFile(context);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(stamp);
+
+            out.writeInt(saved.length);
+            for (String s : saved)
+                putString(out, s);
+
+            out.writeInt(genres.size());
+            for (int i = 0; i < genres.size(); i++) {
+                Genre g = genres.get(i);
+                out.writeLong(g.getId());
+                out.writeInt(names[i]);
+                SongTable playlist = g.getPlaylist();
+                if ((playlist == null) || (playlist.getStrings() != strings)) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                int n = playlist.size();
+                out.writeInt(n);
+                putLongs(out, playlist.idColumn(), n);
+                putLongs(out, playlist.albumIdColumn(), n);
+                putInts(out, playlist.trackColumn(), n);
+                putInts(out, playlist.artistColumn(), n);
+                putInts(out, playlist.albumColumn(), n);
+                putInts(out, playlist.composerColumn(), n);
+                String[] titles = playlist.titleColumn();
+                for (int j = 0; j < n; j++)
+                    putString(out, titles[j]);
+                songCount += n;
+
+                List<Album> albumIndex = g.getAlbums();
+                out.writeInt(albumIndex.size());
+                for (Album a : albumIndex) {
+                    out.writeLong(a.getID());
+                    out.writeLong(a.getImageId());
+                    out.writeInt(a.getTrack());
+                    out.writeInt(a.getLastTrackIndex());
+                }
+            }
+            out.writeInt(MAGIC);
+        } catch (IOException e) {
+            Log.e(TAG, "save() Unable to write snapshot", e);
+            if (!tmpFile.delete())
+                Log.d(TAG, "save() Unable to delete " + tmpFile.getPath());
+            return;
+        }
+
+        if (generation != sSaveGeneration.get()) {
+            Log.d(TAG, "save() Overtaken by a newer save.");
+            if (!tmpFile.delete())
+                Log.d(TAG, "save() Unable to delete " + tmpFile.getPath());
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            Log.d(TAG, "save() Unable to rename " + tmpFile.getPath());
+            return;
+        }
+        Log.d(TAG, "save() " + genres.size() + " genres, " + songCount + " tracks in " +
+                (System.currentTimeMillis() - startTime) + "ms.");
+    }
+
+    //
+    // Check a snapshot against the media store in the background and report, in the
+    // UI thread, if it no longer matches.
+    //
+    public interface StaleListener {
+        void onLibrarySnapshotStale();
+    }
+
+    public static void validateAsync(Context context, long stamp, StaleListener listener) {
+        new Validator(context.getApplicationContext(), stamp, listener)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private static class Validator extends AsyncTask<Void, Void, Boolean> {
+        private Context mContext;
+        private long mStamp;
+        private StaleListener mListener;
+
+        Validator(Context context, long stamp, StaleListener listener) {
+            mContext = context;
+            mStamp = stamp;
+            mListener = listener;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                return computeStamp(mContext) == mStamp;
+            } catch (Exception e) {
+                Log.e(TAG, "Validator: Unable to compute stamp", e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean valid) {
+            Log.d(TAG, "Validator: snapshot valid=" + valid);
+            if (!valid)
+                mListener.onLibrarySnapshotStale();
+        }
+    }
+
+    //
+    // Local utility routines
+    //
+    private static String getString(ByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+        checkCount(buf, length, 1);
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    // A count of things each at least minBytes long, that must fit in what is left.
+    private static int getCount(ByteBuffer buf, int minBytes) throws IOException {
+        int count = buf.getInt();
+        checkCount(buf, count, minBytes);
+        return count;
+    }
+
+    private static void checkCount(ByteBuffer buf, int count, int minBytes) throws IOException {
+        if ((count < 0) || ((long) count * minBytes > buf.remaining()))
+            throw new IOException("Bad count " + count + " at " + buf.position());
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static long[] getLongs(ByteBuffer buf, int count) throws IOException {
+        checkCount(buf, count, 8);
+        long[] rslt = new long[count];
+        buf.asLongBuffer().get(rslt);
+        buf.position(buf.position() + count * 8);
+        return rslt;
+    }
+
+    private static int[] getInts(ByteBuffer buf, int count) throws IOException {
+        checkCount(buf, count, 4);
+        int[] rslt = new int[count];
+        buf.asIntBuffer().get(rslt);
+        buf.position(buf.position() + count * 4);
+        return rslt;
+    }
+
+    private static void putLongs(DataOutputStream out, long[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++)
+            out.writeLong(values[i]);
+    }
+
+    private static void putInts(DataOutputStream out, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++)
+            out.writeInt(values[i]);
+    }
+
+    // 64 bit finalizer from MurmurHash3, spreads the bits of each row before summing.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e53a87ca5L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -21,6 +21,7 @@ package org.fitchfamily.android.symphony;
 
 import android.Manifest;
 import android.annotation.TargetApi;
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
@@ -31,9 +32,9 @@ import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -56,6 +57,7 @@ import org.fitchfamily.android.symphony.MusicService.MusicBinder;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
@@ -74,12 +76,20 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     private static final String SAVED_TRACK_INDEX = "trackIndex";
     private static final String SAVED_TRACK_POSITION = "trackPosition";
     private static final String SAVED_TRACK_SHUFFLE_SEED = "trackShuffleSeed";
+    private static final long SNAPSHOT_SAVE_DELAY_MS = 10000;  // Quiet time before saving a genre load
 
     private ArrayList<Genre> genres;                    // All information about all genres
-    private ArrayList<Album> currentDisplayAlbums;      // Albums in currently displayed genre.
-    private ArrayList<Song> currentDisplayPlayList;     // Tracks/songs in genre currently being played
+    private PlaylistSnapshot currentDisplay;            // Tracks and albums in genre being displayed
+    private StringPool libraryStrings;                  // Artist, album, etc. names for all genres
+    private SortKeys sortKeys;                          // Album sort keys for all genres
 
     private ImageLoader mImageLoader;                   // LRU cache/background image loader
+    private GenreLoader genreLoader;                    // Background load of genre tracks, if any
+    private long pendingPickSongId = -1;                // Track picked while genre still loading
+    private LibraryObserver libraryObserver;            // Watches for music added or removed
+    private LibraryLoader libraryLoader;                // Background build of all genres, if any
+    private GenreCatalog genreCatalog;                  // Lookup and combining of genres
+    private long libraryStamp;                          // Media store stamp for the genres, 0 if not known
 
     //
     // Information to save display or playing state information
@@ -87,6 +97,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     private class PlayInfo {
         protected String genreName;        // Name of playing/display genre
         protected int trackId;             // ID of the playing/display track
+        protected long songId;             // Media store id of that track, -1 if not known
         protected int position;            // Play position of the track.
         protected int shuffle;             // Current shuffle mode
         protected long shuffleSeed;        // Shuffle seed used.
@@ -94,6 +105,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         PlayInfo() {
             genreName = "";
             trackId = 0;
+            songId = -1;
             position = 0;
             shuffle = MusicService.PLAY_SEQUENTIAL;
             shuffleSeed = 0;
@@ -103,12 +115,14 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
             if (playInfo != null) {
                 genreName = playInfo.genreName;
                 trackId = playInfo.trackId;
+                songId = playInfo.songId;
                 position = playInfo.position;
                 shuffle = playInfo.shuffle;
                 shuffleSeed = playInfo.shuffleSeed;
             } else {
                 genreName = "";
                 trackId = 0;
+                songId = -1;
                 position = 0;
                 shuffle = MusicService.PLAY_SEQUENTIAL;
                 shuffleSeed = 0;
@@ -137,6 +151,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
 
     // Viewing Genres
     private Spinner genreSpinner;
+    private ArrayAdapter<Genre> genreAdaptor;
 
     // Viewing Albums
     private Spinner albumSpinner;
@@ -151,7 +166,32 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
 
     //runs without a timer by reposting this handler at the end of the runnable
     private Handler timerHandler = new Handler();
-    private Runnable timerRunnable;
+    private Runnable timerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            //Log.d(TAG, "timerRunnable.run() entry");
+            updateSeekBar();
+            timerHandler.postDelayed(this, 1000);
+        }
+    };
+
+    //
+    // What the service last told us it is playing. The position is worked out from
+    // it as time passes so the seek bar needs nothing from the service.
+    private NowPlaying nowPlaying = NowPlaying.NONE;
+    private MusicService.Listener nowPlayingListener = new MusicService.Listener() {
+        @Override
+        public void onNowPlaying(NowPlaying state) {
+            nowPlaying = state;
+            if (paused)
+                return;
+            updateControls();
+            if (state.isPlaying())
+                startSeekTracking();
+            else
+                stopSeekTracking();
+        }
+    };
 
     //
     // The service that actually does the playing
@@ -206,8 +246,10 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         displayInfo = new PlayInfo(playingInfo);
 
         genres = new ArrayList<>();
-        currentDisplayPlayList = new ArrayList<>();
-        currentDisplayAlbums = new ArrayList<>();
+        currentDisplay = PlaylistSnapshot.EMPTY;
+        libraryStrings = new StringPool();
+        sortKeys = new SortKeys(getResources().getStringArray(R.array.ignore_prefixes), Locale.getDefault());
+        genreCatalog = new GenreCatalog(genres, sortKeys);
 
         setupDisplay(displayInfo);
 
@@ -241,13 +283,13 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     protected void onResume() {
         super.onResume();
         Log.d(TAG, "onResume() entry.");
-        if (musicSrv != null && musicSrv.hasTrack()) {
-            if (paused) {
-                paused = false;
-                updateControls();
-                if (isPlaying())
-                    startSeekTracking();
-            }
+        if (paused) {
+            paused = false;
+            if (musicSrv != null)
+                nowPlaying = musicSrv.getNowPlaying();
+            updateControls();
+            if (isPlaying())
+                startSeekTracking();
         }
     }
 
@@ -262,9 +304,18 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     protected void onDestroy() {
         Log.d(TAG, "onDestroy() entry.");
 
+        cancelGenreLoad();
+        cancelLibraryLoad();
+        genreCatalog.cancel();
+        if (libraryObserver != null) {
+            libraryObserver.unregister();
+            libraryObserver = null;
+        }
+
         savePreferences();
         stopService(playIntent);
         if (musicSrv != null) {
+            musicSrv.setListener(null);
             unbindService(musicConnection);
         }
         musicSrv = null;
@@ -320,6 +371,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
             MusicBinder binder = (MusicBinder) service;
             //get service
             musicSrv = binder.getService();
+            musicSrv.setListener(nowPlayingListener);
             musicSrv.setShuffle(displayInfo.shuffle);
             musicSrv.setShuffleSeed(displayInfo.shuffleSeed);
             shuffleSpinner.setSelection(displayInfo.shuffle);
@@ -337,10 +389,18 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         if (playInfo != null) {
             Genre myGenre = getGenreByName(playInfo.genreName);
             if ((myGenre != null) && (myGenre.getPlaylist() != null)) {
-                musicSrv.setList(myGenre.getPlaylist(), myGenre.getName());
+                musicSrv.setList(myGenre.getSnapshot(), myGenre.getName());
                 playingInfo.genreName = myGenre.getName();
 
                 if (playInfo.trackId >= 0) {
+                    // Follow the track if the library has changed under it.
+                    SongTable songs = myGenre.getSnapshot().getSongs();
+                    if ((playInfo.songId >= 0) && ((playInfo.trackId >= songs.size()) ||
+                            (songs.getId(playInfo.trackId) != playInfo.songId))) {
+                        int i = songs.indexOfId(playInfo.songId);
+                        if (i >= 0)
+                            playInfo.trackId = i;
+                    }
                     playingInfo.trackId = playInfo.trackId;
                     musicSrv.setTrack(playingInfo.trackId);
                     if (playInfo.position > 0) {
@@ -384,26 +444,33 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         Log.d(TAG, "songPicked() entry. Selected item = " + view.toString());
         int selectedItem = Integer.parseInt(view.getTag().toString());
         Log.d(TAG, "songPicked() selected= " + selectedItem);
-        displayInfo.trackId = Integer.parseInt(view.getTag().toString());
+        if (genreLoader != null) {
+            // Genre still loading, remember the track and play it when its
+            // final position is known.
+            if (selectedItem < currentDisplay.size())
+                pendingPickSongId = currentDisplay.getSongs().getId(selectedItem);
+            return;
+        }
+        playPickedTrack(selectedItem);
+    }
+
+    private void playPickedTrack(int trackIndex) {
+        displayInfo.trackId = trackIndex;
         if (!displayInfo.genreName.equals(playingInfo.genreName)) {
             Genre myGenre = getGenreByName(displayInfo.genreName);
             if (myGenre != null) {
-                musicSrv.setList(myGenre.getPlaylist(), myGenre.getName());
+                musicSrv.setList(myGenre.getSnapshot(), myGenre.getName());
                 playingInfo.genreName = displayInfo.genreName;
                 playingInfo.trackId = displayInfo.trackId;
             }
         }
         musicSrv.playTrack(displayInfo.trackId);
-        startSeekTracking();
-        updateControls();
     }
 
     private void playNext() {
         int permissionCheck = ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE);
         if (permissionCheck == PackageManager.PERMISSION_GRANTED) {
             musicSrv.playNext();
-            startSeekTracking();
-            updateControls();
         }
     }
 
@@ -411,8 +478,6 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         int permissionCheck = ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE);
         if (permissionCheck == PackageManager.PERMISSION_GRANTED) {
             musicSrv.playPrev();
-            startSeekTracking();
-            updateControls();
         }
     }
 
@@ -422,30 +487,23 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     public void start() {
         Log.d(TAG, "start() Entry.");
         musicSrv.go();
-        startSeekTracking();
     }
 
     @Override
     public void pause() {
         Log.d(TAG, "start() Entry.");
         musicSrv.pausePlayer();
-        stopSeekTracking();
     }
 
     @Override
     public int getDuration() {
-        if (musicSrv != null)
-            return musicSrv.getDuration();
-        return 0;
+        return nowPlaying.getDuration();
     }
 
     @Override
     public int getCurrentPosition() {
         // Log.d(TAG, "getCurrentPosition() Entry.");
-        if (musicSrv != null)
-            return musicSrv.getPosition();
-        return 0;
-
+        return nowPlaying.getPosition();
     }
 
     @Override
@@ -455,7 +513,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
 
     @Override
     public boolean isPlaying() {
-        return (musicSrv != null) && musicSrv.isPlaying();
+        return nowPlaying.isPlaying();
     }
 
     @Override
@@ -517,28 +575,6 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     }
 
 
-    //
-    // Sorting by name should ignore 'The ' and 'A ' prefixes.
-    //
-    // Rather than hardcode a language specific set of prefixes,
-    // get them from a string resource that can be easily extended and
-    // internationalized.
-    //
-    // Note that trailing spaces are dropped in XML so we a one here.
-    //
-    private String genSortTitle(String a) {
-        Resources res = getResources();
-        String[] prefixes = res.getStringArray(R.array.ignore_prefixes);
-        String a1 = a.trim();
-
-        for (String s : prefixes) {
-            String s1 = s + " ";
-            if (a1.startsWith(s1))
-                return a1.substring(s1.length()).trim();
-        }
-        return a1;
-    }
-
     private void setupDisplay(PlayInfo playInfo) {
         setContentView(R.layout.main_activity);
         initToolBar();
@@ -560,7 +596,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         mPlayingArtwork = findViewById(R.id.cover_art);
         mPlayingSongId = -1;
 
-        songAdt = new SongAdapter(this, currentDisplayPlayList);
+        songAdt = new SongAdapter(this, currentDisplay);
         songView.setAdapter(songAdt);
 
         int permissionCheck = ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE);
@@ -575,9 +611,14 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     private void setupGenreList(PlayInfo playInfo) {
         Log.d(TAG, "setupGenreList(" + playInfo.toString() + ") Entry.");
         getGenreList();
+        if ((libraryObserver == null) && !genres.isEmpty()) {
+            libraryObserver = new LibraryObserver(this, libraryStrings, sortKeys, libraryChangeListener);
+            libraryObserver.register();
+        }
         try {
-            ArrayAdapter<Genre> genreAdaptor = new ArrayAdapter(this, android.R.layout.simple_spinner_dropdown_item, genres);
+            genreAdaptor = new ArrayAdapter(this, android.R.layout.simple_spinner_dropdown_item, genres);
             genreSpinner.setAdapter(genreAdaptor);
+            genreSpinner.setOnLongClickListener(v -> chooseGenreCombination());
             genreSpinner.setOnItemSelectedListener(new OnItemSelectedListener() {
 
                 @Override
@@ -594,7 +635,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
                 }
             });
 
-            albumAdaptor = new AlbumSpinnerAdaptor(this, currentDisplayAlbums, mImageLoader);
+            albumAdaptor = new AlbumSpinnerAdaptor(this, currentDisplay, mImageLoader);
             albumSpinner.setAdapter(albumAdaptor);
             albumSpinner.setOnItemSelectedListener(new OnItemSelectedListener() {
 
@@ -604,10 +645,11 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
                     // On selecting a spinner item
                     Log.d(TAG, "albumSpinner.setOnItemSelectedListener.onItemSelected(" + position + ")");
                     try {
-                        Album selectedAlbum = currentDisplayAlbums.get(position);
-                        int lastTrack = currentDisplayPlayList.size();
-                        if ((position + 1) < currentDisplayAlbums.size())
-                            lastTrack = currentDisplayAlbums.get(position + 1).getTrack() - 1;
+                        List<Album> albums = currentDisplay.getAlbums();
+                        Album selectedAlbum = albums.get(position);
+                        int lastTrack = currentDisplay.size();
+                        if ((position + 1) < albums.size())
+                            lastTrack = albums.get(position + 1).getTrack() - 1;
                         int firstTrack = selectedAlbum.getTrack();
                         if ((displayInfo.trackId < firstTrack) ||
                                 (displayInfo.trackId >= lastTrack))
@@ -667,6 +709,12 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
                     case 2:
                         displayInfo.shuffle = MusicService.PLAY_RANDOM_ALBUM;
                         break;
+                    case 3:
+                        displayInfo.shuffle = MusicService.PLAY_SMART_SONG;
+                        break;
+                    case 4:
+                        displayInfo.shuffle = MusicService.PLAY_SMART_ALBUM;
+                        break;
                 }
                 if (musicSrv != null) {
                     musicSrv.setShuffle(displayInfo.shuffle);
@@ -713,6 +761,18 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
 
         Log.d(TAG, "getGenreList() entry");
         if (genres.size() == 0) {
+            // Use what we knew about the library last time we ran if we can. It
+            // is checked against the media store in the background.
+            LibrarySnapshot snapshot = LibrarySnapshot.load(this);
+            if (snapshot != null) {
+                libraryStrings = snapshot.getStrings();
+                genres.addAll(snapshot.getGenres());
+                libraryStamp = snapshot.getStamp();
+                genreCatalog.update();
+                LibrarySnapshot.validateAsync(this, snapshot.getStamp(), snapshotStaleListener);
+                return;
+            }
+
             ContentResolver genreResolver = getContentResolver();
             Cursor genreCursor = genreResolver.query(genreUri, null, null, null, null);
 
@@ -729,66 +789,142 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
                 genreCursor.close();
             }
             Collections.sort(genres, (o1, o2) -> o1.getName().compareTo(o2.getName()));
+            genreCatalog.update();
+            loadLibrary();
+        }
+    }
+
+    //
+    // With no snapshot to start from we build every genre in the background so
+    // that switching genres later doesn't need to query the media store. The
+    // displayed genre is still loaded on its own so it shows up quickly.
+    //
+    private void loadLibrary() {
+        cancelLibraryLoad();
+        if (genres.isEmpty())
+            return;
+        libraryLoader = new LibraryLoader(this, genres, libraryStrings, sortKeys, libraryLoadListener);
+        libraryLoader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void cancelLibraryLoad() {
+        if (libraryLoader != null) {
+            Log.d(TAG, "cancelLibraryLoad()");
+            libraryLoader.cancel(false);
+            libraryLoader = null;
         }
     }
 
-    private ArrayList<Song> getGenreSongs(long genreId) {
-        Log.d(TAG, "getGenreSongs() entry");
-
-        ArrayList<Song> rsltPlayList = new ArrayList<>();
-        final Uri musicUri = MediaStore.Audio.Genres.Members.getContentUri("external", genreId);
-
-        ContentResolver musicResolver = getContentResolver();
-        Cursor musicCursor = musicResolver.query(musicUri, null, null, null, null);
-
-        if (musicCursor != null && musicCursor.moveToFirst()) {
-            //get columns
-            int idColumn = musicCursor.getColumnIndex
-                    (MediaStore.Audio.Media._ID);
-            int albumColumn = musicCursor.getColumnIndex
-                    (MediaStore.Audio.Media.ALBUM);
-            int albumIdColumn = musicCursor.getColumnIndex
-                    (MediaStore.Audio.Media.ALBUM_ID);
-            int titleColumn = musicCursor.getColumnIndex
-                    (android.provider.MediaStore.Audio.Media.TITLE);
-            int composerColumn = musicCursor.getColumnIndex
-                    (MediaStore.Audio.Media.COMPOSER);
-            int artistColumn = musicCursor.getColumnIndex
-                    (android.provider.MediaStore.Audio.Media.ARTIST);
-            int trackColumn = musicCursor.getColumnIndex
-                    (MediaStore.Audio.Media.TRACK);
-            //add songs to list
-            do {
-                // Log.d(TAG, "getGenreSongs(): Adding '"+musicCursor.getString(titleColumn)+"' ("+musicCursor.getString(albumColumn)+")");
-                rsltPlayList.add(new Song(musicCursor.getLong(idColumn),
-                        musicCursor.getString(titleColumn),
-                        musicCursor.getString(artistColumn),
-                        musicCursor.getString(albumColumn),
-                        genSortTitle(musicCursor.getString((albumColumn))),
-                        musicCursor.getLong(albumIdColumn),
-                        musicCursor.getString(composerColumn),
-                        musicCursor.getInt(trackColumn)));
+    private LibraryLoader.Listener libraryLoadListener = new LibraryLoader.Listener() {
+        @Override
+        public void onLibraryLoaded(LibraryLoader.Result result) {
+            Log.d(TAG, "onLibraryLoaded() " + result.size() + " genres.");
+            libraryLoader = null;
+
+            // If the displayed genre is still loading on its own, this is quicker.
+            Genre loading = null;
+            long pick = pendingPickSongId;
+            if (genreLoader != null) {
+                loading = genreLoader.getGenre();
+                cancelGenreLoad();
+                pendingPickSongId = pick;
+            }
+
+            for (int i = 0; i < result.size(); i++) {
+                Genre genre = result.getGenre(i);
+                if (genre.getPlaylist() == null)
+                    genre.setPlaylist(result.getPlaylist(i), result.getAlbums(i));
             }
-            while (musicCursor.moveToNext());
-            musicCursor.close();
+            genreCatalog.update();
+            libraryStamp = result.getStamp();
+
+            if ((loading != null) && (loading.getPlaylist() != null))
+                genreLoadListener.onGenreSongsLoaded(loading, loading.getPlaylist());
+            saveLibrarySnapshot(true);
         }
-        Collections.sort(rsltPlayList, (a, b) -> {
-            // Sort by album title. If two titles the same, differentiate by ID.
-            // Within album, sort by track. If two tracks claim the same position
-            // differentiate by title.
-
-            int rslt = a.getAlbumSortTitle().compareTo(b.getAlbumSortTitle());
-            if (rslt == 0)
-                rslt = (int) (a.getAlbumId() - b.getAlbumId());
-            if (rslt == 0)
-                rslt = a.getTrack() - b.getTrack();
-            if (rslt == 0)
-                rslt = a.getTitle().compareTo(b.getTitle());
-            return rslt;
-        });
-        return rsltPlayList;
+    };
+
+    //
+    // Save what we know of the library for the next start, now or once things have
+    // been quiet for a while. Not until we know a stamp from before it was read: on
+    // a first start that is when the library load is done, and it saves then.
+    //
+    private void saveLibrarySnapshot(boolean now) {
+        if (libraryStamp == 0)
+            return;
+        LibrarySnapshot.saveAsync(this, genres, libraryStamp, now ? 0 : SNAPSHOT_SAVE_DELAY_MS);
     }
 
+    //
+    // The media store has changed since our library snapshot was written. Forget
+    // the snapshot and everything loaded from it, then reload the genre list and
+    // the displayed genre from the media store.
+    //
+    private LibrarySnapshot.StaleListener snapshotStaleListener = new LibrarySnapshot.StaleListener() {
+        @Override
+        public void onLibrarySnapshotStale() {
+            Log.d(TAG, "onLibrarySnapshotStale() Reloading library.");
+            LibrarySnapshot.delete(MainActivity.this);
+            libraryStamp = 0;
+            cancelGenreLoad();
+            cancelLibraryLoad();
+            genres.clear();
+            getGenreList();
+            if (genreAdaptor != null)
+                genreAdaptor.notifyDataSetChanged();
+            if (!genres.isEmpty()) {
+                int genreIndex = getGenreIndex(displayInfo.genreName);
+                setDisplayGenre(genreIndex);
+                genreSpinner.setSelection(genreIndex);
+            }
+        }
+    };
+
+    //
+    // Music has been added, removed or changed while we are running. Bring the
+    // genres we have loaded up to date and pass the change on to the service if
+    // it is playing one of them.
+    //
+    private LibraryObserver.Listener libraryChangeListener = new LibraryObserver.Listener() {
+        @Override
+        public void onLibraryChanged(LibraryObserver.Changes changes) {
+            Log.d(TAG, "onLibraryChanged() entry.");
+            boolean genreAdded = false;
+            for (Genre genre : changes.getGenres()) {
+                if (genreCatalog.getById(genre.getId()) == null) {
+                    addGenre(genre);
+                    genreAdded = true;
+                }
+            }
+            if (genreAdded)
+                genreSpinner.setSelection(getGenreIndex(displayInfo.genreName));
+
+            boolean changed = false;
+            for (Genre genre : genres) {
+                SongTable updated = changes.applyTo(genre, sortKeys);
+                if (updated == null)
+                    continue;
+                changed = true;
+                genre.setPlaylist(updated);
+                if ((musicSrv != null) && genre.getName().equals(musicSrv.getGenre()))
+                    musicSrv.updateList(genre.getSnapshot());
+                if (genre.getName().equals(displayInfo.genreName) && (genreLoader == null))
+                    showGenrePlaylist(genre);
+            }
+            if (changed)
+                updateCompoundGenres();
+            if ((changed || genreAdded) && (libraryStamp != 0)) {
+                libraryStamp = changes.getStamp();
+                saveLibrarySnapshot(false);
+            }
+        }
+
+        @Override
+        public void onLibraryReloadNeeded() {
+            snapshotStaleListener.onLibrarySnapshotStale();
+        }
+    };
+
     // Display the genre indicated by the position in the genre list.
     //
     // If the playlist for the genre is empty, then create it and the
@@ -800,59 +936,140 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     private void setDisplayGenre(int Position) {
         Log.d(TAG, "setDisplayGenre(" + Position + ") Entry.");
         Genre selectedGenre = genres.get(Position);
-        ArrayList<Song> genrePlaylist;
+        SongTable genrePlaylist;
 
         if ((selectedGenre != null) &&
                 (displayInfo != null)) {
 
+            if (!selectedGenre.getName().equals(displayInfo.genreName)) {
+                displayInfo.trackId = 0;
+            }
+            displayInfo.genreName = selectedGenre.getName();
+
             // If this is the first time the genre has been selected then
             // the play list will be undefined. So build the list on first
-            // use.
+            // use. That is done in the background and the display is
+            // updated as the tracks arrive.
             genrePlaylist = selectedGenre.getPlaylist();
-            if ((genrePlaylist == null) || genrePlaylist.isEmpty()) {
-                genrePlaylist = getGenreSongs(selectedGenre.getId());
-                selectedGenre.setPlaylist(genrePlaylist);
+            if (genrePlaylist == null) {
+                loadGenrePlaylist(selectedGenre);
+            } else {
+                cancelGenreLoad();
+                showGenrePlaylist(selectedGenre);
             }
-            currentDisplayPlayList.clear();
-            currentDisplayPlayList.addAll(genrePlaylist);
+        }
+    }
 
-            ArrayList<Album> genreAlbums = Album.getAlbumIndexes(genrePlaylist);
+    private void showGenrePlaylist(Genre selectedGenre) {
+        Log.d(TAG, "showGenrePlaylist(" + selectedGenre.getName() + ") Entry.");
+        showPlaylist(selectedGenre.getSnapshot());
+
+        //
+        // If we are changing to the genre that is currently playing
+        // then select the track and track album currently playing.
+        // Otherwise select the first track (and its album) in the genre.
+        //
+        if ((playingInfo != null) &&
+                playingInfo.genreName.equals(selectedGenre.getName()) &&
+                (musicSrv != null)) {
+            displayInfo.trackId = Math.max(0, musicSrv.getTrackIndex());
+        }
 
-            currentDisplayAlbums.clear();
-            if (genreAlbums != null)
-                currentDisplayAlbums.addAll(genreAlbums);
-            if (albumAdaptor != null)
-                albumAdaptor.notifyDataSetChanged();
+        selectDisplayAlbum(displayInfo.trackId);
+        songView.setSelection(displayInfo.trackId);
+    }
 
-            if (!selectedGenre.getName().equals(displayInfo.genreName)) {
-                displayInfo.trackId = 0;
-            }
+    // Point the track list and album spinner at a play list. Nothing is copied.
+    private void showPlaylist(PlaylistSnapshot playlist) {
+        currentDisplay = (playlist != null) ? playlist : PlaylistSnapshot.EMPTY;
+        songAdt.setPlaylist(currentDisplay);
+        if (albumAdaptor != null)
+            albumAdaptor.setPlaylist(currentDisplay);
+    }
 
-            //
-            // If we are changing to the genre that is currently playing
-            // then select the track and track album currently playing.
-            // Otherwise select the first track (and its album) in the genre.
-            //
-            if ((playingInfo != null) &&
-                    playingInfo.genreName.equals(selectedGenre.getName()) &&
-                    (musicSrv != null)) {
-                displayInfo.trackId = Math.max(0, musicSrv.getTrackIndex());
-            }
-            displayInfo.genreName = selectedGenre.getName();
-            songAdt.notifyDataSetChanged();
+    //
+    // Start a background load of the tracks in a genre. Any load already running
+    // for some other genre is no longer of interest and is cancelled. If we are
+    // already loading the requested genre (e.g. the display was rebuilt after a
+    // configuration change) we let that load continue.
+    //
+    private void loadGenrePlaylist(Genre genre) {
+        if ((genreLoader != null) && (genreLoader.getGenre() == genre)) {
+            Log.d(TAG, "loadGenrePlaylist(" + genre.getName() + ") already loading.");
+            return;
+        }
+        cancelGenreLoad();
 
-            selectDisplayAlbum(displayInfo.trackId);
-            songView.setSelection(displayInfo.trackId);
+        showPlaylist(PlaylistSnapshot.EMPTY);
+
+        if (genre.isCompound()) {
+            resolveCompoundGenre(genre);
+            return;
+        }
+        genreLoader = new GenreLoader(getContentResolver(), genre, libraryStrings, sortKeys, genreLoadListener);
+        // Don't queue behind the artwork extraction tasks on the serial executor.
+        genreLoader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void cancelGenreLoad() {
+        if (genreLoader != null) {
+            Log.d(TAG, "cancelGenreLoad(" + genreLoader.getGenre().getName() + ")");
+            genreLoader.cancel(false);
+            genreLoader = null;
         }
+        pendingPickSongId = -1;
     }
 
+    private GenreLoader.Listener genreLoadListener = new GenreLoader.Listener() {
+        @Override
+        public void onGenreSongsProgress(Genre genre, SongTable songsSoFar) {
+            if (!genre.getName().equals(displayInfo.genreName))
+                return;
+            showPlaylist(PlaylistSnapshot.of(songsSoFar));
+        }
+
+        @Override
+        public void onGenreSongsLoaded(Genre genre, SongTable songs) {
+            Log.d(TAG, "onGenreSongsLoaded(" + genre.getName() + ") " + songs.size() + " tracks.");
+            genre.setPlaylist(songs);
+            genreCatalog.update();
+            if (genreLoader != null && genreLoader.getGenre() == genre)
+                genreLoader = null;
+            if (!genre.isCompound())
+                saveLibrarySnapshot(false);
+            if (!genre.getName().equals(displayInfo.genreName))
+                return;
+
+            // The saved play state could not be given to the service until the
+            // tracks for its genre were known.
+            if ((musicSrv != null) && (musicSrv.getGenre() == null) &&
+                    (playingInfo != null) && genre.getName().equals(playingInfo.genreName)) {
+                initializeMusicServerPlaylist(playingInfo);
+            }
+
+            showGenrePlaylist(genre);
+
+            // The user picked a track before the sorting was finished so its
+            // position may have changed. Find it and play it now.
+            if (pendingPickSongId >= 0) {
+                for (int i = 0; i < songs.size(); i++) {
+                    if (songs.getId(i) == pendingPickSongId) {
+                        playPickedTrack(i);
+                        break;
+                    }
+                }
+                pendingPickSongId = -1;
+            }
+        }
+    };
+
     private Song getTrackInfo(int trackId) {
         Log.d(TAG, "getTrackInfo(" + trackId + ") Entry.");
-        if ((currentDisplayPlayList != null) && !currentDisplayPlayList.isEmpty()) {
-            if (trackId >= currentDisplayPlayList.size())
+        if (!currentDisplay.isEmpty()) {
+            if (trackId >= currentDisplay.size())
                 trackId = 0;
             displayInfo.trackId = trackId;
-            return currentDisplayPlayList.get(trackId);
+            return currentDisplay.getSongs().get(trackId);
         }
         return null;
     }
@@ -861,15 +1078,9 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         Log.d(TAG, "selectDisplayAlbum(" + trackId + ") Entry.");
         Song displaySong = getTrackInfo(trackId);
         if (displaySong != null) {
-            String albumTitle = displaySong.getAlbum();
-
-            for (int i = 0; i < currentDisplayAlbums.size(); i++) {
-
-                if (currentDisplayAlbums.get(i).getTitle().compareTo(albumTitle) == 0) {
-                    albumSpinner.setSelection(i);
-                    return;
-                }
-            }
+            int albumIndex = currentDisplay.getAlbumIndex(displayInfo.trackId);
+            if (albumIndex >= 0)
+                albumSpinner.setSelection(albumIndex);
         }
     }
 
@@ -880,14 +1091,12 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
             return 0;
         }
 
-        for (int i = 0; i < genres.size(); i++) {
-            if (genres.get(i).getName().equals(name)) {
-                Log.d(TAG, "getGenreIndex('" + name + "') is index " + i);
-                return i;
-            }
+        int rslt = findGenre(name);
+        if (rslt < 0) {
+            Log.d(TAG, "getGenreIndex(): No match for genre name.");
+            return 0;
         }
-        Log.d(TAG, "getGenreIndex(): No match for genre name.");
-        return 0;
+        return rslt;
     }
 
     private Genre getGenreByName(String name) {
@@ -902,15 +1111,130 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
             return genres.get(0);
         }
 
-        for (int i = 0; i < genres.size(); i++) {
-            if (genres.get(i).getName().equals(name)) {
-                Log.d(TAG, "getGenreByName('" + name + "') is index " + i);
-                return genres.get(i);
+        int i = findGenre(name);
+        if (i < 0) {
+            Log.d(TAG, "getGenreByName('" + name + "'): No match for genre name.");
+            return genres.get(0);
+        }
+        return genres.get(i);
+    }
+
+    //
+    // Position of the named genre in the genre list, -1 if not found. A genre made
+    // from others (e.g. saved as the playing genre last time we ran) is added to the
+    // list with no play list, like a genre not yet loaded. Its tracks are worked out
+    // in the background when it is displayed, see resolveCompoundGenre().
+    //
+    private int findGenre(String name) {
+        int rslt = genreCatalog.indexOf(name);
+        if ((rslt < 0) && GenreCatalog.isCompoundName(name)) {
+            addGenre(new Genre(Genre.COMPOUND_ID, name));
+            rslt = genreCatalog.indexOf(name);
+        }
+        return rslt;
+    }
+
+    //
+    // Work out the tracks of a genre made from others. When they are known it is
+    // treated like any other genre that has finished loading. If its parts are not
+    // loaded yet the catalog waits for them, the genre stays on the list. If it can't
+    // be made (one of its parts has gone) it is taken off the list again.
+    //
+    private void resolveCompoundGenre(final Genre genre) {
+        genreCatalog.resolve(genre.getName(), rebuilt -> {
+            if (genres.indexOf(genre) < 0)
+                return;
+            if (rebuilt != null) {
+                genreLoadListener.onGenreSongsLoaded(genre, rebuilt.getPlaylist());
+                return;
+            }
+            Log.d(TAG, "resolveCompoundGenre(" + genre.getName() + ") can't be made.");
+            genres.remove(genre);
+            genreCatalog.update();
+            if (genreAdaptor != null)
+                genreAdaptor.notifyDataSetChanged();
+            if (genre.getName().equals(displayInfo.genreName)) {
+                setDisplayGenre(0);
+                genreSpinner.setSelection(0);
             }
+        });
+    }
+
+    // Add a genre to the list, keeping it in order by name.
+    private void addGenre(Genre genre) {
+        genres.add(genre);
+        Collections.sort(genres, (o1, o2) -> o1.getName().compareTo(o2.getName()));
+        genreCatalog.update();
+        if (genreAdaptor != null)
+            genreAdaptor.notifyDataSetChanged();
+    }
+
+    //
+    // Long press on the genre spinner lets the user pick several genres and play
+    // either all the tracks in any of them or only the tracks in all of them.
+    //
+    private boolean chooseGenreCombination() {
+        final ArrayList<Genre> choices = new ArrayList<>();
+        for (Genre g : genres) {
+            if (!g.isCompound() && (g.getPlaylist() != null))
+                choices.add(g);
+        }
+        if (choices.size() < 2)
+            return false;
+        genreCatalog.prepare();         // Likely done by the time a choice is made
+
+        String[] names = new String[choices.size()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = choices.get(i).getName();
+        final boolean[] checked = new boolean[names.length];
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.combine_genres_title)
+                .setMultiChoiceItems(names, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton(R.string.combine_genres_any, (dialog, which) -> combineGenres(choices, checked, false))
+                .setNeutralButton(R.string.combine_genres_all, (dialog, which) -> combineGenres(choices, checked, true))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+        return true;
+    }
+
+    private void combineGenres(ArrayList<Genre> choices, boolean[] checked, boolean intersect) {
+        ArrayList<Genre> parts = new ArrayList<>();
+        for (int i = 0; i < checked.length; i++) {
+            if (checked[i])
+                parts.add(choices.get(i));
         }
+        if (parts.size() < 2)
+            return;
+        genreCatalog.combine(parts, intersect, compound -> {
+            if (compound == null)
+                return;
+            int genreIndex = genreCatalog.indexOf(compound.getName());
+            if (genreIndex < 0) {
+                addGenre(compound);
+                genreIndex = genreCatalog.indexOf(compound.getName());
+            }
+            genreSpinner.setSelection(genreIndex);
+        });
+    }
 
-        Log.d(TAG, "getGenreByName('" + name + "'): No match for genre name.");
-        return genres.get(0);
+    // Rebuild the genres made from others after the genres they are made from change.
+    private void updateCompoundGenres() {
+        genreCatalog.update();
+        for (int i = 0; i < genres.size(); i++) {
+            final Genre g = genres.get(i);
+            if (!g.isCompound() || (g.getPlaylist() == null))
+                continue;
+            genreCatalog.resolve(g.getName(), rebuilt -> {
+                if ((rebuilt == null) || (genres.indexOf(g) < 0))
+                    return;
+                g.setPlaylist(rebuilt.getPlaylist());
+                if ((musicSrv != null) && g.getName().equals(musicSrv.getGenre()))
+                    musicSrv.updateList(g.getSnapshot());
+                if (g.getName().equals(displayInfo.genreName) && (genreLoader == null))
+                    showGenrePlaylist(g);
+            });
+        }
     }
 
     private void savePreferences() {
@@ -941,10 +1265,26 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         }
     }
 
+    //
+    // The service's journal is saved as it plays, so when there is one it is at
+    // least as recent as our preferences, which are only saved when we stop.
+    //
     private PlayInfo restorePreferences() {
         Log.d(TAG, "restorePreferences() Entry.");
         PlayInfo saved = new PlayInfo();
 
+        PlaybackJournal.Checkpoint checkpoint = PlaybackJournal.read(this);
+        if ((checkpoint != null) && (checkpoint.getGenre() != null) && (checkpoint.getTrackIndex() >= 0)) {
+            Log.d(TAG, "restorePreferences() from checkpoint saved at " + checkpoint.getSavedAt());
+            saved.genreName = checkpoint.getGenre();
+            saved.shuffle = checkpoint.getShuffle();
+            saved.trackId = checkpoint.getTrackIndex();
+            saved.songId = checkpoint.getSongId();
+            saved.position = checkpoint.getPosition();
+            saved.shuffleSeed = checkpoint.getShuffleSeed();
+            return saved;
+        }
+
         SharedPreferences prefs = getSharedPreferences(SYMPHONY_PREFS_NAME, MODE_PRIVATE);
 
         saved.genreName = prefs.getString(SAVED_GENRE_NAME, null);
@@ -986,10 +1326,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
 
     private void updateCurrentTrackInfo() {
 
-        Song currentTrack = null;
-        if (musicSrv != null) {
-            currentTrack = musicSrv.getCurrentSong();
-        }
+        Song currentTrack = nowPlaying.getSong();
 
         if (currentTrack != null) {
             if (currentTrack.getId() != mPlayingSongId) {
@@ -1016,15 +1353,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     }
 
     private void startSeekTracking() {
-        timerRunnable = new Runnable() {
-            @Override
-            public void run() {
-                //Log.d(TAG, "timerRunnable.run() entry");
-                updateSeekBar();
-                updateCurrentTrackInfo();
-                timerHandler.postDelayed(this, 1000);
-            }
-        };
+        timerHandler.removeCallbacks(timerRunnable);
         timerHandler.post(timerRunnable);
     }
 
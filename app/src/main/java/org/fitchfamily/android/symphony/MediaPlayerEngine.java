@@ -0,0 +1,151 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Each TrackPlayer is a MediaPlayer, chained to the next with setNextMediaPlayer(). This is
+ *    how the service has always played tracks.
+ * 2. The MediaPlayer is created on the calling thread so its callbacks come back to that
+ *    thread's Looper.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.PowerManager;
+
+import java.io.IOException;
+
+public class MediaPlayerEngine implements PlaybackEngine {
+    private final Context mContext;
+
+    public MediaPlayerEngine(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public TrackPlayer newPlayer(TrackPlayer.Listener listener) {
+        return new Player(mContext, listener);
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private static class Player implements TrackPlayer, MediaPlayer.OnPreparedListener,
+            MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener {
+        private final MediaPlayer mp;
+        private final TrackPlayer.Listener listener;
+
+        Player(Context context, TrackPlayer.Listener listener) {
+            this.listener = listener;
+            mp = new MediaPlayer();
+            mp.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+            mp.setOnPreparedListener(this);
+            mp.setOnCompletionListener(this);
+            mp.setOnErrorListener(this);
+            mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        }
+
+        @Override
+        public void setDataSource(Context context, Uri uri) throws IOException {
+            mp.setDataSource(context, uri);
+        }
+
+        @Override
+        public void prepareAsync() {
+            mp.prepareAsync();
+        }
+
+        @Override
+        public void start() {
+            mp.start();
+        }
+
+        @Override
+        public void pause() {
+            mp.pause();
+        }
+
+        @Override
+        public void seekTo(int msec) {
+            mp.seekTo(msec);
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mp.isPlaying();
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            return mp.getCurrentPosition();
+        }
+
+        @Override
+        public int getDuration() {
+            return mp.getDuration();
+        }
+
+        @Override
+        public long getCompletedAt() {
+            return 0;                       // MediaPlayer doesn't say
+        }
+
+        @Override
+        public void setNextPlayer(TrackPlayer next) {
+            mp.setNextMediaPlayer((next != null) ? ((Player) next).mp : null);
+        }
+
+        @Override
+        public void setVolume(float volume) {
+            mp.setVolume(volume, volume);
+        }
+
+        @Override
+        public void reset() {
+            mp.reset();
+            mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        }
+
+        @Override
+        public void release() {
+            mp.release();
+        }
+
+        @Override
+        public void onPrepared(MediaPlayer player) {
+            listener.onPrepared(this);
+        }
+
+        @Override
+        public void onCompletion(MediaPlayer player) {
+            listener.onCompletion(this);
+        }
+
+        @Override
+        public boolean onError(MediaPlayer player, int what, int extra) {
+            listener.onError(this, what, extra);
+            return false;
+        }
+    }
+}
@@ -19,34 +19,33 @@
 
 package org.fitchfamily.android.symphony;
 
-import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.graphics.Bitmap;
 import android.media.AudioManager;
-import android.media.MediaMetadata;
-import android.media.MediaPlayer;
 import android.media.session.MediaSession;
 import android.media.session.MediaSessionManager;
 import android.media.session.PlaybackState;
 import android.net.Uri;
 import android.os.Binder;
-import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import androidx.core.app.NotificationCompat;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
@@ -66,6 +65,26 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
  *      We also have to maintain information about the prepared media player (which, borrowing
  *      from baseball, we call the "on deck" instance.
  *
+ *      Preparing a track takes time, more on a slow SD card. If the on deck track is shorter
+ *      than that (a short movement, say) the track after it won't be ready when it ends and
+ *      there is a gap. So we keep a few more tracks prepared "in the hole" behind the on deck
+ *      track. We time each prepare and keep adding prepared tracks until their playing time
+ *      comfortably covers the time to prepare another, up to a limit on how many players
+ *      (and their decoders) we hold at once. For normal length tracks only the on deck track
+ *      is prepared.
+ *
+ *      The players come from a PlaybackEngine. The usual one gives each track a MediaPlayer
+ *      and chains them with setNextMediaPlayer(). The codec engine decodes the tracks itself
+ *      and plays them through one AudioTrack with the encoder delay and padding trimmed, so
+ *      there is no gap at all. The use_codec_engine resource picks which.
+ *
+ *  Skipping
+ *      Skipping to the next track just starts the on deck player if it is ready. And rather
+ *      than throwing away the player of the track we skip (or that finishes) we keep it,
+ *      paused at its start, as the "previous" player. Skipping back then starts that, and
+ *      the track we left becomes the on deck track again. Neither direction has to wait for
+ *      a track to be prepared. After skipping back we prepare the track before that in turn.
+ *
  *  Random play
  *      Unfortunately, the user doesn't really want truly random playback. For example, if a
  *      playlist has only 10 tracks and we randomly choose the next track to play there is a
@@ -77,6 +96,10 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
  *      maintain an index into the shuffle list which we simply increment, the track (or album)
  *      to play is based on our index into the shuffle list.
  *
+ *      The shuffle lists are ordered by a hash of the shuffle seed and the song (or album)
+ *      id rather than by dealing a deck (see ShuffleOrder). So saving the seed is enough to
+ *      get the same order back, even if tracks have been added or removed in the meantime.
+ *
  *      The next complication is that if the user selects a specific track to play our shuffle
  *      list index is not synchronized with their selection and it is possible that the track
  *      (or album) we select next may be the same track (album) that they selected. To avoid
@@ -84,6 +107,38 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
  *      we need to reset our shuffle index so that it point to the entry in the shuffle list
  *      for the user's desired track.
  *
+ *  Threads
+ *      Everything that touches the media players runs on one playback thread, fed commands
+ *      by a Handler. The players are created on that thread so their prepared, completion and
+ *      error callbacks come to it too, and no locking is needed. The public methods just post
+ *      a command and return, so the UI thread never waits on a prepare or on another thread.
+ *
+ *      Commands that replace one another are collapsed while they wait: five quick presses of
+ *      next become a single skip of five tracks and only that track is prepared. Only a skip
+ *      that is the last command posted is added to, so a skip never moves past a command given
+ *      between the presses (next, pause, next is two skips with the pause between). Likewise
+ *      only the last of a run of seeks is done. A seek is only ever into the track playing, so
+ *      skipping, or picking a track, drops any seek still waiting, and picking a track drops
+ *      any skips too.
+ *
+ *      What is playing, and how far into it, is published by the playback thread as an
+ *      immutable NowPlaying after each command or player event, when it has changed. The
+ *      activity, the media session and the notification are given it and work out the
+ *      position from it as the track plays, so nobody polls the player. The query methods
+ *      answer from it too.
+ *
+ *  Telemetry
+ *      To see where gaps come from the playback thread times each prepare, how long the on
+ *      deck track was ready before it was needed, the silence between tracks and how long a
+ *      skip takes to be heard, and counts errors (see PlaybackStats). dump() prints them for
+ *      "dumpsys activity service" and getStats() gives them to code in the app.
+ *
+ *  Checkpoints
+ *      The activity saves what is playing in its preferences when it stops, but the process
+ *      can be killed while we play in the background without that happening. So we also save
+ *      the genre, track, position and shuffle in a PlaybackJournal every few seconds while
+ *      playing and on every change, and the activity resumes from that when it is there.
+ *
  *  Restoring previous play state
  *      We would like to allow the overall app to be able to resume whatever album/track they
  *      were listening to last time the app was run. To do that, we need to be able to distinquish
@@ -92,19 +147,65 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
  *      a track and once prepared position the playback but not actually begin to play it. We handle
  *      that by two values: deferredGo and deferredPosition.
  */
-public class MusicService extends Service implements
-        MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
-        MediaPlayer.OnCompletionListener {
+public class MusicService extends Service implements TrackPlayer.Listener {
 
     public static final int PLAY_SEQUENTIAL = 0;
     public static final int PLAY_RANDOM_SONG = 1;
     public static final int PLAY_RANDOM_ALBUM = 2;
+    public static final int PLAY_SMART_SONG = 3;       // Random, but spread out composers/artists
+    public static final int PLAY_SMART_ALBUM = 4;
 
     public static final String SERVICE_NOW_PLAYING = "org.fitchfamily.android.symphony.SERVICE_NOW_PLAYING";
     public static final String SERVICE_PAUSED = "org.fitchfamily.android.symphony.SERVICE_PAUSED";
 
 
     private static final String TAG = "Symphony:MusicService";
+    private static final long GAP_CHECK_MS = 1000;      // How long a track plays before its gap is measured
+    private static final long CHECKPOINT_MS = 5000;     // How often the position is saved while playing
+
+    // Commands to the playback thread
+    private static final int MSG_SET_LIST = 1;
+    private static final int MSG_UPDATE_LIST = 2;
+    private static final int MSG_SET_SHUFFLE = 3;
+    private static final int MSG_SET_SHUFFLE_SEED = 4;
+    private static final int MSG_PLAY_TRACK = 5;
+    private static final int MSG_SET_TRACK = 6;
+    private static final int MSG_GO = 7;
+    private static final int MSG_PAUSE = 8;
+    private static final int MSG_SEEK = 9;
+    private static final int MSG_SKIP = 10;
+    private static final int MSG_RESET = 11;
+    private static final int MSG_VOLUME = 12;
+
+    private HandlerThread playbackThread;
+    private Handler playbackHandler;
+    private final AtomicInteger pendingSeek = new AtomicInteger(-1);    // -1 if none
+
+    // A skip waiting for the playback thread. Presses are added to it until it is taken.
+    private static class SkipCommand {
+        int tracks;                             // Net tracks to skip
+        final long requested;                   // When the first press was
+        boolean taken;
+
+        SkipCommand(int tracks, long requested) {
+            this.tracks = tracks;
+            this.requested = requested;
+        }
+    }
+
+    private final Object commandLock = new Object();
+    private int lastCommand;                    // Last command posted, under commandLock
+    private SkipCommand lastSkip;               // The last skip posted, under commandLock
+
+    public interface Listener {
+        // Called in the UI thread when what is playing, or the position, changes.
+        void onNowPlaying(NowPlaying nowPlaying);
+    }
+
+    // Published by the playback thread
+    private volatile NowPlaying nowPlaying = NowPlaying.NONE;
+    private volatile Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     //MediaSession
     private MediaSessionManager mediaSessionManager;
@@ -134,13 +235,11 @@ public class MusicService extends Service implements
                         pausePlayer();
                     } else if (focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK) {
                         // Lower the volume, keep playing
-                        if (currentTrackPlayer != null)
-                            currentTrackPlayer.setVolume(0.25f, 0.25f);
+                        setVolume(0.25f);
                     } else if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
                         // Your app has been granted audio focus again
                         // Raise volume to normal, restart playback if necessary
-                        if (currentTrackPlayer != null)
-                            currentTrackPlayer.setVolume(1.0f, 1.0f);
+                        setVolume(1.0f);
                     }
                 }
             };
@@ -160,175 +259,131 @@ public class MusicService extends Service implements
     private BecomingNoisyReceiver myNoisyAudioStreamReceiver = new BecomingNoisyReceiver();
 
 
-    private ArrayList<Song> songs;      // Tracks to play
-    private ArrayList<Album> albums;    // Albums found in songs
-    private String playListGenre;       // The Genre we are playing
-
-    private MediaPlayer currentTrackPlayer;     // The media player playing the current track
-    private MediaPlayer onDeckTrackPlayer;      // The media player set up for the next track
+    private PlaylistSnapshot playlist;  // Tracks to play and their albums, shared with the activity
+    private SongTable songs;            // Tracks to play (from playlist)
+    private List<Album> albums;         // Albums found in songs (from playlist)
+    private volatile String playListGenre;      // The Genre we are playing
+
+    private PlaybackEngine engine;              // Makes the players, see PlaybackEngine
+    private PlayerPool playerPool;              // Players not in use, ready for another track
+    private TrackPlayer currentTrackPlayer;     // The media player playing the current track
+    private TrackPlayer onDeckTrackPlayer;      // The media player set up for the next track
+    private long onDeckPrepareStart;            // When on deck started preparing, 0 when prepared
+    private TrackPlayer previousTrackPlayer;    // Ready to play the track before the current one
+    private IndexInfo previousIndexInfo;
+    private long previousPrepareStart;          // When previous started preparing, 0 when prepared
+
+    // Players prepared (or preparing) for the tracks after the on deck track, in play order.
+    private static class InTheHole {
+        final IndexInfo indexInfo;
+        final TrackPlayer player;
+        final long prepareStart;
+        boolean prepared;
+        long readyAt;
+
+        InTheHole(IndexInfo indexInfo, TrackPlayer player, long prepareStart) {
+            this.indexInfo = indexInfo;
+            this.player = player;
+            this.prepareStart = prepareStart;
+            prepared = false;
+        }
+    }
 
-    // Note on currentTrackPlayer and onDeckTrackPlayer: These are manipulated via both the
-    // user display context (MainActivity) and by completion notifications from the actual
-    // media player. Not clear from Android documentation but assuming different threads are
-    // calling our MusicService methods. So we will use the synchronized attribute on each
-    // method that changes or checks currentTrackPlayer and/or onDeckTrackPlayer in a non-atomic
-    // fashion.
+    private final ArrayList<InTheHole> inTheHole = new ArrayList<>();
+    private int minPrepared;                    // Tracks to keep prepared after the current one
+    private int maxPrepared;                    // Most players we hold, to limit decoders held
+    private long prepareLatency = 500;          // Recent time to prepare a track (ms)
+
+    private final PlaybackStats stats = new PlaybackStats();
+    private PlaybackJournal journal;            // Where we are, in case the process is killed
+    private final Runnable checkpointTick = this::checkpoint;
+    private long onDeckReadyAt;                 // When the on deck track was prepared, 0 if it isn't
+    private long completedAt;                   // When a track completed, until the next is heard
+    private boolean completedExact;             // completedAt is from the engine, not onCompletion()
+    private long skipStart;                     // When the skip being done was asked for, or 0
+    private TrackPlayer gapPlayer;              // The track to measure the gap before, see startGapCheck()
+    private long gapSince;
+    private boolean gapExact;
+    private final Runnable gapCheck = this::measureGap;
+
+    // Note on currentTrackPlayer and onDeckTrackPlayer: These, and all of the play state
+    // below, are only used on the playback thread (see "Threads" above).
     //
-    // We will always create a new player as the onDeckTrackPlayer. If no current player exists
+    // We will always take a fresh (reset) player from the pool as the onDeckTrackPlayer and
+    // hand players back to the pool when done with them. If no current player exists
     // when it becomes prepared, we will make it the currentTrackPlayer and start it. If a
     // currentTrackPlayer exists, then we will add it to the currentTrackPlayer as the next
     // player.
     //
 
-    private Integer[] songOrder;            // Shuffle order for songs
-    private Integer[] albumOrder;           // Shuffle order for albums
+    private ShuffleOrder songOrder;         // Shuffle order for songs
+    private ShuffleOrder albumOrder;        // Shuffle order for albums
+    private PlayOrderEngine playOrder = new SequentialOrder(0);
 
-    private class IndexInfo {           // Information shuffle and track
+    //
+    // Information on a track in the play order. A track that has been taken out of
+    // the play list while it plays is detached: it is no longer in the list (its
+    // track index is -1) but we keep its song so it is still shown as playing, and
+    // the index of the track that followed it so play carries on from there.
+    //
+    private class IndexInfo {
         private int trackIndex;
-        private int shuffleIndex;
+        private Song detachedSong;          // The song if detached, otherwise null
+        private int followingIndex;         // Next track in the list if detached
 
         public IndexInfo() {
             trackIndex = 0;
-            shuffleIndex = setShuffleToTrack(trackIndex);
         }
 
         public IndexInfo(int track) {
             trackIndex = track;
-            shuffleIndex = setShuffleToTrack(trackIndex);
         }
 
         public IndexInfo(IndexInfo prevIndex) {
-            shuffleIndex = prevIndex.getShuffleIndex();
-            trackIndex = nextTrackIndex(prevIndex.getTrackIndex());
-            shuffleIndex = setShuffleToTrack(trackIndex);
+            if (prevIndex.isDetached())
+                trackIndex = prevIndex.followingIndex;
+            else
+                trackIndex = playOrder.next(prevIndex.getTrackIndex());
+        }
+
+        public IndexInfo(Song song, int following) {
+            trackIndex = -1;
+            detachedSong = song;
+            followingIndex = following;
         }
 
         public int getTrackIndex() {
             return trackIndex;
         }
 
-        public void shuffleChanged() {
-            shuffleIndex = setShuffleToTrack(trackIndex);
+        public boolean isDetached() {
+            return detachedSong != null;
         }
 
-        public int getShuffleIndex() {
-            return shuffleIndex;
+        public Song getSong() {
+            return isDetached() ? detachedSong : songs.get(trackIndex);
         }
 
-        public int getPrevShuffleIndex() {
-            int rslt = trackIndex - 1;
-            switch (shuffle) {
-                case PLAY_SEQUENTIAL:
-                    if (rslt < 0)
-                        rslt = songs.size() - 1;
-                    break;
-
-                case PLAY_RANDOM_SONG:
-                    shuffleIndex--;
-                    if (shuffleIndex < 0)
-                        shuffleIndex = songs.size() - 1;
-                    rslt = songOrder[shuffleIndex];
-                    break;
-
-                case PLAY_RANDOM_ALBUM:
-                    long curentAlbum = songs.get(trackIndex).getAlbumId();
-                    if (rslt < 0) {
-                        rslt = songs.size() - 1;
-                    }
-                    long nextAlbum = songs.get(rslt).getAlbumId();
-
-                    if (curentAlbum != nextAlbum) {
-                        shuffleIndex--;
-                        if (shuffleIndex < 0)
-                            shuffleIndex = albums.size() - 1;
-                        int newAlbum = albumOrder[shuffleIndex];
-                        rslt = albums.get(newAlbum).getLastTrackIndex();
-                    }
-                    break;
-            }
-            return rslt;
+        // Where in the list to show it: a detached track is shown by the one after it.
+        public int getListIndex() {
+            return isDetached() ? followingIndex : trackIndex;
         }
 
-        private int setShuffleToTrack(int currentIndex) {
-            int rslt = 0;
-            switch (shuffle) {
-                case PLAY_RANDOM_SONG:
-                    if (songOrder != null) {
-                        rslt = Arrays.asList(songOrder).indexOf(currentIndex);
-                    }
-                    break;
-
-                case PLAY_RANDOM_ALBUM:
-                    if (currentIndex >= songs.size()) {
-                        rslt = 0;
-                    } else {
-                        if (albumOrder != null) {
-                            int currentAlbumIndex = -1;
-                            Long currentAlbumId = songs.get(currentIndex).getAlbumId();
-                            for (int i = 0; i < albums.size(); i++) {
-                                if (currentAlbumId == albums.get(i).getID()) {
-                                    currentAlbumIndex = i;
-                                    break;
-                                }
-                            }
-
-                            rslt = Arrays.asList(albumOrder).indexOf(currentAlbumIndex);
-                            break;
-                        }
-                    }
-            }
-            if (rslt < 0)
-                rslt = 0;
-            return rslt;
-        }
-
-        private int nextTrackIndex(int currentIndex) {
-            int rslt = currentIndex + 1;
-            switch (shuffle) {
-                case PLAY_SEQUENTIAL:
-                    if (rslt >= songs.size())
-                        rslt = 0;
-                    break;
-
-                case PLAY_RANDOM_SONG:
-                    logSuffleOrder("Songs", songOrder);
-                    shuffleIndex++;
-                    if (shuffleIndex >= songs.size())
-                        shuffleIndex = 0;
-                    rslt = songOrder[shuffleIndex];
-                    break;
-
-                case PLAY_RANDOM_ALBUM:
-                    logSuffleOrder("albums", albumOrder);
-                    long curentAlbum = songs.get(currentIndex).getAlbumId();
-                    if (rslt >= songs.size()) {
-                        rslt = 0;
-                    }
-                    long nextAlbum = songs.get(rslt).getAlbumId();
-
-                    if (curentAlbum != nextAlbum) {
-                        shuffleIndex++;
-                        if (shuffleIndex >= albums.size())
-                            shuffleIndex = 0;
-                        int newAlbum = albumOrder[shuffleIndex];
-                        rslt = albums.get(newAlbum).getTrack();
-                    }
-                    break;
-            }
-            return rslt;
+        public int getPrevShuffleIndex() {
+            return playOrder.previous(isDetached() ? followingIndex : trackIndex);
         }
     }
 
     private IndexInfo playingIndexInfo;  // Information and control of currently playing track
     private IndexInfo onDeckIndexInfo;   // Information and control of next track to be played
 
-    private static final int NOTIFY_ID = 1;
+    private ArtworkCache artworkCache;      // Artwork for the media session, decoded off this thread
+    private SessionPublisher publisher;     // Sends what is playing to the media session and notification
 
-    private int shuffle = PLAY_RANDOM_ALBUM;
-    private Random rand;
+    private volatile int shuffle = PLAY_RANDOM_ALBUM;
     private Random shuffleRand;
     private long shuffleSeed;
-    private long lastShuffleSeed;
+    private volatile long lastShuffleSeed;
 
     private final IBinder musicBind = new MusicBinder();
     private boolean noisyReceiverRegistered = false;
@@ -346,6 +401,18 @@ public class MusicService extends Service implements
         super.onCreate();
         Log.d(TAG, "onCreate() entry.");
 
+        playbackThread = new HandlerThread("Symphony:Playback", Process.THREAD_PRIORITY_AUDIO);
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper(), this::handleCommand);
+        artworkCache = new ArtworkCache(this, playbackHandler);
+        publisher = new SessionPublisher(this, playbackHandler, artworkCache);
+        journal = new PlaybackJournal(this);
+
+        if (getResources().getBoolean(R.bool.use_codec_engine))
+            engine = new CodecEngine(this);
+        else
+            engine = new MediaPlayerEngine(this);
+        playerPool = new PlayerPool(engine, this);
         currentTrackPlayer = null;
         onDeckTrackPlayer = null;
 
@@ -358,7 +425,10 @@ public class MusicService extends Service implements
         shuffleRand = new Random();
         shuffleSeed = shuffleRand.nextLong();
         lastShuffleSeed = shuffleSeed;
-        rand = new Random();
+
+        minPrepared = Math.max(1, getResources().getInteger(R.integer.prepare_lookahead));
+        // Room for the current track and the ones we must have prepared after it.
+        maxPrepared = Math.max(1 + minPrepared, getResources().getInteger(R.integer.max_prepared_players));
         am = (AudioManager) getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
     }
 
@@ -374,62 +444,157 @@ public class MusicService extends Service implements
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy() entry.");
-        resetToInitialState();
+        playbackHandler.post(() -> {
+            resetToInitialState();
+            playerPool.releaseAll();
+            engine.release();
+            artworkCache.release();
+            journal.close();
+        });
+        playbackThread.quitSafely();
         stopForeground(true);
         super.onDestroy();
     }
 
-    public void setList(ArrayList<Song> theSongs, String theGenre) {
-        Log.d(TAG, "setList() entry.");
+    private void doSetList(PlaylistSnapshot thePlaylist) {
+        Log.d(TAG, "doSetList() entry.");
         resetToInitialState();
-        songs = theSongs;
-        albums = Album.getAlbumIndexes(songs);
-        songOrder = genPlayOrder(songs.size());
-        shuffleSeed = lastShuffleSeed;
-        albumOrder = genPlayOrder(albums.size());
+        playlist = thePlaylist;
+        songs = playlist.getSongs();
+        albums = playlist.getAlbums();
+        genPlayOrders(shuffle);
         playingIndexInfo = null;
         onDeckIndexInfo = new IndexInfo();
-        playListGenre = theGenre;
     }
 
-    public synchronized void setShuffle(int playMode) {
+    //
+    // The tracks in the genre we are playing have changed (music added, removed
+    // or retagged). Switch to the new list without disturbing the playing and
+    // on deck tracks: they are found in the new list by their id. If the playing
+    // track has gone away it plays on, detached from the list, and what follows
+    // it is the next track in the old play order still in the new list. If the on
+    // deck track has gone away we prepare whatever now follows the playing track.
+    //
+    private void doUpdateList(PlaylistSnapshot thePlaylist) {
+        Log.d(TAG, "doUpdateList() entry.");
+        if (songs == null) {
+            return;
+        }
+        SongTable oldSongs = songs;
+        PlayOrderEngine oldOrder = playOrder;
+        long playingId = -1;
+        long onDeckId = -1;
+        int playingIndex = 0;
+        int onDeckIndex = 0;
+        Song playingSong = null;
+        if (playingIndexInfo != null) {
+            playingIndex = playingIndexInfo.getListIndex();
+            playingSong = playingIndexInfo.getSong();
+            if (!playingIndexInfo.isDetached())
+                playingId = songs.getId(playingIndex);
+        }
+        if (onDeckIndexInfo != null) {
+            onDeckIndex = onDeckIndexInfo.getTrackIndex();
+            if (onDeckIndex < songs.size())
+                onDeckId = songs.getId(onDeckIndex);
+        }
+
+        // Keep the same shuffle seed. The shuffle order depends only on the seed and
+        // the ids, so tracks that were already there keep their order.
+        playlist = thePlaylist;
+        songs = playlist.getSongs();
+        albums = playlist.getAlbums();
+        shuffleSeed = lastShuffleSeed;
+        genPlayOrders(shuffle);
+
+        if (songs.isEmpty()) {
+            resetToInitialState();
+            playingIndexInfo = null;
+            onDeckIndexInfo = null;
+            return;
+        }
+
+        // Tracks after the on deck one (and before the current one) may have moved,
+        // start them again.
+        releaseInTheHole();
+        releasePrevious();
+        if (playingIndexInfo != null) {
+            int i = songs.indexOfId(playingId);
+            if (i >= 0) {
+                playingIndexInfo = new IndexInfo(i);
+            } else {
+                // Find the first track after it in the old order that is still there.
+                // If it was already detached, the track that followed it may still be.
+                int following = -1;
+                int old = playingIndex;
+                for (int n = 0; (following < 0) && (n < oldSongs.size()); n++) {
+                    if ((n > 0) || !playingIndexInfo.isDetached())
+                        old = oldOrder.next(old);
+                    following = songs.indexOfId(oldSongs.getId(old));
+                }
+                if (following < 0)
+                    following = Math.min(playingIndex, songs.size() - 1);
+                Log.d(TAG, "updateList() playing track gone, continuing with track " + following + " after it.");
+                playingIndexInfo = new IndexInfo(playingSong, following);
+            }
+        }
+        if (onDeckIndexInfo != null) {
+            int i = songs.indexOfId(onDeckId);
+            if (i >= 0) {
+                onDeckIndexInfo = new IndexInfo(i);
+            } else if (playingIndexInfo != null) {
+                Log.d(TAG, "updateList() on deck track gone, preparing replacement.");
+                if (currentTrackPlayer != null)
+                    currentTrackPlayer.setNextPlayer(null);
+                if (onDeckTrackPlayer != null) {
+                    playerPool.recycle(onDeckTrackPlayer);
+                    onDeckTrackPlayer = null;
+                }
+                onDeckIndexInfo = new IndexInfo(playingIndexInfo);
+                if (currentTrackPlayer != null)
+                    prepareOnDeck(onDeckIndexInfo);
+            } else {
+                onDeckIndexInfo = new IndexInfo(Math.min(onDeckIndex, songs.size() - 1));
+            }
+        }
+        fillInTheHole();
+        boolean playing = (currentTrackPlayer != null) && currentTrackPlayer.isPlaying();
+        notifyMainActivity(playing ? SERVICE_NOW_PLAYING : SERVICE_PAUSED);
+    }
+
+    private void doSetShuffle(int playMode) {
         Log.d(TAG, "setShuffle(" + Integer.toString(playMode) + ") entry.");
         if (shuffle != playMode) {
             switch (playMode) {
                 case PLAY_SEQUENTIAL:
                 case PLAY_RANDOM_SONG:
                 case PLAY_RANDOM_ALBUM:
-                    // Generate new random track order
-                    if (songs != null) {
-                        songOrder = genPlayOrder(songs.size());
-                    }
-
-                    // Generate new random album order
-                    if (albums != null)
-                        albumOrder = genPlayOrder(albums.size());
+                case PLAY_SMART_SONG:
+                case PLAY_SMART_ALBUM:
+                    // Generate new random track and album orders
+                    genPlayOrders(playMode);
 
                     // If we have a on-deck player, cancel it as our play order is
                     // changing.
+                    releaseInTheHole();
+                    releasePrevious();
                     if (currentTrackPlayer != null) {
-                        currentTrackPlayer.setNextMediaPlayer(null);
+                        currentTrackPlayer.setNextPlayer(null);
                         if (onDeckTrackPlayer != null) {
-                            onDeckTrackPlayer.release();
+                            playerPool.recycle(onDeckTrackPlayer);
                             onDeckTrackPlayer = null;
                         }
                     }
 
-                    // Set the new play mode and set the shuffle index to select
-                    // the current track.
+                    // Set the new play mode. The play order works out where the
+                    // current track is in the new order.
                     shuffle = playMode;
                     if (playingIndexInfo != null) {
-                        playingIndexInfo.shuffleChanged();
-
                         // If we are playing something, then prepare the next track
                         // using the new play mode.
                         if (currentTrackPlayer != null) {
-                            onDeckIndexInfo = new IndexInfo(playingIndexInfo);
-                            currentTrackPlayer.setNextMediaPlayer(null);
-                            onDeckTrackPlayer = prepareTrack(onDeckIndexInfo.getTrackIndex());
+                            currentTrackPlayer.setNextPlayer(null);
+                            prepareOnDeck(new IndexInfo(playingIndexInfo));
                         }
                     }
                     break;
@@ -440,15 +605,293 @@ public class MusicService extends Service implements
         }
     }
 
+    //
+    // Commands, from any thread. Each is passed to the playback thread.
+    //
+
+    public void setList(PlaylistSnapshot thePlaylist, String theGenre) {
+        playListGenre = theGenre;
+        dropPendingMoves();
+        send(playbackHandler.obtainMessage(MSG_SET_LIST, thePlaylist));
+    }
+
+    //
+    // The tracks in the genre we are playing have changed (music added, removed
+    // or retagged). See doUpdateList().
+    //
+    public void updateList(PlaylistSnapshot thePlaylist) {
+        send(playbackHandler.obtainMessage(MSG_UPDATE_LIST, thePlaylist));
+    }
+
+    public void setShuffle(int playMode) {
+        send(playbackHandler.obtainMessage(MSG_SET_SHUFFLE, playMode, 0));
+    }
+
+    public void setShuffleSeed(long seed) {
+        send(playbackHandler.obtainMessage(MSG_SET_SHUFFLE_SEED, seed));
+    }
+
+    public void playTrack(int trackIndex) {
+        dropPendingMoves();
+        send(playbackHandler.obtainMessage(MSG_PLAY_TRACK, trackIndex, 0));
+    }
+
+    public void setTrack(int trackIndex) {
+        dropPendingMoves();
+        send(playbackHandler.obtainMessage(MSG_SET_TRACK, trackIndex, 0));
+    }
+
+    public void go() {
+        send(playbackHandler.obtainMessage(MSG_GO));
+    }
+
+    public void pausePlayer() {
+        send(playbackHandler.obtainMessage(MSG_PAUSE));
+    }
+
+    public void seek(int posn) {
+        synchronized (commandLock) {
+            if (pendingSeek.getAndSet(posn) < 0)
+                send(playbackHandler.obtainMessage(MSG_SEEK));
+        }
+    }
+
+    public void playNext() {
+        skip(1);
+    }
+
+    public void playPrev() {
+        skip(-1);
+    }
+
+    //
+    // Skips add up until the playback thread gets to them, as long as nothing else
+    // has been asked for in between. A seek waiting was for the track we are leaving.
+    //
+    private void skip(int tracks) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (commandLock) {
+            playbackHandler.removeMessages(MSG_SEEK);
+            pendingSeek.set(-1);
+            if ((lastCommand == MSG_SKIP) && (lastSkip != null) && !lastSkip.taken) {
+                lastSkip.tracks += tracks;
+                return;
+            }
+            lastSkip = new SkipCommand(tracks, now);
+            send(playbackHandler.obtainMessage(MSG_SKIP, lastSkip));
+        }
+    }
+
+    private void setVolume(float volume) {
+        send(playbackHandler.obtainMessage(MSG_VOLUME, volume));
+    }
+
+    // Post a command, noting it as the last one for skip().
+    private void send(Message msg) {
+        synchronized (commandLock) {
+            lastCommand = msg.what;
+            msg.sendToTarget();
+        }
+    }
+
+    // A new track or list makes any skips or seeks still waiting meaningless.
+    private void dropPendingMoves() {
+        synchronized (commandLock) {
+            playbackHandler.removeMessages(MSG_SKIP);
+            playbackHandler.removeMessages(MSG_SEEK);
+            lastSkip = null;
+            pendingSeek.set(-1);
+        }
+    }
+
+    //
+    // Queries, from any thread. Answered from the last published state.
+    //
+
     public int getShuffle() {
         return shuffle;
     }
 
-    public synchronized int getTrackIndex() {
-        if (playingIndexInfo != null)
-            return playingIndexInfo.getTrackIndex();
-        else
-            return -1;
+    public NowPlaying getNowPlaying() {
+        return nowPlaying;
+    }
+
+    public PlaybackStats getStats() {
+        return stats;
+    }
+
+    // The listener is told the current state straight away, then of each change.
+    public void setListener(Listener newListener) {
+        listener = newListener;
+        if (newListener != null) {
+            final NowPlaying state = nowPlaying;
+            mainHandler.post(() -> {
+                if (listener == newListener)
+                    newListener.onNowPlaying(state);
+            });
+        }
+    }
+
+    public int getTrackIndex() {
+        return nowPlaying.getTrackIndex();
+    }
+
+    public int getPosition() {
+        return nowPlaying.getPosition();
+    }
+
+    public int getDuration() {
+        return nowPlaying.getDuration();
+    }
+
+    public String getGenre() {
+        return playListGenre;
+    }
+
+    public long getShuffleSeed() {
+        return lastShuffleSeed;
+    }
+
+    public Song getCurrentSong() {
+        return nowPlaying.getSong();
+    }
+
+    public boolean isPlaying() {
+        return nowPlaying.isPlaying();
+    }
+
+    public boolean hasTrack() {
+        return nowPlaying.hasTrack();
+    }
+
+    //
+    // The playback thread's end of the commands above.
+    //
+    private boolean handleCommand(Message msg) {
+        switch (msg.what) {
+            case MSG_SET_LIST:
+                skipStart = 0;
+                doSetList((PlaylistSnapshot) msg.obj);
+                break;
+
+            case MSG_UPDATE_LIST:
+                doUpdateList((PlaylistSnapshot) msg.obj);
+                break;
+
+            case MSG_SET_SHUFFLE:
+                doSetShuffle(msg.arg1);
+                checkpoint();
+                break;
+
+            case MSG_SET_SHUFFLE_SEED:
+                doSetShuffleSeed((Long) msg.obj);
+                checkpoint();
+                break;
+
+            case MSG_PLAY_TRACK:
+                skipStart = 0;
+                doPlayTrack(msg.arg1);
+                break;
+
+            case MSG_SET_TRACK:
+                skipStart = 0;
+                doSetTrack(msg.arg1);
+                break;
+
+            case MSG_GO:
+                skipStart = 0;
+                doGo();
+                break;
+
+            case MSG_PAUSE:
+                skipStart = 0;
+                doPause();
+                break;
+
+            case MSG_SEEK:
+                int posn = pendingSeek.getAndSet(-1);
+                if (posn >= 0)
+                    doSeek(posn);
+                break;
+
+            case MSG_SKIP:
+                SkipCommand skip = (SkipCommand) msg.obj;
+                int tracks;
+                synchronized (commandLock) {
+                    skip.taken = true;
+                    tracks = skip.tracks;
+                }
+                skipStart = skip.requested;
+                doSkip(tracks);
+                break;
+
+            case MSG_RESET:
+                skipStart = 0;
+                resetToInitialState();
+                break;
+
+            case MSG_VOLUME:
+                if (currentTrackPlayer != null)
+                    currentTrackPlayer.setVolume((Float) msg.obj);
+                break;
+
+            default:
+                return false;
+        }
+        publishState();
+        return true;
+    }
+
+    //
+    // A single next or previous can use a player that is already prepared. For a
+    // run of them we work out where they end up and only prepare that track.
+    //
+    private void doSkip(int tracks) {
+        Log.d(TAG, "doSkip(" + tracks + ") entry.");
+        if (tracks == 1) {
+            doPlayNext();
+        } else if (tracks == -1) {
+            doPlayPrev();
+        } else if ((tracks != 0) && (songs != null) && !songs.isEmpty()) {
+            IndexInfo target = (playingIndexInfo != null) ? playingIndexInfo : onDeckIndexInfo;
+            if (target == null)
+                return;
+            // A detached track is between the one before its following track and that one.
+            int trackIndex = target.getListIndex();
+            int steps = (target.isDetached() && (tracks > 0)) ? tracks - 1 : Math.abs(tracks);
+            for (int i = 0; i < steps; i++)
+                trackIndex = (tracks > 0) ? playOrder.next(trackIndex) : playOrder.previous(trackIndex);
+            doPlayTrack(trackIndex);
+        }
+    }
+
+    //
+    // Make the state of the current player available to other threads, and tell
+    // everyone who shows it if it has changed.
+    //
+    private void publishState() {
+        TrackPlayer mp = currentTrackPlayer;
+        NowPlaying state;
+        if ((mp != null) && (playingIndexInfo != null)) {
+            state = new NowPlaying(playingIndexInfo.getTrackIndex(), playingIndexInfo.getSong(), mp.isPlaying(),
+                    mp.getDuration(), mp.getCurrentPosition(), SystemClock.elapsedRealtime());
+        } else {
+            state = new NowPlaying(-1, null, false, 0, Math.max(deferredPosition, 0),
+                    SystemClock.elapsedRealtime());
+        }
+        if (!nowPlaying.differsFrom(state))
+            return;
+        nowPlaying = state;
+
+        checkpoint();
+        publisher.publish(state);
+        final Listener l = listener;
+        if (l != null) {
+            mainHandler.post(() -> {
+                if (listener == l)
+                    l.onNowPlaying(state);
+            });
+        }
     }
 
     public class MusicBinder extends Binder {
@@ -466,50 +909,94 @@ public class MusicService extends Service implements
     @Override
     public boolean onUnbind(Intent intent) {
         Log.d(TAG, "onUnbind() entry.");
-        resetToInitialState();
+        send(playbackHandler.obtainMessage(MSG_RESET));
         return false;
     }
 
+    //
+    // For "adb shell dumpsys activity service org.fitchfamily.android.symphony/.MusicService".
+    // Add "reset" to the end to clear the stats. On a binder thread, so only what is safe to
+    // read from any thread is shown.
+    //
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if ((args != null) && (args.length > 0) && "reset".equals(args[0])) {
+            stats.reset();
+            writer.println("Playback stats reset.");
+            return;
+        }
+        NowPlaying state = nowPlaying;
+        writer.println("MusicService:");
+        writer.println("  engine: " + engine.getClass().getSimpleName());
+        writer.println("  genre: " + playListGenre + ", shuffle: " + shuffle);
+        if (state.hasTrack())
+            writer.println("  track " + state.getTrackIndex() + ": " + state.getSong().getTitle() +
+                    (state.isPlaying() ? ", playing at " : ", paused at ") + state.getPosition() +
+                    " of " + state.getDuration() + "ms");
+        else
+            writer.println("  no track");
+        stats.dump(writer);
+    }
+
     // Current track player notifying us that it has finished playing its track
     //
     // Release current track player and replace it by the "On Deck" player.
     // If the on deck player is ready, start it and then setup a new on deck.
     //
     @Override
-    public synchronized void onCompletion(MediaPlayer mp) {
+    public void onCompletion(TrackPlayer mp) {
         Log.d(TAG, "onCompletion() entry.");
         if ((currentTrackPlayer != null) && (currentTrackPlayer.getCurrentPosition() > 0)) {
-            currentTrackPlayer.reset();
-            currentTrackPlayer.release();
-            currentTrackPlayer = onDeckTrackPlayer;
-            onDeckTrackPlayer = null;
-            if (currentTrackPlayer != null) {
+            long heardAt = currentTrackPlayer.getCompletedAt();
+            keepAsPrevious(currentTrackPlayer, playingIndexInfo);
+            currentTrackPlayer = null;
+            completedExact = (heardAt != 0);
+            completedAt = completedExact ? heardAt : SystemClock.elapsedRealtime();
+            if (onDeckTrackPlayer != null) {
+                if (onDeckPrepareStart != 0)
+                    stats.countLateOnDeck();
+                else
+                    stats.getReadyLead().add(completedAt - onDeckReadyAt);
+            }
+            if ((onDeckTrackPlayer != null) && (onDeckPrepareStart != 0)) {
+                // Next track isn't ready, so it wasn't started for us. Start it as soon
+                // as it is prepared.
+                Log.d(TAG, "onCompletion() next track not yet prepared.");
+                playingIndexInfo = null;
+                deferredGo = true;
+            } else if (onDeckTrackPlayer != null) {
                 Log.d(TAG, "onCompletion() next track prepared, starting immediately.");
+                currentTrackPlayer = onDeckTrackPlayer;
+                onDeckTrackPlayer = null;
                 playingIndexInfo = onDeckIndexInfo;
+                startGapCheck();
                 tellTheWorld(SERVICE_NOW_PLAYING);
 
                 // Setup an "on Deck" player for the next track to play
-                onDeckIndexInfo = new IndexInfo(playingIndexInfo);
-                onDeckTrackPlayer = prepareTrack(onDeckIndexInfo.getTrackIndex());
+                advanceOnDeck();
             }
         }
+        publishState();
     }
 
     @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
+    public void onError(TrackPlayer mp, int what, int extra) {
         Log.d(TAG, "onError(what=" + what + ", extra=" + extra + ") entry.");
+        stats.countPlayerError();
         resetToInitialState();
-        return false;
+        publishState();
     }
 
     @Override
-    public synchronized void onPrepared(MediaPlayer mp) {
+    public void onPrepared(TrackPlayer mp) {
         Log.d(TAG, "onPrepared() entry.");
         // Register a receiver to be notified about headphones being
         // unplugged then start playback
         if (currentTrackPlayer == mp) {
             Log.d(TAG, "onPrepared() Unexpected event on currentTrackPlayer");
         } else if (onDeckTrackPlayer == mp) {
+            notePrepareTime(onDeckPrepareStart);
+            onDeckPrepareStart = 0;
             if (currentTrackPlayer == null) {
                 //
                 // No currently playing track. Set the on deck track to currently playing
@@ -523,102 +1010,70 @@ public class MusicService extends Service implements
                 deferredPosition = -1;
 
                 if (deferredGo)
-                    this.go();
+                    doGo();
                 else
                     tellTheWorld(SERVICE_PAUSED);
 
                 // Setup an "on Deck" player for the next track to play
-                onDeckIndexInfo = new IndexInfo(playingIndexInfo);
-                onDeckTrackPlayer = prepareTrack(onDeckIndexInfo.getTrackIndex());
+                advanceOnDeck();
             } else {
                 // We are currently playing a track. Set the on deck track to play when
-                // current track is done.
-                currentTrackPlayer.setNextMediaPlayer(onDeckTrackPlayer);
+                // current track is done, and have its artwork ready for then.
+                onDeckReadyAt = SystemClock.elapsedRealtime();
+                currentTrackPlayer.setNextPlayer(onDeckTrackPlayer);
+                artworkCache.load(songs.getId(onDeckIndexInfo.getTrackIndex()), null);
+                fillInTheHole();
+                preparePrevious();
+            }
+        } else if (previousTrackPlayer == mp) {
+            notePrepareTime(previousPrepareStart);
+            previousPrepareStart = 0;
+        } else {
+            for (InTheHole next : inTheHole) {
+                if (next.player == mp) {
+                    notePrepareTime(next.prepareStart);
+                    next.prepared = true;
+                    next.readyAt = SystemClock.elapsedRealtime();
+                    fillInTheHole();
+                    break;
+                }
             }
         }
+        publishState();
     }
 
-    public synchronized void playTrack(int trackIndex) {
+    private void doPlayTrack(int trackIndex) {
         Log.d(TAG, "playTrack(" + trackIndex + ") entry.");
         if ((trackIndex >= 0) && (trackIndex < songs.size())) {
-            setTrack(trackIndex);
+            doSetTrack(trackIndex);
             deferredGo = true;
         } else {
             Log.d(TAG, "playTrack(" + trackIndex + ") index out of bounds, max=" + songs.size());
         }
     }
 
-    public synchronized void setTrack(int trackIndex) {
+    private void doSetTrack(int trackIndex) {
         Log.d(TAG, "setTrack(" + trackIndex + ") entry.");
         if ((trackIndex >= 0) && (trackIndex < songs.size())) {
             resetToInitialState();
             deferredGo = false;
             playingIndexInfo = null;
-            onDeckIndexInfo = new IndexInfo(trackIndex);
-            onDeckTrackPlayer = prepareTrack(trackIndex);
+            prepareOnDeck(new IndexInfo(trackIndex));
         } else {
             Log.d(TAG, "setTrack(" + trackIndex + ") index out of bounds, max=" + songs.size());
         }
     }
 
-    // Items needed to support media controller calls from main activity.
-    public synchronized int getPosition() {
-        //Log.d(TAG,"getPosition() entry.");
-        if (currentTrackPlayer != null)
-            return currentTrackPlayer.getCurrentPosition();
-        Log.d(TAG, "getPosition() not playing?");
-        return 0;
-    }
-
-    public synchronized int getDuration() {
-        //Log.d(TAG,"getDuration() entry.");
-        if (currentTrackPlayer != null)
-            return currentTrackPlayer.getDuration();
-        Log.d(TAG, "getDuration() not playing?");
-        return 0;
-    }
-
-    public synchronized String getGenre() {
-        return playListGenre;
-    }
-
-    public synchronized long getShuffleSeed() { return lastShuffleSeed; }
-
-    public void setShuffleSeed( long seed ) {
+    private void doSetShuffleSeed(long seed) {
+        shuffleSeed = seed;
+        genPlayOrders(shuffle);
         shuffleSeed = seed;
         lastShuffleSeed = seed;
-
-        if (songs != null) {
-            songOrder = genPlayOrder(songs.size());
-            shuffleSeed = seed;
-            lastShuffleSeed = seed;
-        }
-
-        // Generate new random album order
-        if (albums != null) {
-            albumOrder = genPlayOrder(albums.size());
-            shuffleSeed = seed;
-            lastShuffleSeed = seed;
-        }
-    }
-
-    public synchronized Song getCurrentSong() {
-        if ((currentTrackPlayer != null) && (playingIndexInfo != null)) {
-            return songs.get(playingIndexInfo.getTrackIndex());    //get song info
-        }
-        return null;
-    }
-
-    public synchronized boolean isPlaying() {
-        return (currentTrackPlayer != null) && currentTrackPlayer.isPlaying();
-    }
-
-    public synchronized boolean hasTrack() {
-        return (currentTrackPlayer != null);
     }
 
-    public synchronized void pausePlayer() {
-        Log.d(TAG, "pausePlayer() entry.");
+    private void doPause() {
+        Log.d(TAG, "doPause() entry.");
+        cancelGapCheck();
         if (currentTrackPlayer != null) {
             currentTrackPlayer.pause();
             tellTheWorld(SERVICE_PAUSED);
@@ -635,11 +1090,12 @@ public class MusicService extends Service implements
             am.abandonAudioFocus(afChangeListener);
             haveAudioFocus = false;
         }
-        stopForeground(true);
+        publisher.stopForeground();
     }
 
-    public synchronized void seek(int posn) {
+    private void doSeek(int posn) {
         Log.d(TAG, "seek(" + posn + ") entry.");
+        cancelGapCheck();
         if (currentTrackPlayer != null)
             currentTrackPlayer.seekTo(posn);
         else {
@@ -648,7 +1104,7 @@ public class MusicService extends Service implements
         }
     }
 
-    public synchronized void go() {
+    private void doGo() {
         Log.d(TAG, "go() entry.");
         if (currentTrackPlayer != null) {
             deferredGo = false;
@@ -664,31 +1120,71 @@ public class MusicService extends Service implements
                 registerReceiver(myNoisyAudioStreamReceiver, intentFilter);
                 noisyReceiverRegistered = true;
                 currentTrackPlayer.start();
+                if (skipStart != 0) {
+                    stats.getSkipLatency().add(SystemClock.elapsedRealtime() - skipStart);
+                    skipStart = 0;
+                }
+                startGapCheck();
                 tellTheWorld(SERVICE_NOW_PLAYING);
             }
         } else
             deferredGo = true;
     }
 
-    public synchronized void playPrev() {
+    private void doPlayPrev() {
         Log.d(TAG, "playPrev() entry.");
         int prevSongIndex = -1;
 
         if (playingIndexInfo != null)
             prevSongIndex = playingIndexInfo.getPrevShuffleIndex();
-        if (prevSongIndex >= 0) {
-            playTrack(prevSongIndex);
+        if ((prevSongIndex >= 0) && (currentTrackPlayer != null) && (previousTrackPlayer != null) &&
+                (previousPrepareStart == 0) && (previousIndexInfo.getTrackIndex() == prevSongIndex)) {
+            Log.d(TAG, "playPrev() starting previous player.");
+            // The track we are leaving is next again, and is already prepared.
+            TrackPlayer leaving = currentTrackPlayer;
+            IndexInfo leavingIndexInfo = playingIndexInfo;
+            leaving.setNextPlayer(null);
+            releaseInTheHole();
+            playerPool.recycle(onDeckTrackPlayer);
+            if (leaving.isPlaying())
+                leaving.pause();
+            leaving.seekTo(0);
+            onDeckTrackPlayer = leaving;
+            onDeckIndexInfo = leavingIndexInfo;
+            onDeckPrepareStart = 0;
+            onDeckReadyAt = SystemClock.elapsedRealtime();
+
+            currentTrackPlayer = previousTrackPlayer;
+            playingIndexInfo = previousIndexInfo;
+            previousTrackPlayer = null;
+            previousIndexInfo = null;
+            currentTrackPlayer.setNextPlayer(onDeckTrackPlayer);
+            doGo();
+            fillInTheHole();
+            preparePrevious();
+        } else if (prevSongIndex >= 0) {
+            doPlayTrack(prevSongIndex);
         }
     }
 
     //skip to next
-    public synchronized void playNext() {
+    private void doPlayNext() {
         Log.d(TAG, "playNext() entry.");
+        if ((currentTrackPlayer != null) && (onDeckTrackPlayer != null) && (onDeckPrepareStart == 0)) {
+            Log.d(TAG, "playNext() starting on deck player.");
+            keepAsPrevious(currentTrackPlayer, playingIndexInfo);
+            currentTrackPlayer = onDeckTrackPlayer;
+            playingIndexInfo = onDeckIndexInfo;
+            onDeckTrackPlayer = null;
+            doGo();
+            advanceOnDeck();
+            return;
+        }
         resetToInitialState();
         deferredGo = true;
         playingIndexInfo = null;
         if ((onDeckIndexInfo != null) && (songs != null) && (!songs.isEmpty()))
-            onDeckTrackPlayer = prepareTrack(onDeckIndexInfo.getTrackIndex());
+            prepareOnDeck(onDeckIndexInfo);
     }
 
     //
@@ -696,12 +1192,11 @@ public class MusicService extends Service implements
     //
 
     // Create a new media player instance and get it started on preparing itself
-    private MediaPlayer prepareTrack(int trackIndex) {
+    private TrackPlayer prepareTrack(int trackIndex) {
         if ((songs == null) && (trackIndex < songs.size()))
             return null;
-        MediaPlayer mp = initTrackPlayer();
-        Song songToPlay = songs.get(trackIndex);    //get song info
-        long currSong = songToPlay.getId();           //set uri
+        TrackPlayer mp = playerPool.acquire();
+        long currSong = songs.getId(trackIndex);      //set uri
 
         Uri trackUri = ContentUris.withAppendedId(
                 android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
@@ -710,55 +1205,194 @@ public class MusicService extends Service implements
             mp.setDataSource(getApplicationContext(), trackUri);
         } catch (Exception e) {
             Log.e("MUSIC SERVICE", "Error setting data source", e);
-            mp.release();
+            stats.countSourceError();
+            playerPool.recycle(mp);
             return null;
         }
         mp.prepareAsync();
         return mp;
     }
 
-    private void setupForegroundNotification() {
-        String NOTIFICATION_CHANNEL_ID = "org.fitchfamily.android.symphony";
+    private void prepareOnDeck(IndexInfo indexInfo) {
+        onDeckIndexInfo = indexInfo;
+        onDeckTrackPlayer = prepareTrack(indexInfo.getTrackIndex());
+        onDeckPrepareStart = SystemClock.elapsedRealtime();
+        onDeckReadyAt = 0;
+    }
+
+    //
+    // The on deck track has just become the current one. Move the first track in
+    // the hole (if any) up to on deck, otherwise start preparing the next track.
+    //
+    private void advanceOnDeck() {
+        if (inTheHole.isEmpty()) {
+            prepareOnDeck(new IndexInfo(playingIndexInfo));
+        } else {
+            InTheHole next = inTheHole.remove(0);
+            onDeckIndexInfo = next.indexInfo;
+            onDeckTrackPlayer = next.player;
+            onDeckPrepareStart = next.prepared ? 0 : next.prepareStart;
+            onDeckReadyAt = next.readyAt;
+            if (next.prepared && (currentTrackPlayer != null))
+                currentTrackPlayer.setNextPlayer(onDeckTrackPlayer);
+        }
+        fillInTheHole();
+    }
+
+    //
+    // Prepare another track after the on deck (and in the hole) tracks if they are
+    // all ready but don't play long enough to cover preparing one more. One at a
+    // time so they don't compete for the storage.
+    //
+    private void fillInTheHole() {
+        if ((onDeckTrackPlayer == null) || (onDeckPrepareStart != 0) || (songs == null))
+            return;
+        long covered = onDeckTrackPlayer.getDuration();
+        IndexInfo last = onDeckIndexInfo;
+        for (InTheHole next : inTheHole) {
+            if (!next.prepared)
+                return;
+            covered += next.player.getDuration();
+            last = next.indexInfo;
+        }
+        int prepared = 1 + inTheHole.size();
+        if (prepared + 1 >= songs.size())
+            return;
+        if ((prepared >= minPrepared) && (playersHeld() >= maxPrepared))
+            return;
+        if ((prepared >= minPrepared) && (covered >= 2 * prepareLatency))
+            return;
+
+        IndexInfo indexInfo = new IndexInfo(last);
+        Log.d(TAG, "fillInTheHole() preparing track " + indexInfo.getTrackIndex() +
+                ", " + prepared + " prepared covering " + covered + "ms.");
+        TrackPlayer mp = prepareTrack(indexInfo.getTrackIndex());
+        if (mp != null)
+            inTheHole.add(new InTheHole(indexInfo, mp, SystemClock.elapsedRealtime()));
+    }
+
+    //
+    // Players holding a decoder: the current one, the previous one kept warm, on
+    // deck and in the hole. All count against max_prepared_players.
+    //
+    private int playersHeld() {
+        int rslt = inTheHole.size();
+        if (currentTrackPlayer != null)
+            rslt++;
+        if (previousTrackPlayer != null)
+            rslt++;
+        if (onDeckTrackPlayer != null)
+            rslt++;
+        return rslt;
+    }
 
-        // Let the Music Controller know we are playing the song.
-        Intent notificationIntent = new Intent(this, MainActivity.class);
-        notificationIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        PendingIntent pendInt = PendingIntent.getActivity(this, 0,
-                notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+    private void releaseInTheHole() {
+        for (InTheHole next : inTheHole)
+            playerPool.recycle(next.player);
+        inTheHole.clear();
+    }
 
-        // Create the NotificationChannel, but only on API 26+ because
-        // the NotificationChannel class is new and not in the support library
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            CharSequence name = getString(R.string.channel_name);
-            String description = getString(R.string.channel_description);
-            int importance = NotificationManager.IMPORTANCE_DEFAULT;
-            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, name, importance);
-            channel.setDescription(description);
-            
-            NotificationManager notificationManager = getSystemService(NotificationManager.class);
-            notificationManager.createNotificationChannel(channel);
+    //
+    // Keep the player of a track we have moved on from, ready to go back to. It
+    // replaces any previous player we had. Not if that would leave no room for
+    // the tracks we must have prepared after the current one.
+    //
+    private void keepAsPrevious(TrackPlayer mp, IndexInfo indexInfo) {
+        releasePrevious();
+        if ((indexInfo == null) || indexInfo.isDetached() || (maxPrepared < 2 + minPrepared)) {
+            playerPool.recycle(mp);
+            return;
         }
+        mp.setNextPlayer(null);
+        if (mp.isPlaying())
+            mp.pause();
+        mp.seekTo(0);
+        previousTrackPlayer = mp;
+        previousIndexInfo = indexInfo;
+        previousPrepareStart = 0;
+    }
+
+    //
+    // Prepare the track before the current one if we don't have it already. It
+    // comes after the tracks ahead, so only if there is room left for it.
+    //
+    private void preparePrevious() {
+        if ((previousTrackPlayer != null) || (playingIndexInfo == null) || (songs == null) ||
+                (songs.size() < 3) || (playersHeld() >= maxPrepared))
+            return;
+        IndexInfo indexInfo = new IndexInfo(playingIndexInfo.getPrevShuffleIndex());
+        previousTrackPlayer = prepareTrack(indexInfo.getTrackIndex());
+        previousIndexInfo = (previousTrackPlayer != null) ? indexInfo : null;
+        previousPrepareStart = SystemClock.elapsedRealtime();
+    }
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
-                .setContentIntent(pendInt)
-                .setSmallIcon(R.drawable.ic_notification_icon)
-                .setOngoing(true)
-                .setPriority(NotificationCompat.PRIORITY_DEFAULT);
+    private void releasePrevious() {
+        playerPool.recycle(previousTrackPlayer);
+        previousTrackPlayer = null;
+        previousIndexInfo = null;
+    }
 
-        if ((currentTrackPlayer != null) && (playingIndexInfo != null)) {
-            Song songToPlay = songs.get(playingIndexInfo.getTrackIndex());    //get song info
+    // Slow prepares count straight away, fast ones only bring the estimate down slowly.
+    private void notePrepareTime(long prepareStart) {
+        if (prepareStart == 0)
+            return;
+        long took = SystemClock.elapsedRealtime() - prepareStart;
+        stats.getPrepareLatency().add(took);
+        prepareLatency = (took > prepareLatency) ? took : (7 * prepareLatency + took) / 8;
+    }
 
-            String trackTitle = songToPlay.getTitle();            //set title
-            String trackAlbum = songToPlay.getAlbum();
+    //
+    // A track has just started after the one before completed. Once it has played a
+    // while, the time since the completion less how far it has got is the silence
+    // between them. Measuring that way works whether the engine started it for us
+    // or we started it ourselves, and is as good as the player's position and the
+    // completion time. If the engine can't say when the track ended we only know
+    // when onCompletion() got here, which is late, so that goes in the approximate
+    // histogram.
+    //
+    private void startGapCheck() {
+        if (completedAt == 0)
+            return;
+        gapPlayer = currentTrackPlayer;
+        gapSince = completedAt;
+        gapExact = completedExact;
+        completedAt = 0;
+        playbackHandler.removeCallbacks(gapCheck);
+        playbackHandler.postDelayed(gapCheck, GAP_CHECK_MS);
+    }
 
-            builder.setTicker(trackTitle)
-                    .setContentTitle(songToPlay.getArtist())
-                    .setContentText(trackTitle);
-            if (trackTitle.compareTo(trackAlbum) != 0)
-                builder.setSubText(trackAlbum);
+    private void measureGap() {
+        if ((gapPlayer != null) && (gapPlayer == currentTrackPlayer) && gapPlayer.isPlaying()) {
+            long gap = SystemClock.elapsedRealtime() - gapSince - gapPlayer.getCurrentPosition();
+            if (gapExact)
+                stats.getGap().add(gap);
+            else
+                stats.getApproxGap().add(gap);
         }
-        Notification notify = builder.build();
-        startForeground(NOTIFY_ID, notify);
+        gapPlayer = null;
+    }
+
+    // A seek or pause spoils the measurement, and a new track isn't one to measure.
+    private void cancelGapCheck() {
+        playbackHandler.removeCallbacks(gapCheck);
+        gapPlayer = null;
+        completedAt = 0;
+    }
+
+    //
+    // Save where we are in the journal. Done on every change of track or play state
+    // and every CHECKPOINT_MS while playing, so a killed process resumes close to
+    // where it was. With no track there is nothing worth saving over the last one.
+    //
+    private void checkpoint() {
+        playbackHandler.removeCallbacks(checkpointTick);
+        NowPlaying state = nowPlaying;
+        if (!state.hasTrack() || (state.getTrackIndex() < 0))     // None, or no longer in the list
+            return;
+        journal.write(playListGenre, state.getSong().getId(), state.getTrackIndex(),
+                state.getPosition(), shuffle, lastShuffleSeed);
+        if (state.isPlaying())
+            playbackHandler.postDelayed(checkpointTick, CHECKPOINT_MS);
     }
 
     private void tellTheWorld(String status) {
@@ -766,83 +1400,85 @@ public class MusicService extends Service implements
         Log.d(TAG, "tellTheWorld(" + status + ") isPlaying=" + isPlaying);
 
         notifyMainActivity(status);
-        setMediaSessionState(isPlaying);
-        if (isPlaying) {
-            setupForegroundNotification();
-            updateMetaData();
-        }
     }
 
     private void notifyMainActivity(String status) {
         Log.d(TAG, "notifyMainActivity(" + status + ") entry.");
+        publishState();         // Before the activity asks
         // Let the Main Activity know we are playing the song.
         Intent playingIntent = new Intent(status);
         int trackIndex = 0;
         if (playingIndexInfo != null)
-            trackIndex = playingIndexInfo.getTrackIndex();
+            trackIndex = playingIndexInfo.getListIndex();
         playingIntent.putExtra("songIndex", trackIndex);
         LocalBroadcastManager.getInstance(this).sendBroadcast(playingIntent);
     }
 
-    private Integer[] genPlayOrder(final int size) {
-        Integer[] rslt = new Integer[size];
-
-        // Set seed for shuffling
-        rand.setSeed(shuffleSeed);
-
-        // create sorted card deck (each value only occurs once)
-        for (int i = 0; i < size; i++)
-            rslt[i] = i;
-
-        // shuffle the card deck using Durstenfeld algorithm
-        for (int i = size - 1; i > 0; i--) {
-            int j = rand.nextInt(i);
-            int t = rslt[i];
-            rslt[i] = rslt[j];
-            rslt[j] = t;
+    //
+    // Set up the track and album shuffle orders for a play mode using the current
+    // shuffle seed, then pick the seed for next time. Both orders use the same seed
+    // so saving it is enough to get them back. The orders are only worked out when
+    // first used.
+    //
+    private void genPlayOrders(int playMode) {
+        if ((songs == null) || (albums == null))
+            return;
+        long[] albumIds = new long[albums.size()];
+        for (int i = 0; i < albumIds.length; i++)
+            albumIds[i] = albums.get(i).getID();
+
+        if ((playMode == PLAY_SMART_SONG) || (playMode == PLAY_SMART_ALBUM)) {
+            int[] songGroups = new int[songs.size()];
+            for (int i = 0; i < songGroups.length; i++)
+                songGroups[i] = ShuffleOrder.artistGroup(songs, i);
+            int[] albumGroups = new int[albums.size()];
+            for (int i = 0; i < albumGroups.length; i++)
+                albumGroups[i] = ShuffleOrder.artistGroup(songs, albums.get(i).getTrack());
+            songOrder = ShuffleOrder.spread(songs.idColumn(), songGroups, shuffleSeed);
+            albumOrder = ShuffleOrder.spread(albumIds, albumGroups, shuffleSeed);
+        } else {
+            songOrder = new ShuffleOrder(songs.idColumn(), shuffleSeed);
+            albumOrder = new ShuffleOrder(albumIds, shuffleSeed);
         }
-
         lastShuffleSeed = shuffleSeed;
         shuffleSeed = shuffleRand.nextLong();
-        return rslt;
-    }
 
-    private void logSuffleOrder(String name, Integer[] order) {
+        switch (playMode) {
+            case PLAY_RANDOM_SONG:
+            case PLAY_SMART_SONG:
+                playOrder = new TrackShuffleOrder(songOrder);
+                break;
+
+            case PLAY_RANDOM_ALBUM:
+            case PLAY_SMART_ALBUM:
+                int[] firstTrack = new int[albums.size()];
+                int[] lastTrack = new int[albums.size()];
+                for (int i = 0; i < firstTrack.length; i++) {
+                    firstTrack[i] = albums.get(i).getTrack();
+                    lastTrack[i] = albums.get(i).getLastTrackIndex();
+                }
+                playOrder = new AlbumShuffleOrder(albumOrder, playlist.trackToAlbum(),
+                        firstTrack, lastTrack);
+                break;
 
-        if (false) {
-            String logStr = name + "={";
-            for (int i = 0; i < order.length; i++) {
-                if (i != 0)
-                    logStr += ",";
-                logStr += order[i];
-            }
-            logStr += "}";
-            Log.d(TAG, logStr);
+            default:
+                playOrder = new SequentialOrder(songs.size());
+                break;
         }
     }
 
-    private MediaPlayer initTrackPlayer() {
-        Log.d(TAG, "initTrackPlayer() entry.");
-
-        MediaPlayer newTrackPlayer = new MediaPlayer();
-        //set currentTrackPlayer properties
-        newTrackPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-        newTrackPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        newTrackPlayer.setOnPreparedListener(this);
-        newTrackPlayer.setOnCompletionListener(this);
-        newTrackPlayer.setOnErrorListener(this);
-        return newTrackPlayer;
-    }
-
-    private synchronized void resetToInitialState() {
+    private void resetToInitialState() {
+        cancelGapCheck();
         if (currentTrackPlayer != null) {
-            currentTrackPlayer.release();
+            playerPool.recycle(currentTrackPlayer);
             currentTrackPlayer = null;
         }
         if (onDeckTrackPlayer != null) {
-            onDeckTrackPlayer.release();
+            playerPool.recycle(onDeckTrackPlayer);
             onDeckTrackPlayer = null;
         }
+        releaseInTheHole();
+        releasePrevious();
         try {
             if (noisyReceiverRegistered)
                 unregisterReceiver(myNoisyAudioStreamReceiver);
@@ -874,8 +1510,6 @@ public class MusicService extends Service implements
         // through its MediaSessionCompat.Callback.
         mediaSession.setFlags(MediaSession.FLAG_HANDLES_MEDIA_BUTTONS | MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS);
 
-        //Set mediaSession's MetaData
-        updateMetaData();
 
         // Attach Callback to receive MediaSession updates
         mediaSession.setCallback(new MediaSession.Callback() {
@@ -914,6 +1548,7 @@ public class MusicService extends Service implements
             @Override
             public void onSeekTo(long position) {
                 super.onSeekTo(position);
+                seek((int) position);
             }
         });
 
@@ -924,48 +1559,6 @@ public class MusicService extends Service implements
         mediaSession.setPlaybackState(state);
 
         mediaSession.setActive(true);
-    }
-
-    private void setMediaSessionState(boolean isPlaying) {
-        Log.d(TAG, "setMediaSessionState(" + isPlaying + ") entry.");
-        if (isPlaying) {
-            PlaybackState state = new PlaybackState.Builder()
-                    .setActions(PlaybackState.ACTION_PAUSE |
-                            PlaybackState.ACTION_SKIP_TO_NEXT |
-                            PlaybackState.ACTION_SKIP_TO_PREVIOUS)
-                    .setState(PlaybackState.STATE_PLAYING, PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1)
-                    .build();
-            mediaSession.setPlaybackState(state);
-        } else {
-            PlaybackState state = new PlaybackState.Builder()
-                    .setActions(PlaybackState.ACTION_PLAY)
-                    .setState(PlaybackState.STATE_STOPPED, PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1)
-                    .build();
-            mediaSession.setPlaybackState(state);
-        }
-    }
-
-    private void updateMetaData() {
-        Log.d(TAG, "updateMetaData() entry.");
-        if ((currentTrackPlayer != null) && (playingIndexInfo != null)) {
-            Song songToPlay = songs.get(playingIndexInfo.getTrackIndex());    //get song info
-
-            String trackTitle = songToPlay.getTitle();            //set title
-            String trackAlbum = songToPlay.getAlbum();
-            String trackArtist = songToPlay.getArtist();
-            Bitmap trackArtwork = songToPlay.getArtwork(getApplicationContext());
-
-            // Update the current metadata
-            mediaSession.setMetadata(new MediaMetadata.Builder()
-                    .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, trackArtwork)
-                    .putString(MediaMetadata.METADATA_KEY_ARTIST, trackArtist)
-                    .putString(MediaMetadata.METADATA_KEY_ALBUM, trackAlbum)
-                    .putString(MediaMetadata.METADATA_KEY_TITLE, trackTitle)
-                    .build());
-
-            Log.d(TAG, "updateMetaData() trackAlbum=" + trackAlbum);
-            Log.d(TAG, "updateMetaData() trackTitle=" + trackTitle);
-            Log.d(TAG, "updateMetaData() trackArtist=" + trackArtist);
-        }
+        publisher.setMediaSession(mediaSession);
     }
 }
@@ -0,0 +1,113 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/*
+ * Theory of operation:
+ * 1. The display, the media session and the notification all want to know what is playing
+ *    and how far into it we are. They used to ask the service (and so the player) once a
+ *    second. Instead the service publishes a NowPlaying whenever something changes: a new
+ *    track, play or pause, a seek.
+ * 2. A NowPlaying holds the position at a moment (elapsedRealtime) and the playing speed,
+ *    which is all anyone needs to work out the position at any later moment. Nothing has to
+ *    be asked while a track just plays. This is the same model MediaSession uses, so external
+ *    controllers get an accurate position too.
+ * 3. It is immutable, so it can be handed to any thread.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.os.SystemClock;
+
+public final class NowPlaying {
+    public static final NowPlaying NONE = new NowPlaying(-1, null, false, 0, 0, 0);
+
+    private static final int DRIFT_MS = 250;    // Position error worth telling anyone about
+
+    private final int trackIndex;       // In the service's play list, -1 if nothing
+    private final Song song;            // null if nothing
+    private final boolean playing;
+    private final int duration;         // ms
+    private final int position;         // ms, at updateTime
+    private final long updateTime;      // SystemClock.elapsedRealtime()
+
+    public NowPlaying(int trackIndex, Song song, boolean playing, int duration, int position,
+                      long updateTime) {
+        this.trackIndex = trackIndex;
+        this.song = song;
+        this.playing = playing;
+        this.duration = Math.max(duration, 0);
+        this.position = Math.max(position, 0);
+        this.updateTime = updateTime;
+    }
+
+    public int getTrackIndex() {
+        return trackIndex;
+    }
+
+    public Song getSong() {
+        return song;
+    }
+
+    public boolean hasTrack() {
+        return song != null;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public float getSpeed() {
+        return playing ? 1.0f : 0.0f;
+    }
+
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    // Position when this was made.
+    public int getPositionAtUpdate() {
+        return position;
+    }
+
+    // Position now, assuming we are still playing at the same speed.
+    public int getPosition() {
+        return getPositionAt(SystemClock.elapsedRealtime());
+    }
+
+    public int getPositionAt(long time) {
+        if (!playing)
+            return position;
+        long rslt = position + (time - updateTime);
+        return (int) Math.max(0, Math.min(rslt, duration));
+    }
+
+    // Would someone holding this one be misled by it, compared with a newer one?
+    public boolean differsFrom(NowPlaying newer) {
+        long songId = (song != null) ? song.getId() : -1;
+        long newerSongId = (newer.song != null) ? newer.song.getId() : -1;
+        return (trackIndex != newer.trackIndex) || (songId != newerSongId) ||
+                (playing != newer.playing) || (duration != newer.duration) ||
+                (Math.abs(getPositionAt(newer.updateTime) - newer.position) > DRIFT_MS);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Decoded PCM goes from the decoding thread to the thread that feeds the AudioTrack
+ *    through this fixed size ring. The decoder runs ahead by up to the size of the ring, so
+ *    a slow read or the start of the next track doesn't starve the output.
+ * 2. There is one writer and one reader. Positions are counted in bytes from the start and
+ *    never wrap, so the reader can tell exactly where in the stream it is (the engine marks
+ *    where each track starts by its write position).
+ * 3. write() waits for room, read() doesn't wait. Closing the ring wakes a waiting writer
+ *    and makes it give up, which is how the engine stops a decoder.
+ * 4. The reader waits for data on a lock of its own (the engine's, where it also waits to be
+ *    started), so the ring notifies that lock whenever something is added. That is done after
+ *    letting go of the ring's lock, so the reader can look at the ring while holding its own.
+ */
+
+package org.fitchfamily.android.symphony;
+
+public class PcmRing {
+    private final byte[] buf;
+    private final Object reader;            // Notified when there is more to read, or null
+    private long writePos;
+    private long readPos;
+    private boolean closed;
+
+    public PcmRing(int capacity) {
+        this(capacity, null);
+    }
+
+    public PcmRing(int capacity, Object reader) {
+        buf = new byte[capacity];
+        this.reader = reader;
+        writePos = 0;
+        readPos = 0;
+        closed = false;
+    }
+
+    public synchronized long getWritePosition() {
+        return writePos;
+    }
+
+    public synchronized long getReadPosition() {
+        return readPos;
+    }
+
+    public synchronized int available() {
+        return (int) (writePos - readPos);
+    }
+
+    //
+    // Add all of the bytes, waiting for the reader to make room as needed.
+    // Returns false if the ring was closed first.
+    //
+    public boolean write(byte[] src, int off, int len) {
+        while (len > 0) {
+            int n;
+            synchronized (this) {
+                while (!closed && (writePos - readPos == buf.length)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                if (closed)
+                    return false;
+                int start = (int) (writePos % buf.length);
+                n = Math.min(len, Math.min(buf.length - (int) (writePos - readPos), buf.length - start));
+                System.arraycopy(src, off, buf, start, n);
+                writePos += n;
+            }
+            off += n;
+            len -= n;
+            if (reader != null) {
+                synchronized (reader) {
+                    reader.notifyAll();
+                }
+            }
+        }
+        return true;
+    }
+
+    //
+    // Take up to len bytes, as many as there are. Returns the number taken.
+    //
+    public synchronized int read(byte[] dst, int off, int len) {
+        int rslt = 0;
+        while ((len > 0) && (readPos < writePos)) {
+            int start = (int) (readPos % buf.length);
+            int n = Math.min(len, Math.min((int) (writePos - readPos), buf.length - start));
+            System.arraycopy(buf, start, dst, off, n);
+            readPos += n;
+            off += n;
+            len -= n;
+            rslt += n;
+        }
+        if (rslt > 0)
+            notifyAll();
+        return rslt;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
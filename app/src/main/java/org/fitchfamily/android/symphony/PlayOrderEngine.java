@@ -0,0 +1,51 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/*
+ * Theory of operation:
+ * 1. Working out which track plays after (or before) another depends only on the play mode,
+ *    the size of the list, the album boundaries and the shuffle orders. None of that needs
+ *    Android, so it is kept here, away from the media players in MusicService, where it can
+ *    be exercised on any JVM.
+ * 2. There is one implementation per kind of order: SequentialOrder, TrackShuffleOrder and
+ *    AlbumShuffleOrder. The smart modes are the same as the plain shuffles, they just use a
+ *    different ShuffleOrder.
+ * 3. An engine holds no position of its own. The next and previous tracks are worked out
+ *    from the track itself (its place in the shuffle order is an O(1) lookup), so nothing
+ *    can get out of step with the track that is actually playing.
+ * 4. Both directions wrap around: the track after the last is the first and the track before
+ *    the first is the last. A track number that isn't in the list (e.g. left over from a
+ *    longer list) moves to the first track going forward and the last going back.
+ * 5. Engines are immutable. A new one is made when the list or the play mode changes.
+ */
+
+package org.fitchfamily.android.symphony;
+
+public interface PlayOrderEngine {
+
+    // Number of tracks in the list.
+    int size();
+
+    // Track to play after a track, 0 for an empty list.
+    int next(int track);
+
+    // Track to play before a track, 0 for an empty list.
+    int previous(int track);
+}
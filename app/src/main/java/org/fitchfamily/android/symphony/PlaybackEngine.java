@@ -0,0 +1,41 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. The service doesn't care how tracks are decoded and played, only that it can get a
+ *    TrackPlayer for each and chain them. A PlaybackEngine makes those players.
+ * 2. MediaPlayerEngine gives each track its own MediaPlayer and chains them with
+ *    setNextMediaPlayer(). That leaves the encoder delay and padding of MP3 and AAC tracks
+ *    in place, which can be heard as a tiny gap between tracks that should run together.
+ * 3. CodecEngine decodes the tracks itself and plays them all through one AudioTrack, with
+ *    the delay and padding trimmed, so one track follows the next at the sample.
+ * 4. Which is used is set by the use_codec_engine resource.
+ */
+
+package org.fitchfamily.android.symphony;
+
+public interface PlaybackEngine {
+
+    // A new player in the idle state. Its listener calls come to the calling thread.
+    TrackPlayer newPlayer(TrackPlayer.Listener listener);
+
+    // Done with the engine, its players have all been released.
+    void release();
+}
@@ -0,0 +1,247 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. The activity saves what is playing in its preferences when it stops. If the process is
+ *    killed while the service plays on in the background that is never done, and the next
+ *    start resumes from wherever the activity last stopped, possibly hours back.
+ * 2. So the service also records where it is (genre, track, position, shuffle mode and seed)
+ *    here, every few seconds while playing and whenever the track or play state changes.
+ * 3. The journal is a small file of two fixed size slots, memory mapped, so a checkpoint is
+ *    a copy into memory with no system call. Once it is in the mapping the kernel owns it:
+ *    killing the process doesn't lose it, only losing power before it is flushed could.
+ * 4. Checkpoints go to the two slots in turn, each with a sequence number and a CRC. If a
+ *    checkpoint is only partly written (the process dies part way through, or the activity
+ *    reads while the service writes) its CRC is wrong and the other slot, the checkpoint
+ *    before, is used instead. Reading is mapping the file and checking two CRCs.
+ *
+ * Slot layout (big endian, SLOT_SIZE bytes):
+ *      int     MAGIC
+ *      int     VERSION
+ *      long    sequence, higher is newer
+ *      long    wall clock time written
+ *      long    song id
+ *      int     track index
+ *      int     position (ms)
+ *      int     shuffle mode
+ *      long    shuffle seed
+ *      short   genre name byte length (-1 for none), then the UTF-8 bytes
+ *      ...     zeros
+ *      int     CRC32 of everything before it in the slot
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class PlaybackJournal {
+    private static final String TAG = "Symphony:PlaybackJournal";
+    private static final String FILE_NAME = "playback.journal";
+    private static final int MAGIC = 0x53594d4a;        // "SYMJ"
+    private static final int VERSION = 1;
+    private static final int SLOT_SIZE = 512;
+    private static final int SLOTS = 2;
+    private static final int GENRE_OFFSET = 54;
+    private static final int MAX_GENRE_BYTES = SLOT_SIZE - GENRE_OFFSET - 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // What was playing at a checkpoint.
+    public static final class Checkpoint {
+        private final long savedAt;
+        private final String genre;
+        private final long songId;
+        private final int trackIndex;
+        private final int position;
+        private final int shuffle;
+        private final long shuffleSeed;
+
+        public Checkpoint(long savedAt, String genre, long songId, int trackIndex, int position,
+                          int shuffle, long shuffleSeed) {
+            this.savedAt = savedAt;
+            this.genre = genre;
+            this.songId = songId;
+            this.trackIndex = trackIndex;
+            this.position = position;
+            this.shuffle = shuffle;
+            this.shuffleSeed = shuffleSeed;
+        }
+
+        public long getSavedAt() {
+            return savedAt;
+        }
+
+        public String getGenre() {
+            return genre;
+        }
+
+        public long getSongId() {
+            return songId;
+        }
+
+        public int getTrackIndex() {
+            return trackIndex;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getShuffle() {
+            return shuffle;
+        }
+
+        public long getShuffleSeed() {
+            return shuffleSeed;
+        }
+    }
+
+    private final File mFile;
+    private MappedByteBuffer mMap;
+    private long mSequence = 0;
+    private final byte[] mSlot = new byte[SLOT_SIZE];
+    private final CRC32 mCrc = new CRC32();
+
+    // Only used from one thread (the service's playback thread).
+    public PlaybackJournal(Context context) {
+        mFile = getFile(context);
+    }
+
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    //
+    // The newest complete checkpoint, or null if there isn't one.
+    //
+    public static Checkpoint read(Context context) {
+        File file = getFile(context);
+        if (file.length() != SLOT_SIZE * SLOTS)
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return newest(channel.map(FileChannel.MapMode.READ_ONLY, 0, SLOT_SIZE * SLOTS),
+                    new byte[SLOT_SIZE], new CRC32());
+        } catch (IOException e) {
+            Log.e(TAG, "read() failed.", e);
+            return null;
+        }
+    }
+
+    public void write(String genre, long songId, int trackIndex, int position, int shuffle,
+                      long shuffleSeed) {
+        if ((mMap == null) && !open())
+            return;
+        byte[] name = (genre != null) ? genre.getBytes(UTF8) : null;
+        if ((name != null) && (name.length > MAX_GENRE_BYTES))
+            name = null;                        // Can't be restored, but the rest can be seen
+
+        mSequence++;
+        Arrays.fill(mSlot, (byte) 0);
+        ByteBuffer slot = ByteBuffer.wrap(mSlot);
+        slot.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(mSequence)
+                .putLong(System.currentTimeMillis())
+                .putLong(songId)
+                .putInt(trackIndex)
+                .putInt(position)
+                .putInt(shuffle)
+                .putLong(shuffleSeed)
+                .putShort((short) ((name != null) ? name.length : -1));
+        if (name != null)
+            slot.put(name);
+        mCrc.reset();
+        mCrc.update(mSlot, 0, SLOT_SIZE - 4);
+        slot.putInt(SLOT_SIZE - 4, (int) mCrc.getValue());
+
+        mMap.position((int) (mSequence % SLOTS) * SLOT_SIZE);
+        mMap.put(mSlot);
+    }
+
+    public void close() {
+        mMap = null;
+    }
+
+    private boolean open() {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            mMap = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOT_SIZE * SLOTS);
+        } catch (IOException e) {
+            Log.e(TAG, "open() failed.", e);
+            return false;
+        }
+        // Carry on numbering from the checkpoints already there.
+        for (int i = 0; i < SLOTS; i++) {
+            if (readSlot(mMap, i, mSlot, mCrc) != null)
+                mSequence = Math.max(mSequence, ByteBuffer.wrap(mSlot).getLong(8));
+        }
+        return true;
+    }
+
+    private static Checkpoint newest(ByteBuffer map, byte[] buf, CRC32 crc) {
+        Checkpoint rslt = null;
+        long newest = -1;
+        for (int i = 0; i < SLOTS; i++) {
+            Checkpoint checkpoint = readSlot(map, i, buf, crc);
+            long sequence = ByteBuffer.wrap(buf).getLong(8);
+            if ((checkpoint != null) && (sequence > newest)) {
+                rslt = checkpoint;
+                newest = sequence;
+            }
+        }
+        return rslt;
+    }
+
+    // The checkpoint in a slot if it is complete, otherwise null. The slot is left in buf.
+    private static Checkpoint readSlot(ByteBuffer map, int index, byte[] buf, CRC32 crc) {
+        ByteBuffer src = map.duplicate();
+        src.position(index * SLOT_SIZE);
+        src.get(buf);
+        ByteBuffer slot = ByteBuffer.wrap(buf);
+        crc.reset();
+        crc.update(buf, 0, SLOT_SIZE - 4);
+        if ((slot.getInt(SLOT_SIZE - 4) != (int) crc.getValue()) || (slot.getInt() != MAGIC) ||
+                (slot.getInt() != VERSION))
+            return null;
+        slot.getLong();                         // Sequence
+        long savedAt = slot.getLong();
+        long songId = slot.getLong();
+        int trackIndex = slot.getInt();
+        int position = slot.getInt();
+        int shuffle = slot.getInt();
+        long shuffleSeed = slot.getLong();
+        int length = slot.getShort();
+        if (length > MAX_GENRE_BYTES)
+            return null;
+        String genre = (length >= 0) ? new String(buf, GENRE_OFFSET, length, UTF8) : null;
+        return new Checkpoint(savedAt, genre, songId, trackIndex, position, shuffle, shuffleSeed);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. When there is a gap between tracks the log doesn't say why: the prepare was slow, the
+ *    next track was prepared too late, or the switch itself took time. So the service keeps
+ *    counts of how long these things take while it plays, to be looked at afterwards with
+ *    "adb shell dumpsys activity service org.fitchfamily.android.symphony/.MusicService"
+ *    (see MusicService.dump()) or read in process with MusicService.getStats().
+ * 2. Each time is added to a Histogram of power of two buckets (1ms, 2ms, 4ms, ... 32s and
+ *    over). Adding one is a few array updates, no allocation, so it can be done on every
+ *    track. Percentiles are only as good as the buckets, the upper end of the bucket is
+ *    reported. A time below zero can't be real, the start of it was stamped late, so it is
+ *    counted on its own rather than as 0ms where it would pass for a perfect result.
+ * 3. Times are recorded on the playback thread and read from the binder thread dump() is
+ *    called on, so each histogram and the counters are synchronized. Nobody else is after
+ *    the lock, it costs next to nothing.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+public class PlaybackStats {
+    public static class Histogram {
+        public static final int BUCKETS = 17;     // 0ms, up to 1ms, 3ms, 7ms ... 32767ms, and over
+
+        private final String mName;
+        private final long[] mBuckets = new long[BUCKETS];
+        private long mCount;
+        private long mSum;
+        private long mMin;
+        private long mMax;
+        private long mBelowZero;
+
+        public Histogram(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        // Times below zero are only counted, see getBelowZero().
+        public synchronized void add(long ms) {
+            if (ms < 0) {
+                mBelowZero++;
+                return;
+            }
+            mBuckets[bucketOf(ms)]++;
+            mMin = (mCount == 0) ? ms : Math.min(mMin, ms);
+            mMax = Math.max(mMax, ms);
+            mSum += ms;
+            mCount++;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        // Times added that were below zero, not in the count or the buckets.
+        public synchronized long getBelowZero() {
+            return mBelowZero;
+        }
+
+        public synchronized long getMin() {
+            return mMin;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        public synchronized long getMean() {
+            return (mCount == 0) ? 0 : mSum / mCount;
+        }
+
+        // The largest time in the bucket holding the given fraction (0 to 1) of the times.
+        public synchronized long getPercentile(double fraction) {
+            if (mCount == 0)
+                return 0;
+            long wanted = Math.max(1, (long) Math.ceil(fraction * mCount));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= wanted)
+                    return Math.min(upperBound(i), mMax);
+            }
+            return mMax;
+        }
+
+        public synchronized long[] getBuckets() {
+            return mBuckets.clone();
+        }
+
+        public synchronized void reset() {
+            Arrays.fill(mBuckets, 0);
+            mCount = 0;
+            mSum = 0;
+            mMin = 0;
+            mMax = 0;
+            mBelowZero = 0;
+        }
+
+        public synchronized void dump(PrintWriter pw) {
+            pw.println(String.format(Locale.US,
+                    "  %s: count=%d min=%d mean=%d p50=%d p90=%d p99=%d max=%d (ms)%s",
+                    mName, mCount, mMin, getMean(), getPercentile(0.5), getPercentile(0.9),
+                    getPercentile(0.99), mMax, (mBelowZero > 0) ? " below zero=" + mBelowZero : ""));
+            if (mCount == 0)
+                return;
+            StringBuilder line = new StringBuilder("   ");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (mBuckets[i] == 0)
+                    continue;
+                if (i < BUCKETS - 1)
+                    line.append(" <=").append(upperBound(i));
+                else
+                    line.append(" >").append(upperBound(i - 1));
+                line.append(':').append(mBuckets[i]);
+            }
+            pw.println(line);
+        }
+
+        // Bucket 0 is 0ms, bucket i is from (1 << (i - 1))ms up to (1 << i) - 1ms, the
+        // last is everything above that.
+        static int bucketOf(long ms) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+        }
+
+        static long upperBound(int bucket) {
+            return (1L << bucket) - 1;
+        }
+    }
+
+    // How long from prepareAsync() to onPrepared(), for every track prepared.
+    private final Histogram mPrepare = new Histogram("prepare");
+    // How long the on deck track had been ready when the current track completed.
+    private final Histogram mReadyLead = new Histogram("on deck ready before completion");
+    // Silence between one track completing and the next playing, timed from when the
+    // engine heard the last of the track (see TrackPlayer.getCompletedAt()).
+    private final Histogram mGap = new Histogram("gap between tracks");
+    // The same for engines that can't say when a track ended (MediaPlayer), timed from
+    // when onCompletion() was handled. That is late by however long the message took to
+    // get to us, so these come out short, and chained tracks often below zero.
+    private final Histogram mApproxGap = new Histogram("gap between tracks, approximate");
+    // From next or previous being pressed to the track starting.
+    private final Histogram mSkip = new Histogram("skip to start");
+
+    private long mLateOnDeck;           // Completions with the on deck track not yet prepared
+    private long mPlayerErrors;         // onError() from a player
+    private long mSourceErrors;         // Tracks that couldn't be opened
+    private long mSince = System.currentTimeMillis();
+
+    public Histogram getPrepareLatency() {
+        return mPrepare;
+    }
+
+    public Histogram getReadyLead() {
+        return mReadyLead;
+    }
+
+    public Histogram getGap() {
+        return mGap;
+    }
+
+    public Histogram getApproxGap() {
+        return mApproxGap;
+    }
+
+    public Histogram getSkipLatency() {
+        return mSkip;
+    }
+
+    public synchronized long getLateOnDeck() {
+        return mLateOnDeck;
+    }
+
+    public synchronized long getPlayerErrors() {
+        return mPlayerErrors;
+    }
+
+    public synchronized long getSourceErrors() {
+        return mSourceErrors;
+    }
+
+    public synchronized void countLateOnDeck() {
+        mLateOnDeck++;
+    }
+
+    public synchronized void countPlayerError() {
+        mPlayerErrors++;
+    }
+
+    public synchronized void countSourceError() {
+        mSourceErrors++;
+    }
+
+    public void reset() {
+        mPrepare.reset();
+        mReadyLead.reset();
+        mGap.reset();
+        mApproxGap.reset();
+        mSkip.reset();
+        synchronized (this) {
+            mLateOnDeck = 0;
+            mPlayerErrors = 0;
+            mSourceErrors = 0;
+            mSince = System.currentTimeMillis();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("Playback stats since " + new Date(mSince) + ":");
+        }
+        mPrepare.dump(pw);
+        mReadyLead.dump(pw);
+        mGap.dump(pw);
+        mApproxGap.dump(pw);
+        mSkip.dump(pw);
+        synchronized (this) {
+            pw.println("  on deck not ready at completion: " + mLateOnDeck);
+            pw.println("  player errors: " + mPlayerErrors);
+            pw.println("  tracks that could not be opened: " + mSourceErrors);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/*
+ * Theory of operation:
+ * 1. Every track used to get a brand new MediaPlayer which was released when the track was
+ *    done with. Creating a player sets up a native player in the media server and releasing
+ *    it tears that down again, on every track change and more when the user skips about.
+ * 2. Instead players that are done with are reset() and kept for the next track. A reset
+ *    player holds no decoder or file, just the (small) native player, and our listener
+ *    stays attached so it is only set up once.
+ * 3. Only a few idle players are kept. Any more are released. The service prepares at most a
+ *    few tracks at a time so there is no need for more.
+ * 4. Like the players themselves the pool is only used from the service's playback thread,
+ *    so it does no locking of its own. The players come from the service's PlaybackEngine.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+public class PlayerPool {
+    private static final String TAG = "Symphony:PlayerPool";
+    private static final int MAX_IDLE = 2;
+
+    private final PlaybackEngine mEngine;
+    private final TrackPlayer.Listener mListener;
+    private final ArrayList<TrackPlayer> mIdle = new ArrayList<>(MAX_IDLE);
+    private int mCreated = 0;
+    private int mReused = 0;
+
+    public PlayerPool(PlaybackEngine engine, TrackPlayer.Listener listener) {
+        mEngine = engine;
+        mListener = listener;
+    }
+
+    // A player in the idle state, ready for setDataSource().
+    public TrackPlayer acquire() {
+        if (mIdle.isEmpty()) {
+            mCreated++;
+            return mEngine.newPlayer(mListener);
+        }
+        mReused++;
+        return mIdle.remove(mIdle.size() - 1);
+    }
+
+    // Finished with a player, in whatever state it is in. It must no longer be
+    // the next player of one still in use.
+    public void recycle(TrackPlayer mp) {
+        if (mp == null)
+            return;
+        if (mIdle.size() >= MAX_IDLE) {
+            mp.release();
+            return;
+        }
+        try {
+            mp.reset();
+            mIdle.add(mp);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "recycle() player could not be reset", e);
+            mp.release();
+        }
+    }
+
+    // Release the idle players, e.g. when the service is going away.
+    public void releaseAll() {
+        Log.d(TAG, "releaseAll() " + mCreated + " players created, " + mReused + " reused.");
+        for (TrackPlayer mp : mIdle)
+            mp.release();
+        mIdle.clear();
+    }
+}
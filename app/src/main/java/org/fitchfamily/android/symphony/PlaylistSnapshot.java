@@ -0,0 +1,104 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. A play list is more than its tracks: the display and the service both need the album
+ *    boundaries, and finding those means walking the whole list. Each used to work them out
+ *    for itself and the display kept its own copy of the album list.
+ * 2. A PlaylistSnapshot holds the tracks together with everything derived from them. It is
+ *    built once per play list (Genre does that on first use) and never changed afterwards,
+ *    so the activity, the adapters and the service all hold the same object with no copying
+ *    and no locking.
+ * 3. Along with the album list we keep, for each track, the index of its album in that list.
+ *    Finding the album of a track is then an array lookup rather than a search, and albums
+ *    with the same title can't be confused.
+ * 4. When a play list changes a new snapshot is made. Whoever still holds the old one carries
+ *    on with a consistent (if out of date) view until they are given the new one.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class PlaylistSnapshot {
+    public static final PlaylistSnapshot EMPTY = new PlaylistSnapshot(SongTable.EMPTY, new ArrayList<>());
+
+    private final SongTable songs;
+    private final List<Album> albums;
+    private final int[] trackToAlbum;       // Index into albums for each track
+
+    // For an album index that was saved with the songs.
+    public PlaylistSnapshot(SongTable songs, List<Album> albums) {
+        this.songs = songs;
+        this.albums = Collections.unmodifiableList(albums);
+        trackToAlbum = new int[songs.size()];
+        for (int i = 0; i < albums.size(); i++) {
+            Album a = albums.get(i);
+            int first = Math.max(0, a.getTrack());
+            int last = Math.min(songs.size() - 1, a.getLastTrackIndex());
+            if (first <= last)
+                Arrays.fill(trackToAlbum, first, last + 1, i);
+        }
+    }
+
+    private PlaylistSnapshot(SongTable songs, List<Album> albums, int[] trackToAlbum) {
+        this.songs = songs;
+        this.albums = Collections.unmodifiableList(albums);
+        this.trackToAlbum = trackToAlbum;
+    }
+
+    public static PlaylistSnapshot of(SongTable songs) {
+        if ((songs == null) || songs.isEmpty())
+            return EMPTY;
+        int[] trackToAlbum = new int[songs.size()];
+        return new PlaylistSnapshot(songs, Album.getAlbumIndexes(songs, trackToAlbum), trackToAlbum);
+    }
+
+    public SongTable getSongs() {
+        return songs;
+    }
+
+    public List<Album> getAlbums() {
+        return albums;
+    }
+
+    // Index in getAlbums() of the album a track is on, -1 if no such track.
+    public int getAlbumIndex(int track) {
+        if ((track < 0) || (track >= trackToAlbum.length))
+            return -1;
+        return trackToAlbum[track];
+    }
+
+    // Album index of every track, for the play order. Shared, must not be changed.
+    int[] trackToAlbum() {
+        return trackToAlbum;
+    }
+
+    public int size() {
+        return songs.size();
+    }
+
+    public boolean isEmpty() {
+        return songs.isEmpty();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Tracks are played in album title order, then album id, then track number and, if two
+ *    tracks claim the same track number, by title. Evaluating all of that with a comparator
+ *    means looking up collation keys on every one of the n log n comparisons.
+ * 2. Instead we encode each track once into a single long: the album's rank (its position
+ *    after sorting the distinct albums by title key and id) in the upper 32 bits and the track
+ *    number in the lower 32 bits. Sorting the tracks is then a primitive sort of those keys.
+ *    Collation keys are only looked at once per album, and there are far fewer albums than
+ *    tracks.
+ * 3. The keys are sorted with a least significant digit radix sort, a byte at a time, that
+ *    carries the row number along. Bytes that are the same in every key are skipped, so a
+ *    typical play list needs four or five linear passes.
+ * 4. Above PARALLEL_THRESHOLD tracks the rows are split into one slice per core. The slices are
+ *    sorted at the same time and then merged in pairs.
+ * 5. Title ranks are not part of the key. Two tracks of the same album with the same number is
+ *    rare, so after the sort we look for runs of equal keys and order just those by title.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class PlaylistSorter {
+    public static final int PARALLEL_THRESHOLD = 32 * 1024;     // Tracks
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService executor = null;
+
+    private PlaylistSorter() {
+    }
+
+    // Return the rows of the table in play order.
+    public static int[] sort(SongTable songs, SortKeys sortKeys) {
+        int n = songs.size();
+        int[] rows = new int[n];
+        if (n == 0)
+            return rows;
+
+        // Find the distinct albums and remember a row for each so we can get its title.
+        long[] albumIds = new long[n];
+        for (int i = 0; i < n; i++)
+            albumIds[i] = songs.getAlbumId(i);
+        long[] distinct = distinct(albumIds);
+        int[] rowAlbum = new int[n];
+        int[] albumRow = new int[distinct.length];
+        for (int i = 0; i < n; i++) {
+            int a = Arrays.binarySearch(distinct, albumIds[i]);
+            rowAlbum[i] = a;
+            albumRow[a] = i;
+        }
+
+        // Rank the albums by title, then id.
+        final CollationKey[] titleKeys = new CollationKey[distinct.length];
+        Integer[] byTitle = new Integer[distinct.length];
+        for (int a = 0; a < distinct.length; a++) {
+            titleKeys[a] = sortKeys.albumKey(distinct[a], songs.getAlbum(albumRow[a]));
+            byTitle[a] = a;
+        }
+        // Ties on title are already in id order as distinct[] is sorted by id.
+        Arrays.sort(byTitle, (x, y) -> titleKeys[x].compareTo(titleKeys[y]));
+        int[] albumRank = new int[distinct.length];
+        for (int r = 0; r < byTitle.length; r++)
+            albumRank[byTitle[r]] = r;
+
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) albumRank[rowAlbum[i]] << 32) |
+                    ((songs.getTrack(i) ^ Integer.MIN_VALUE) & 0xffffffffL);
+            rows[i] = i;
+        }
+
+        if (n >= PARALLEL_THRESHOLD && THREADS > 1)
+            parallelSort(keys, rows);
+        else
+            radixSort(keys, rows);
+
+        sortTitleTies(songs, sortKeys, keys, rows);
+        return rows;
+    }
+
+    //
+    // Sort keys (which must not be negative), moving rows along with them. Stable.
+    //
+    static void radixSort(long[] keys, int[] rows) {
+        int n = keys.length;
+        if (n < 2)
+            return;
+        long varying = 0;
+        for (long k : keys)
+            varying |= k ^ keys[0];
+
+        long[] srcKeys = keys;
+        int[] srcRows = rows;
+        long[] dstKeys = new long[n];
+        int[] dstRows = new int[n];
+        int[] count = new int[256];
+        for (int shift = 0; shift < 64; shift += 8) {
+            if (((varying >>> shift) & 0xff) == 0)
+                continue;
+            Arrays.fill(count, 0);
+            for (int i = 0; i < n; i++)
+                count[(int) (srcKeys[i] >>> shift) & 0xff]++;
+            int sum = 0;
+            for (int b = 0; b < 256; b++) {
+                int c = count[b];
+                count[b] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                int d = count[(int) (srcKeys[i] >>> shift) & 0xff]++;
+                dstKeys[d] = srcKeys[i];
+                dstRows[d] = srcRows[i];
+            }
+            long[] tk = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = tk;
+            int[] tr = srcRows;
+            srcRows = dstRows;
+            dstRows = tr;
+        }
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, n);
+            System.arraycopy(srcRows, 0, rows, 0, n);
+        }
+    }
+
+    private static void parallelSort(long[] keys, int[] rows) {
+        int n = keys.length;
+        int slices = Math.min(THREADS, n / (PARALLEL_THRESHOLD / 4));
+        final long[][] sliceKeys = new long[slices][];
+        final int[][] sliceRows = new int[slices][];
+        for (int s = 0; s < slices; s++) {
+            int from = (int) ((long) n * s / slices);
+            int to = (int) ((long) n * (s + 1) / slices);
+            sliceKeys[s] = Arrays.copyOfRange(keys, from, to);
+            sliceRows[s] = Arrays.copyOfRange(rows, from, to);
+        }
+
+        ArrayList<Future<?>> work = new ArrayList<>(slices);
+        for (int s = 0; s < slices; s++) {
+            final int slice = s;
+            work.add(getExecutor().submit(() -> radixSort(sliceKeys[slice], sliceRows[slice])));
+        }
+        waitFor(work);
+
+        // Merge pairs of slices until one is left. Merges in each round run in parallel.
+        long[][] curKeys = sliceKeys;
+        int[][] curRows = sliceRows;
+        while (curKeys.length > 1) {
+            final int pairs = curKeys.length / 2;
+            final long[][] nextKeys = new long[(curKeys.length + 1) / 2][];
+            final int[][] nextRows = new int[nextKeys.length][];
+            if ((curKeys.length & 1) != 0) {
+                nextKeys[pairs] = curKeys[curKeys.length - 1];
+                nextRows[pairs] = curRows[curRows.length - 1];
+            }
+            work.clear();
+            for (int p = 0; p < pairs; p++) {
+                final int pair = p;
+                final long[][] k = curKeys;
+                final int[][] r = curRows;
+                work.add(getExecutor().submit(() -> {
+                    int size = k[2 * pair].length + k[2 * pair + 1].length;
+                    nextKeys[pair] = new long[size];
+                    nextRows[pair] = new int[size];
+                    merge(k[2 * pair], r[2 * pair], k[2 * pair + 1], r[2 * pair + 1],
+                            nextKeys[pair], nextRows[pair]);
+                }));
+            }
+            waitFor(work);
+            curKeys = nextKeys;
+            curRows = nextRows;
+        }
+        System.arraycopy(curKeys[0], 0, keys, 0, n);
+        System.arraycopy(curRows[0], 0, rows, 0, n);
+    }
+
+    private static void merge(long[] aKeys, int[] aRows, long[] bKeys, int[] bRows,
+                              long[] keys, int[] rows) {
+        int i = 0;
+        int j = 0;
+        int d = 0;
+        while ((i < aKeys.length) && (j < bKeys.length)) {
+            if (aKeys[i] <= bKeys[j]) {
+                keys[d] = aKeys[i];
+                rows[d++] = aRows[i++];
+            } else {
+                keys[d] = bKeys[j];
+                rows[d++] = bRows[j++];
+            }
+        }
+        while (i < aKeys.length) {
+            keys[d] = aKeys[i];
+            rows[d++] = aRows[i++];
+        }
+        while (j < bKeys.length) {
+            keys[d] = bKeys[j];
+            rows[d++] = bRows[j++];
+        }
+    }
+
+    // Order runs of tracks with the same album and track number by title.
+    private static void sortTitleTies(final SongTable songs, final SortKeys sortKeys,
+                                      long[] keys, int[] rows) {
+        int start = 0;
+        while (start < keys.length) {
+            int end = start + 1;
+            while ((end < keys.length) && (keys[end] == keys[start]))
+                end++;
+            if (end - start > 1) {
+                Integer[] tied = new Integer[end - start];
+                for (int i = start; i < end; i++)
+                    tied[i - start] = rows[i];
+                Arrays.sort(tied, (x, y) -> sortKeys.compareTitles(songs.getTitle(x), songs.getTitle(y)));
+                for (int i = start; i < end; i++)
+                    rows[i] = tied[i - start];
+            }
+            start = end;
+        }
+    }
+
+    private static long[] distinct(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if ((i == 0) || (sorted[i] != sorted[count - 1]))
+                sorted[count++] = sorted[i];
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS, r -> {
+                Thread t = new Thread(r, "Symphony:PlaylistSorter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    private static void waitFor(ArrayList<Future<?>> work) {
+        try {
+            for (Future<?> f : work)
+                f.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Playlist sort failed", e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.fitchfamily.android.symphony;
+
+//
+// Tracks in list order.
+//
+public class SequentialOrder implements PlayOrderEngine {
+    private final int size;
+
+    public SequentialOrder(int size) {
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int next(int track) {
+        if ((track < 0) || (track >= size - 1))
+            return 0;
+        return track + 1;
+    }
+
+    @Override
+    public int previous(int track) {
+        if ((track <= 0) || (track >= size))
+            return Math.max(size - 1, 0);
+        return track - 1;
+    }
+}
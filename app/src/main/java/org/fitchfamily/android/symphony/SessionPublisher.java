@@ -0,0 +1,250 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Each NowPlaying the service publishes has to reach the media session (playback state
+ *    and track metadata) and the notification. Every one of those is a binder call to the
+ *    system, and SystemUI redraws the lock screen or notification for each. The service
+ *    used to make them all, with new builders, on every change.
+ * 2. Here the states are collected and sent at most once per UPDATE_MS. A burst of skips or
+ *    seeks inside that window is one update with the last state. Whatever is sent is
+ *    compared with what was last sent and only what differs goes out:
+ *      - The playback state when the NowPlaying differs (track, playing, or a position
+ *        that no longer follows from the last one).
+ *      - The metadata when the track changes, and again when its artwork arrives (see
+ *        ArtworkCache).
+ *      - The notification when the track, playing or (after a seek) the time played
+ *        changes. The notification manager drops updates that come faster than a few a
+ *        second, which could lose the last one, so it gets no more than one per NOTIFY_MS.
+ * 3. The channel, the notification builder and the playback state builder are made once and
+ *    reused.
+ * 4. All of this runs on the service's playback thread through its Handler.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.core.app.NotificationCompat;
+
+public class SessionPublisher {
+    private static final String TAG = "Symphony:SessionPublisher";
+    private static final String NOTIFICATION_CHANNEL_ID = "org.fitchfamily.android.symphony";
+    private static final int NOTIFY_ID = 1;
+    private static final long UPDATE_MS = 16;       // About a frame
+    private static final long NOTIFY_MS = 250;
+    private static final long CHRONOMETER_SLOP_MS = 1000;
+
+    private final Service mService;
+    private final Handler mHandler;
+    private final ArtworkCache mArtwork;
+    private final NotificationManager mNotificationManager;
+    private final NotificationCompat.Builder mNotification;
+    private final PlaybackState.Builder mState = new PlaybackState.Builder();
+    private MediaSession mSession;
+
+    private NowPlaying mPending = NowPlaying.NONE;
+    private boolean mFlushPosted = false;
+    private long mLastUpdate = 0;
+    private long mLastNotify = 0;
+
+    // What was last sent
+    private NowPlaying mSessionState = null;
+    private long mMetaDataSongId = -1;
+    private boolean mMetaDataHasArtwork = false;
+    private long mNotifySongId = -1;
+    private boolean mNotifyPlaying = false;
+    private long mNotifyStarted = 0;        // Wall clock time the track would have started
+    private boolean mForeground = false;
+
+    private final Runnable mFlush = this::flush;
+
+    public SessionPublisher(Service service, Handler handler, ArtworkCache artwork) {
+        mService = service;
+        mHandler = handler;
+        mArtwork = artwork;
+        mNotificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // Create the NotificationChannel, but only on API 26+ because
+        // the NotificationChannel class is new and not in the support library
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    service.getString(R.string.channel_name), NotificationManager.IMPORTANCE_DEFAULT);
+            channel.setDescription(service.getString(R.string.channel_description));
+            mNotificationManager.createNotificationChannel(channel);
+        }
+
+        Intent notificationIntent = new Intent(service, MainActivity.class);
+        notificationIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        PendingIntent pendInt = PendingIntent.getActivity(service, 0,
+                notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        mNotification = new NotificationCompat.Builder(service, NOTIFICATION_CHANNEL_ID)
+                .setContentIntent(pendInt)
+                .setSmallIcon(R.drawable.ic_notification_icon)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_DEFAULT);
+    }
+
+    // From any thread. The session is brought up to date once it is set.
+    public void setMediaSession(MediaSession session) {
+        mHandler.post(() -> {
+            mSession = session;
+            mSessionState = null;
+            mMetaDataSongId = -1;
+            publish(mPending);
+        });
+    }
+
+    public void publish(NowPlaying state) {
+        mPending = state;
+        schedule(mLastUpdate + UPDATE_MS);
+    }
+
+    // Playing has stopped, take the notification down.
+    public void stopForeground() {
+        mService.stopForeground(true);
+        mForeground = false;
+        mNotifySongId = -1;
+    }
+
+    private void schedule(long when) {
+        if (mFlushPosted)
+            return;
+        mFlushPosted = true;
+        mHandler.postDelayed(mFlush, Math.max(0, when - SystemClock.elapsedRealtime()));
+    }
+
+    private void flush() {
+        mFlushPosted = false;
+        mLastUpdate = SystemClock.elapsedRealtime();
+        NowPlaying state = mPending;
+        updateSessionState(state);
+        updateMetaData(state);
+        updateNotification(state);
+    }
+
+    private void updateSessionState(NowPlaying state) {
+        if ((mSession == null) || ((mSessionState != null) && !mSessionState.differsFrom(state)))
+            return;
+        long actions = PlaybackState.ACTION_SKIP_TO_NEXT | PlaybackState.ACTION_SKIP_TO_PREVIOUS |
+                PlaybackState.ACTION_SEEK_TO;
+        int playbackState;
+        if (state.isPlaying()) {
+            actions |= PlaybackState.ACTION_PAUSE;
+            playbackState = PlaybackState.STATE_PLAYING;
+        } else {
+            actions |= PlaybackState.ACTION_PLAY;
+            playbackState = state.hasTrack() ? PlaybackState.STATE_PAUSED : PlaybackState.STATE_STOPPED;
+        }
+        mSession.setPlaybackState(mState
+                .setActions(actions)
+                .setState(playbackState, state.getPositionAtUpdate(), state.getSpeed(),
+                        state.getUpdateTime())
+                .build());
+        mSessionState = state;
+    }
+
+    //
+    // The text goes as soon as the track changes. The artwork goes with it if it is
+    // cached, otherwise the metadata is sent again when the artwork has been decoded.
+    //
+    private void updateMetaData(NowPlaying state) {
+        Song song = state.getSong();
+        if ((mSession == null) || (song == null))
+            return;
+        long songId = song.getId();
+        Bitmap artwork = mArtwork.get(songId);
+        if ((songId == mMetaDataSongId) && (mMetaDataHasArtwork || (artwork == null)))
+            return;
+
+        MediaMetadata.Builder metaData = new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, song.getArtist())
+                .putString(MediaMetadata.METADATA_KEY_ALBUM, song.getAlbum())
+                .putString(MediaMetadata.METADATA_KEY_TITLE, song.getTitle())
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, state.getDuration());
+        if (artwork != null)
+            metaData.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, artwork);
+        else
+            mArtwork.load(songId, this::onArtwork);
+        mSession.setMetadata(metaData.build());
+        mMetaDataSongId = songId;
+        mMetaDataHasArtwork = (artwork != null);
+        Log.d(TAG, "updateMetaData() " + song.getTitle() + ((artwork != null) ? " with artwork." : "."));
+    }
+
+    private void onArtwork(long songId, Bitmap artwork) {
+        if (songId == mMetaDataSongId)
+            publish(mPending);
+    }
+
+    //
+    // Only a playing track puts the notification up. Once it is up it follows the
+    // track, play and pause, and seeks (for the time played).
+    //
+    private void updateNotification(NowPlaying state) {
+        Song song = state.getSong();
+        if ((song == null) || (!mForeground && !state.isPlaying()))
+            return;
+        boolean playing = state.isPlaying();
+        long started = System.currentTimeMillis() - state.getPosition();
+        if (mForeground && (song.getId() == mNotifySongId) && (playing == mNotifyPlaying) &&
+                (!playing || (Math.abs(started - mNotifyStarted) < CHRONOMETER_SLOP_MS)))
+            return;
+        long now = SystemClock.elapsedRealtime();
+        if (mForeground && (now < mLastNotify + NOTIFY_MS)) {
+            schedule(mLastNotify + NOTIFY_MS);
+            return;
+        }
+
+        String trackTitle = song.getTitle();
+        String trackAlbum = song.getAlbum();
+        mNotification.setTicker(trackTitle)
+                .setContentTitle(song.getArtist())
+                .setContentText(trackTitle)
+                .setSubText((trackTitle.compareTo(trackAlbum) != 0) ? trackAlbum : null)
+                // Let the notification count the time played itself.
+                .setWhen(started)
+                .setShowWhen(playing)
+                .setUsesChronometer(playing);
+        if (mForeground) {
+            mNotificationManager.notify(NOTIFY_ID, mNotification.build());
+        } else {
+            mService.startForeground(NOTIFY_ID, mNotification.build());
+            mForeground = true;
+        }
+        mLastNotify = now;
+        mNotifySongId = song.getId();
+        mNotifyPlaying = playing;
+        mNotifyStarted = started;
+    }
+}
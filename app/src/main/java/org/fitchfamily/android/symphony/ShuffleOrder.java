@@ -0,0 +1,198 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. A shuffled play order is a permutation of 0..size-1 (track or album indexes). Playing
+ *    forward we need the item at a position, and when the user picks a track we need the
+ *    position of that item so play continues from there. Searching the permutation for the
+ *    item is O(n), so we also keep the inverse permutation and both lookups are O(1).
+ * 2. Both are plain int arrays. A 100k track order is 800KB rather than several MB of boxed
+ *    Integers.
+ * 3. The order is not made by shuffling a deck. Instead each item is given a key, a hash of
+ *    the shuffle seed and the item's id (song id or album id), and the items are played in
+ *    key order. So the order depends only on the seed and the ids:
+ *      - Restoring the order after a restart only needs the seed.
+ *      - Adding or removing tracks or albums doesn't change the order of the others, the new
+ *        items just fall into place among them. A half finished pass through a genre can be
+ *        resumed after the library changes.
+ * 4. The keys are sorted with PlaylistSorter's radix sort, so building an order is linear.
+ * 5. Only one shuffle mode is in use at a time, so an order is not built until it is first
+ *    used. Creating one is free.
+ * 6. A truly random order often plays the same composer (or artist) twice in a row. The
+ *    "smart" orders spread each group out instead: the k members of a group are placed at
+ *    evenly spaced points (r + offset) / k, r = 0..k-1, where the offset is random for each
+ *    group, plus a little random jitter so groups of the same size don't interleave in lock
+ *    step. Sorting all items by those points gives the order. Two radix sorts, so building
+ *    one is still linear.
+ */
+
+package org.fitchfamily.android.symphony;
+
+public class ShuffleOrder {
+    private static final int KEY_SHIFT = 24;    // Use 40 bits of hash: fewer radix passes
+    private static final double JITTER = 0.2;   // Of the spacing between members of a group
+
+    private final long[] ids;
+    private final int[] groups;     // Group (e.g. composer) of each item, null if not spreading
+    private final long seed;
+    private int[] order;            // Item at each position, built on first use
+    private int[] position;         // Position of each item
+
+    // The ids must not be changed after this.
+    public ShuffleOrder(long[] ids, long seed) {
+        this(ids, null, seed);
+    }
+
+    private ShuffleOrder(long[] ids, int[] groups, long seed) {
+        this.ids = ids;
+        this.groups = groups;
+        this.seed = seed;
+        order = null;
+        position = null;
+    }
+
+    // An order that keeps items in the same group apart. Groups are non-negative
+    // or StringPool.NONE.
+    public static ShuffleOrder spread(long[] ids, int[] groups, long seed) {
+        return new ShuffleOrder(ids, groups, seed);
+    }
+
+    // Group used to spread a track: its composer if it has one, otherwise its artist.
+    // Both are string pool indexes so someone who is composer of one track and artist
+    // of another is the same group.
+    public static int artistGroup(SongTable songs, int row) {
+        int composer = songs.getComposerRef(row);
+        if (composer != StringPool.NONE) {
+            String name = songs.getComposer(row);
+            if ((name != null) && !name.isEmpty())
+                return composer;
+        }
+        return songs.getArtistRef(row);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    // Item (track or album index) at a position in the order.
+    public int trackAt(int pos) {
+        build();
+        return order[pos];
+    }
+
+    // Position of an item in the order, -1 if not a valid item.
+    public int positionOf(int item) {
+        if ((item < 0) || (item >= ids.length))
+            return -1;
+        build();
+        return position[item];
+    }
+
+    @Override
+    public String toString() {
+        build();
+        StringBuilder rslt = new StringBuilder("{");
+        for (int i = 0; i < order.length; i++) {
+            if (i != 0)
+                rslt.append(',');
+            rslt.append(order[i]);
+        }
+        return rslt.append('}').toString();
+    }
+
+    //
+    // Keyed hash of an id (the SplitMix64 finalizer applied to the seeded id). Any
+    // change to the seed or the id gives an unrelated value.
+    //
+    static long mix(long seed, long id) {
+        long z = seed + id * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    //
+    // Given the items in hash order, place the members of each group evenly
+    // through the play order. Returns the new order.
+    //
+    private int[] spreadGroups(int[] byHash) {
+        int size = byHash.length;
+
+        // Bring the members of each group together, keeping them in hash order.
+        long[] keys = new long[size];
+        int[] o = new int[size];
+        for (int i = 0; i < size; i++) {
+            int item = byHash[i];
+            keys[i] = ((long) groups[item] + 1) << 32 | i;
+            o[i] = item;
+        }
+        PlaylistSorter.radixSort(keys, o);
+
+        long[] points = new long[size];
+        int start = 0;
+        while (start < size) {
+            int group = groups[o[start]];
+            int end = start + 1;
+            while ((end < size) && (groups[o[end]] == group))
+                end++;
+            int k = end - start;
+            double offset = unit(mix(seed, ~(long) group));
+            for (int r = 0; r < k; r++) {
+                double jitter = (unit(mix(seed ^ 0x5DEECE66DL, ids[o[start + r]])) - 0.5) * JITTER;
+                double point = (r + offset + jitter) / k;
+                point = Math.min(Math.max(point, 0.0), 1.0);
+                points[start + r] = (long) (point * (1L << 40));
+            }
+            start = end;
+        }
+        PlaylistSorter.radixSort(points, o);
+        return o;
+    }
+
+    // Value in [0, 1) from the top bits of a hash.
+    private static double unit(long hash) {
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    private synchronized void build() {
+        if (order != null)
+            return;
+        int size = ids.length;
+        long[] keys = new long[size];
+        int[] o = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = mix(seed, ids[i]) >>> KEY_SHIFT;
+            o[i] = i;
+        }
+        PlaylistSorter.radixSort(keys, o);         // Stable, equal keys stay in item order
+        if (groups != null)
+            o = spreadGroups(o);
+
+        int[] p = new int[size];
+        for (int i = 0; i < size; i++)
+            p[o[i]] = i;
+        position = p;
+        order = o;
+    }
+}
@@ -19,112 +19,48 @@
 
 package org.fitchfamily.android.symphony;
 
-import android.content.ContentUris;
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.drawable.Drawable;
-import android.media.MediaMetadataRetriever;
-import android.net.Uri;
-import android.util.Log;
-
 /**
  * Created by tfitch on 7/5/17.
  */
 
+//
+// A single track. This is a light weight view of a row in a SongTable, the
+// track information itself is held (once) in the table.
+//
 public class Song {
-    private long id;
-    private String album;
-    private String albumSortTitle;
-    private long albumId;
-    private String title;
-    private String composer;
-    private String artist;
-    private int track;
+    private final SongTable table;
+    private final int row;
 
-    public Song(long songId,
-                String songTitle,
-                String songArtist,
-                String songAlbum,
-                String songAlbumSortName,
-                long songAlbumId,
-                String songComposer,
-                int songTrack) {
-        id = songId;
-        if (songTitle != null)
-            title = songTitle.trim();
-        if (songArtist != null)
-            artist = songArtist.trim();
-        if (songAlbum != null)
-            album = songAlbum.trim();
-        if (songAlbumSortName != null)
-            albumSortTitle = songAlbumSortName;
-        albumId = songAlbumId;
-        if (songComposer != null)
-            composer = songComposer.trim();
-        track = songTrack;
+    Song(SongTable songTable, int songRow) {
+        table = songTable;
+        row = songRow;
     }
 
     public long getId() {
-        return id;
+        return table.getId(row);
     }
 
     public String getTitle() {
-        return title;
+        return table.getTitle(row);
     }
 
     public String getArtist() {
-        return artist;
+        return table.getArtist(row);
     }
 
     public String getAlbum() {
-        return album;
-    }
-
-    public String getAlbumSortTitle() {
-        return albumSortTitle;
+        return table.getAlbum(row);
     }
 
     public long getAlbumId() {
-        return albumId;
+        return table.getAlbumId(row);
     }
 
     public String getComposer() {
-        return composer;
+        return table.getComposer(row);
     }
 
     public int getTrack() {
-        return track;
-    }
-
-    public Bitmap getArtwork(Context mContext) {
-        Bitmap artwork = null;
-        try {
-            Uri trackUri = ContentUris.withAppendedId(
-                    android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
-            MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-            mmr.setDataSource(mContext, trackUri);
-
-            byte[] data = mmr.getEmbeddedPicture();
-
-            // convert the byte array to a bitmap
-            if (data != null)
-                artwork = BitmapFactory.decodeByteArray(data, 0, data.length);
-        } catch (Exception e) {
-            Log.e("MUSIC SERVICE", "Error getting album artwork", e);
-            artwork = null;
-        }
-        if (artwork == null) {
-            Drawable drawable = mContext.getDrawable(R.drawable.ic_launcher_icon);
-            if (drawable != null) {
-                artwork = Bitmap.createBitmap(drawable.getIntrinsicWidth(),
-                        drawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
-                Canvas canvas = new Canvas(artwork);
-                drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-                drawable.draw(canvas);
-            }
-        }
-        return artwork;
+        return table.getTrack(row);
     }
 }
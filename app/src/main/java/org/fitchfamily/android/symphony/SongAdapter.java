@@ -27,22 +27,25 @@ import android.widget.BaseAdapter;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-
 /**
  * Created by tfitch on 7/5/17.
  */
 
 public class SongAdapter extends BaseAdapter {
 
-    private ArrayList<Song> songs;
+    private SongTable songs;
     private LayoutInflater songInf;
 
-    public SongAdapter(Context c, ArrayList<Song> theSongs) {
-        songs = theSongs;
+    public SongAdapter(Context c, PlaylistSnapshot thePlaylist) {
+        songs = thePlaylist.getSongs();
         songInf = LayoutInflater.from(c);
     }
 
+    public void setPlaylist(PlaylistSnapshot thePlaylist) {
+        songs = thePlaylist.getSongs();
+        notifyDataSetChanged();
+    }
+
     @Override
     public int getCount() {
         return songs.size();
@@ -68,11 +71,9 @@ public class SongAdapter extends BaseAdapter {
         //get title and artist views
         TextView songView = songLay.findViewById(R.id.song_title);
         TextView artistView = songLay.findViewById(R.id.song_artist);
-        //get song using position
-        Song currSong = songs.get(position);
-        //get title and artist strings
-        songView.setText(currSong.getTitle());
-        artistView.setText(currSong.getArtist());
+        //get title and artist strings using position
+        songView.setText(songs.getTitle(position));
+        artistView.setText(songs.getArtist(position));
         //set position as tag
         songLay.setTag(position);
         return songLay;
@@ -0,0 +1,312 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. A set of song ordinals (positions in the library play order). A plain bit set would need
+ *    a bit for every song in the library for every genre, most of them zero for small genres.
+ * 2. So the ordinals are split into chunks of 65536 by their upper 16 bits. Each chunk that has
+ *    any members is stored either as a sorted array of the lower 16 bits (when it has at most
+ *    ARRAY_MAX members) or as a 65536 bit map (8KB). Whichever is smaller is used, in the
+ *    manner of a "roaring" bitmap.
+ * 3. Union and intersection work a chunk at a time, choosing a merge, a probe or word-wise
+ *    logic depending on the kinds of the two chunks.
+ * 4. A SongBitmap is never modified after it is built.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.util.Arrays;
+
+public class SongBitmap {
+    private static final int ARRAY_MAX = 4096;          // Above this a bit map is smaller
+    private static final int WORDS = 65536 / 64;
+
+    public static final SongBitmap EMPTY = new SongBitmap(new int[0], new char[0][], new long[0][], new int[0]);
+
+    private final int[] keys;           // Upper 16 bits of each chunk, ascending
+    private final char[][] arrays;      // Sorted lower 16 bits, or null if chunk is a bit map
+    private final long[][] bitmaps;     // Bit map, or null if chunk is an array
+    private final int[] counts;         // Members in each chunk
+
+    private SongBitmap(int[] keys, char[][] arrays, long[][] bitmaps, int[] counts) {
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitmaps = bitmaps;
+        this.counts = counts;
+    }
+
+    // Build from sorted ordinals. Repeats are ignored.
+    public static SongBitmap fromSorted(int[] ordinals) {
+        Builder b = new Builder();
+        int start = 0;
+        while (start < ordinals.length) {
+            int key = ordinals[start] >>> 16;
+            int end = start + 1;
+            while ((end < ordinals.length) && ((ordinals[end] >>> 16) == key))
+                end++;
+            char[] low = new char[end - start];
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                if ((i == start) || (ordinals[i] != ordinals[i - 1]))
+                    low[n++] = (char) ordinals[i];
+            }
+            b.addArray(key, low, n);
+            start = end;
+        }
+        return b.build();
+    }
+
+    public int cardinality() {
+        int rslt = 0;
+        for (int c : counts)
+            rslt += c;
+        return rslt;
+    }
+
+    public boolean contains(int ordinal) {
+        int c = Arrays.binarySearch(keys, ordinal >>> 16);
+        if (c < 0)
+            return false;
+        char low = (char) ordinal;
+        if (arrays[c] != null)
+            return Arrays.binarySearch(arrays[c], low) >= 0;
+        return (bitmaps[c][low >>> 6] & (1L << low)) != 0;
+    }
+
+    // Members in ascending order.
+    public int[] toArray() {
+        int[] rslt = new int[cardinality()];
+        int n = 0;
+        for (int c = 0; c < keys.length; c++) {
+            int high = keys[c] << 16;
+            if (arrays[c] != null) {
+                for (char low : arrays[c])
+                    rslt[n++] = high | low;
+            } else {
+                long[] words = bitmaps[c];
+                for (int w = 0; w < WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        rslt[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return rslt;
+    }
+
+    public SongBitmap or(SongBitmap other) {
+        Builder b = new Builder();
+        int i = 0;
+        int j = 0;
+        while ((i < keys.length) || (j < other.keys.length)) {
+            if ((j >= other.keys.length) || ((i < keys.length) && (keys[i] < other.keys[j]))) {
+                b.addChunk(this, i++);
+            } else if ((i >= keys.length) || (other.keys[j] < keys[i])) {
+                b.addChunk(other, j++);
+            } else {
+                if ((arrays[i] != null) && (other.arrays[j] != null) &&
+                        (counts[i] + other.counts[j] <= ARRAY_MAX)) {
+                    char[] merged = new char[counts[i] + other.counts[j]];
+                    int n = unionArrays(arrays[i], other.arrays[j], merged);
+                    b.addArray(keys[i], merged, n);
+                } else {
+                    long[] words = toBitmap(i);
+                    other.orInto(j, words);
+                    b.addBitmap(keys[i], words);
+                }
+                i++;
+                j++;
+            }
+        }
+        return b.build();
+    }
+
+    public SongBitmap and(SongBitmap other) {
+        Builder b = new Builder();
+        int i = 0;
+        int j = 0;
+        while ((i < keys.length) && (j < other.keys.length)) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (other.keys[j] < keys[i]) {
+                j++;
+            } else {
+                if ((arrays[i] != null) && (other.arrays[j] != null)) {
+                    char[] common = new char[Math.min(counts[i], other.counts[j])];
+                    int n = intersectArrays(arrays[i], other.arrays[j], common);
+                    b.addArray(keys[i], common, n);
+                } else if (arrays[i] != null) {
+                    b.addArray(keys[i], filter(arrays[i], other.bitmaps[j]), -1);
+                } else if (other.arrays[j] != null) {
+                    b.addArray(keys[i], filter(other.arrays[j], bitmaps[i]), -1);
+                } else {
+                    long[] words = new long[WORDS];
+                    for (int w = 0; w < WORDS; w++)
+                        words[w] = bitmaps[i][w] & other.bitmaps[j][w];
+                    b.addBitmap(keys[i], words);
+                }
+                i++;
+                j++;
+            }
+        }
+        return b.build();
+    }
+
+    private long[] toBitmap(int c) {
+        if (bitmaps[c] != null)
+            return bitmaps[c].clone();
+        long[] words = new long[WORDS];
+        for (char low : arrays[c])
+            words[low >>> 6] |= 1L << low;
+        return words;
+    }
+
+    private void orInto(int c, long[] words) {
+        if (bitmaps[c] != null) {
+            for (int w = 0; w < WORDS; w++)
+                words[w] |= bitmaps[c][w];
+        } else {
+            for (char low : arrays[c])
+                words[low >>> 6] |= 1L << low;
+        }
+    }
+
+    private static int unionArrays(char[] a, char[] b, char[] rslt) {
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while ((i < a.length) && (j < b.length)) {
+            if (a[i] < b[j])
+                rslt[n++] = a[i++];
+            else if (b[j] < a[i])
+                rslt[n++] = b[j++];
+            else {
+                rslt[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length)
+            rslt[n++] = a[i++];
+        while (j < b.length)
+            rslt[n++] = b[j++];
+        return n;
+    }
+
+    private static int intersectArrays(char[] a, char[] b, char[] rslt) {
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while ((i < a.length) && (j < b.length)) {
+            if (a[i] < b[j])
+                i++;
+            else if (b[j] < a[i])
+                j++;
+            else {
+                rslt[n++] = a[i++];
+                j++;
+            }
+        }
+        return n;
+    }
+
+    private static char[] filter(char[] a, long[] words) {
+        char[] rslt = new char[a.length];
+        int n = 0;
+        for (char low : a) {
+            if ((words[low >>> 6] & (1L << low)) != 0)
+                rslt[n++] = low;
+        }
+        return Arrays.copyOf(rslt, n);
+    }
+
+    //
+    // Collects chunks in ascending key order, dropping empty ones and choosing
+    // the smaller representation for each.
+    //
+    private static class Builder {
+        private int size = 0;
+        private int[] keys = new int[4];
+        private char[][] arrays = new char[4][];
+        private long[][] bitmaps = new long[4][];
+        private int[] counts = new int[4];
+
+        // count < 0 means use all of low
+        void addArray(int key, char[] low, int count) {
+            int n = (count < 0) ? low.length : count;
+            if (n == 0)
+                return;
+            if (n > ARRAY_MAX) {
+                long[] words = new long[WORDS];
+                for (int i = 0; i < n; i++)
+                    words[low[i] >>> 6] |= 1L << low[i];
+                add(key, null, words, n);
+            } else {
+                add(key, (n == low.length) ? low : Arrays.copyOf(low, n), null, n);
+            }
+        }
+
+        void addBitmap(int key, long[] words) {
+            int n = 0;
+            for (long w : words)
+                n += Long.bitCount(w);
+            if (n == 0)
+                return;
+            if (n <= ARRAY_MAX) {
+                char[] low = new char[n];
+                int i = 0;
+                for (int w = 0; w < WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        low[i++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                add(key, low, null, n);
+            } else {
+                add(key, null, words, n);
+            }
+        }
+
+        // Chunks are never modified so they can be shared between bitmaps.
+        void addChunk(SongBitmap from, int c) {
+            add(from.keys[c], from.arrays[c], from.bitmaps[c], from.counts[c]);
+        }
+
+        private void add(int key, char[] low, long[] words, int count) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                arrays = Arrays.copyOf(arrays, size * 2);
+                bitmaps = Arrays.copyOf(bitmaps, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            keys[size] = key;
+            arrays[size] = low;
+            bitmaps[size] = words;
+            counts[size++] = count;
+        }
+
+        SongBitmap build() {
+            return new SongBitmap(Arrays.copyOf(keys, size), Arrays.copyOf(arrays, size),
+                    Arrays.copyOf(bitmaps, size), Arrays.copyOf(counts, size));
+        }
+    }
+}
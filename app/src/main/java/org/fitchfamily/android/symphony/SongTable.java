@@ -0,0 +1,262 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. A genre play list can have a hundred thousand tracks. Holding each as an object with its
+ *    own set of strings costs a lot of heap, and most of those strings (artist, album, composer)
+ *    are repeated on every track of an album.
+ * 2. So tracks are stored by column: primitive arrays for the numeric values and indexes into
+ *    a shared StringPool for the repeated strings. Only the track titles, which are nearly
+ *    always distinct, are held directly.
+ * 3. A SongTable is never modified after it is built. That lets the activity, the adapters and
+ *    the music service share a table without copying or locking. Changes are made by building
+ *    a new table.
+ * 4. Song objects are light weight views (table + row) created on demand for code that wants
+ *    to deal with a single track.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.util.Arrays;
+
+public class SongTable {
+    public static final SongTable EMPTY = new Builder(new StringPool()).build();
+
+    // Compares a row in one table with a row in another (or the same) table.
+    public interface RowComparator {
+        int compare(SongTable a, int rowA, SongTable b, int rowB);
+    }
+
+    private final StringPool strings;
+    private final int size;
+    private final long[] ids;
+    private final long[] albumIds;
+    private final int[] tracks;
+    private final String[] titles;
+    private final int[] artists;             // Indexes into strings
+    private final int[] albums;
+    private final int[] composers;
+
+    SongTable(StringPool strings, int size,
+              long[] ids, long[] albumIds, int[] tracks, String[] titles,
+              int[] artists, int[] albums, int[] composers) {
+        this.strings = strings;
+        this.size = size;
+        this.ids = ids;
+        this.albumIds = albumIds;
+        this.tracks = tracks;
+        this.titles = titles;
+        this.artists = artists;
+        this.albums = albums;
+        this.composers = composers;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Song get(int row) {
+        if ((row < 0) || (row >= size))
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        return new Song(this, row);
+    }
+
+    public StringPool getStrings() {
+        return strings;
+    }
+
+    public long getId(int row) {
+        return ids[row];
+    }
+
+    public long getAlbumId(int row) {
+        return albumIds[row];
+    }
+
+    public int getTrack(int row) {
+        return tracks[row];
+    }
+
+    public String getTitle(int row) {
+        return titles[row];
+    }
+
+    public String getArtist(int row) {
+        return strings.get(artists[row]);
+    }
+
+    public String getAlbum(int row) {
+        return strings.get(albums[row]);
+    }
+
+    public String getComposer(int row) {
+        return strings.get(composers[row]);
+    }
+
+    // String pool indexes, equal indexes mean equal strings.
+    public int getArtistRef(int row) {
+        return artists[row];
+    }
+
+    public int getAlbumRef(int row) {
+        return albums[row];
+    }
+
+    public int getComposerRef(int row) {
+        return composers[row];
+    }
+
+    // Return the row holding a track, -1 if not in the table.
+    public int indexOfId(long id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+    // Build a new table with the given rows of this table, in the given order.
+    public SongTable select(int[] rows) {
+        Builder b = new Builder(strings, rows.length);
+        for (int row : rows)
+            b.add(this, row);
+        return b.build();
+    }
+
+    // Merge two tables that are each already sorted. The tables must share a string pool.
+    public static SongTable merge(SongTable a, SongTable b, RowComparator order) {
+        Builder rslt = new Builder(a.strings, a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while ((i < a.size) && (j < b.size)) {
+            if (order.compare(a, i, b, j) <= 0)
+                rslt.add(a, i++);
+            else
+                rslt.add(b, j++);
+        }
+        while (i < a.size)
+            rslt.add(a, i++);
+        while (j < b.size)
+            rslt.add(b, j++);
+        return rslt.build();
+    }
+
+    // Columns for saving the table.
+    long[] idColumn() { return ids; }
+    long[] albumIdColumn() { return albumIds; }
+    int[] trackColumn() { return tracks; }
+    String[] titleColumn() { return titles; }
+    int[] artistColumn() { return artists; }
+    int[] albumColumn() { return albums; }
+    int[] composerColumn() { return composers; }
+
+    public static class Builder {
+        private StringPool strings;
+        private int size;
+        private long[] ids;
+        private long[] albumIds;
+        private int[] tracks;
+        private String[] titles;
+        private int[] artists;
+        private int[] albums;
+        private int[] composers;
+
+        public Builder(StringPool strings) {
+            this(strings, 16);
+        }
+
+        public Builder(StringPool strings, int capacity) {
+            this.strings = strings;
+            capacity = Math.max(capacity, 1);
+            size = 0;
+            ids = new long[capacity];
+            albumIds = new long[capacity];
+            tracks = new int[capacity];
+            titles = new String[capacity];
+            artists = new int[capacity];
+            albums = new int[capacity];
+            composers = new int[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Builder add(long songId,
+                           String songTitle,
+                           String songArtist,
+                           String songAlbum,
+                           long songAlbumId,
+                           String songComposer,
+                           int songTrack) {
+            int row = nextRow();
+            ids[row] = songId;
+            titles[row] = (songTitle != null) ? songTitle.trim() : null;
+            artists[row] = strings.intern((songArtist != null) ? songArtist.trim() : null);
+            albums[row] = strings.intern((songAlbum != null) ? songAlbum.trim() : null);
+            albumIds[row] = songAlbumId;
+            composers[row] = strings.intern((songComposer != null) ? songComposer.trim() : null);
+            tracks[row] = songTrack;
+            return this;
+        }
+
+        // Copy a row from another table that uses the same string pool.
+        public Builder add(SongTable from, int fromRow) {
+            int row = nextRow();
+            ids[row] = from.ids[fromRow];
+            titles[row] = from.titles[fromRow];
+            artists[row] = from.artists[fromRow];
+            albums[row] = from.albums[fromRow];
+            albumIds[row] = from.albumIds[fromRow];
+            composers[row] = from.composers[fromRow];
+            tracks[row] = from.tracks[fromRow];
+            return this;
+        }
+
+        public SongTable build() {
+            return new SongTable(strings, size,
+                    Arrays.copyOf(ids, size),
+                    Arrays.copyOf(albumIds, size),
+                    Arrays.copyOf(tracks, size),
+                    Arrays.copyOf(titles, size),
+                    Arrays.copyOf(artists, size),
+                    Arrays.copyOf(albums, size),
+                    Arrays.copyOf(composers, size));
+        }
+
+        private int nextRow() {
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                albumIds = Arrays.copyOf(albumIds, capacity);
+                tracks = Arrays.copyOf(tracks, capacity);
+                titles = Arrays.copyOf(titles, capacity);
+                artists = Arrays.copyOf(artists, capacity);
+                albums = Arrays.copyOf(albums, capacity);
+                composers = Arrays.copyOf(composers, capacity);
+            }
+            return size++;
+        }
+    }
+}
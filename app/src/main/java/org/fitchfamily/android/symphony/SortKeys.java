@@ -0,0 +1,173 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. Albums are sorted by title, ignoring leading words like "The " and "A ". Rather than
+ *    hardcode a language specific set of prefixes we get them from a string resource that can
+ *    be easily extended and internationalized. The list is compiled once into a pattern.
+ * 2. Titles are compared with a Collator for the user's locale so that case and accents are
+ *    handled the way the user expects rather than by raw character value.
+ * 3. Runs of digits are compared by numeric value, so "No. 9" sorts before "No. 10". We do that
+ *    by rewriting each run of digits (less leading zeros) with its length in front of it
+ *    ("9" becomes "019", "10" becomes "0210") before collating. Shorter numbers are smaller.
+ * 4. Making a collation key is far more expensive than comparing two keys and every track of
+ *    an album has the same album title. So we make the key once per album and cache it by
+ *    album id.
+ * 5. Loading is done in several background threads at once (see LibraryLoader and
+ *    PlaylistSorter) and Collator is not thread safe. Rather than have every thread queue for
+ *    one collator, each thread gets its own copy, and the album key cache is a concurrent map
+ *    that is read without locking. Keys made by the copies compare the same as keys made by
+ *    the original.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SortKeys {
+    private static final Pattern DIGITS = Pattern.compile("\\d+");
+
+    private final Pattern ignorePrefix;                 // null if no prefixes to ignore
+    private final Collator prototype;                   // Only cloned, never used to compare
+    private final ThreadLocal<Collator> collator;
+    private final ConcurrentHashMap<Long, CollationKey> albumKeys;
+
+    public SortKeys(String[] ignorePrefixes, Locale locale) {
+        StringBuilder regex = new StringBuilder();
+        for (String prefix : ignorePrefixes) {
+            String p = prefix.trim();
+            if (p.isEmpty())
+                continue;
+            regex.append((regex.length() == 0) ? "^(?:" : "|").append(Pattern.quote(p));
+        }
+        if (regex.length() > 0) {
+            // Note that trailing spaces are dropped in XML so we require one here.
+            regex.append(")\\s+");
+            ignorePrefix = Pattern.compile(regex.toString(),
+                    Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        } else {
+            ignorePrefix = null;
+        }
+
+        prototype = Collator.getInstance(locale);
+        prototype.setStrength(Collator.SECONDARY);      // Ignore case, respect accents
+        collator = new ThreadLocal<Collator>() {
+            @Override
+            protected Collator initialValue() {
+                synchronized (prototype) {
+                    return (Collator) prototype.clone();
+                }
+            }
+        };
+        albumKeys = new ConcurrentHashMap<>();
+    }
+
+    // Title with any ignored prefix removed.
+    public String sortTitle(String title) {
+        if (title == null)
+            return "";
+        String t = title.trim();
+        if (ignorePrefix != null) {
+            Matcher m = ignorePrefix.matcher(t);
+            if (m.lookingAt())
+                t = t.substring(m.end()).trim();
+        }
+        return t;
+    }
+
+    public CollationKey albumKey(long albumId, String albumTitle) {
+        CollationKey key = albumKeys.get(albumId);
+        if (key == null) {
+            // Two threads may both make the key, they make the same one.
+            key = collator.get().getCollationKey(naturalNumbers(sortTitle(albumTitle)));
+            albumKeys.put(albumId, key);
+        }
+        return key;
+    }
+
+    public int compareTitles(String a, String b) {
+        if (a == null)
+            a = "";
+        if (b == null)
+            b = "";
+        if (a.equals(b))
+            return 0;
+        return collator.get().compare(naturalNumbers(a), naturalNumbers(b));
+    }
+
+    // Album title changed, next use should make a new key.
+    public void forgetAlbum(long albumId) {
+        albumKeys.remove(albumId);
+    }
+
+    // Sort by album title. If two titles the same, differentiate by ID.
+    // Within album, sort by track. If two tracks claim the same position
+    // differentiate by title.
+    //
+    // Used for merging sorted tables. To sort a table use PlaylistSorter which
+    // gives the same order much faster.
+    public SongTable.RowComparator playOrder() {
+        return (a, i, b, j) -> {
+            long albumA = a.getAlbumId(i);
+            long albumB = b.getAlbumId(j);
+            int rslt = 0;
+            if (albumA != albumB) {
+                rslt = albumKey(albumA, a.getAlbum(i)).compareTo(albumKey(albumB, b.getAlbum(j)));
+                if (rslt == 0)
+                    rslt = Long.compare(albumA, albumB);
+            }
+            if (rslt == 0)
+                rslt = Integer.compare(a.getTrack(i), b.getTrack(j));
+            if (rslt == 0)
+                rslt = compareTitles(a.getTitle(i), b.getTitle(j));
+            return rslt;
+        };
+    }
+
+    //
+    // Replace each run of digits by its length (two digits) followed by the digits
+    // without leading zeros, so comparing the strings compares the numbers.
+    //
+    static String naturalNumbers(String s) {
+        Matcher m = DIGITS.matcher(s);
+        if (!m.find())
+            return s;
+        StringBuilder rslt = new StringBuilder(s.length() + 8);
+        int last = 0;
+        do {
+            rslt.append(s, last, m.start());
+            int start = m.start();
+            while ((start < m.end() - 1) && (s.charAt(start) == '0'))
+                start++;
+            int length = Math.min(m.end() - start, 99);
+            if (length < 10)
+                rslt.append('0');
+            rslt.append(length).append(s, start, m.end());
+            last = m.end();
+        } while (m.find());
+        rslt.append(s, last, s.length());
+        return rslt.toString();
+    }
+}
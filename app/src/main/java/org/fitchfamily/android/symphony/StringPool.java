@@ -0,0 +1,90 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+//
+// A table of distinct strings referred to by their index. Artist, album and
+// composer names repeat on many tracks, so each track stores an int index into
+// a pool shared by the whole library rather than its own copy of the string.
+//
+// Loading happens in background threads while the UI thread displays what has
+// already been loaded. Strings are only ever added, an index once handed out
+// stays valid for the life of the pool. So adding is synchronized but get() is
+// not: it is called for every row the display draws and every comparison a sort
+// makes. The array is republished through a volatile field each time a string is
+// added, and a reader holding an index was given it after that, so reading the
+// array it sees always finds the string.
+//
+public class StringPool {
+    public static final int NONE = -1;          // Index used for a null string
+
+    private HashMap<String, Integer> index;
+    private volatile String[] strings;
+    private volatile int count;
+
+    public StringPool() {
+        index = new HashMap<>();
+        strings = new String[256];
+        count = 0;
+    }
+
+    // Used to restore a pool that was saved with toArray()
+    public StringPool(String[] saved) {
+        index = new HashMap<>(saved.length * 2);
+        strings = Arrays.copyOf(saved, Math.max(256, saved.length));
+        count = saved.length;
+        for (int i = 0; i < count; i++)
+            index.put(strings[i], i);
+    }
+
+    public synchronized int intern(String s) {
+        if (s == null)
+            return NONE;
+        Integer i = index.get(s);
+        if (i == null) {
+            String[] added = strings;
+            if (count == added.length)
+                added = Arrays.copyOf(added, count * 2);
+            i = count;
+            added[i] = s;
+            index.put(s, i);
+            strings = added;        // Publish the new string
+            count = i + 1;
+        }
+        return i;
+    }
+
+    public String get(int i) {
+        if (i == NONE)
+            return null;
+        return strings[i];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public synchronized String[] toArray() {
+        return Arrays.copyOf(strings, count);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Theory of operation:
+ * 1. The service plays each track with its own player, preparing the next ones ahead and
+ *    chaining them so one starts as the last ends. A TrackPlayer is the part of MediaPlayer
+ *    the service uses for that, so the players can come from more than one PlaybackEngine.
+ * 2. The methods and their states are those of MediaPlayer: set the data source, prepare,
+ *    then start, pause and seek. setNextPlayer() starts the given (prepared) player when
+ *    this one completes, as setNextMediaPlayer() does.
+ * 3. The listener is called on the thread that got the player from its engine, which must
+ *    have a Looper.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.IOException;
+
+public interface TrackPlayer {
+
+    interface Listener {
+        void onPrepared(TrackPlayer player);
+
+        void onCompletion(TrackPlayer player);
+
+        // what and extra are as for MediaPlayer.OnErrorListener.
+        void onError(TrackPlayer player, int what, int extra);
+    }
+
+    void setDataSource(Context context, Uri uri) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void seekTo(int msec);
+
+    boolean isPlaying();
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    // When (SystemClock.elapsedRealtime()) the last of the track was heard, as worked out
+    // by the engine, or 0 if it can't tell. Set by the time onCompletion() is called.
+    long getCompletedAt();
+
+    // Player to start when this one completes, null for none.
+    void setNextPlayer(TrackPlayer next);
+
+    void setVolume(float volume);
+
+    // Back to the idle state, ready for setDataSource().
+    void reset();
+
+    void release();
+}
@@ -0,0 +1,59 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.fitchfamily.android.symphony;
+
+//
+// Each track in the order given by a ShuffleOrder over all of the tracks.
+//
+public class TrackShuffleOrder implements PlayOrderEngine {
+    private final ShuffleOrder order;
+
+    public TrackShuffleOrder(ShuffleOrder order) {
+        this.order = order;
+    }
+
+    @Override
+    public int size() {
+        return order.size();
+    }
+
+    @Override
+    public int next(int track) {
+        int size = order.size();
+        if (size == 0)
+            return 0;
+        int pos = order.positionOf(track);
+        if ((pos < 0) || (pos >= size - 1))
+            return order.trackAt(0);
+        return order.trackAt(pos + 1);
+    }
+
+    @Override
+    public int previous(int track) {
+        int size = order.size();
+        if (size == 0)
+            return 0;
+        int pos = order.positionOf(track);
+        if (pos <= 0)
+            return order.trackAt(size - 1);
+        return order.trackAt(pos - 1);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/*
+ * Theory of operation:
+ * 1. MP3 and AAC encoders add silence before (delay) and after (padding) the music, see
+ *    CodecEngine. The decoder hands over PCM in chunks of whatever size the codec likes, so
+ *    neither the delay nor the padding lines up with a chunk.
+ * 2. The Trimmer sits between the decoder and the ring. It throws away the first skipFrames
+ *    (the delay, plus any more before the position playing starts from), passes the rest on,
+ *    but always holds back the last paddingFrames it has been given. When the track ends
+ *    what is held back is the padding, and is dropped with the Trimmer.
+ */
+
+package org.fitchfamily.android.symphony;
+
+class Trimmer {
+    private final PcmRing ring;
+    private long skipBytes;
+    private final byte[] held;
+    private int heldLen = 0;
+
+    Trimmer(PcmRing ring, long skipFrames, int paddingFrames, int frameBytes) {
+        this.ring = ring;
+        skipBytes = skipFrames * frameBytes;
+        held = new byte[paddingFrames * frameBytes];
+    }
+
+    // False if the ring was closed.
+    boolean add(byte[] src, int len) {
+        int off = 0;
+        if (skipBytes > 0) {
+            int n = (int) Math.min(skipBytes, len);
+            skipBytes -= n;
+            off = n;
+            len -= n;
+        }
+        int emit = heldLen + len - held.length;
+        if (emit <= 0) {
+            System.arraycopy(src, off, held, heldLen, len);
+            heldLen += len;
+            return true;
+        }
+        if (emit <= heldLen) {
+            if (!ring.write(held, 0, emit))
+                return false;
+            System.arraycopy(held, emit, held, 0, heldLen - emit);
+            heldLen -= emit;
+            System.arraycopy(src, off, held, heldLen, len);
+            heldLen += len;
+            return true;
+        }
+        if (!ring.write(held, 0, heldLen))
+            return false;
+        int fromSrc = emit - heldLen;
+        if (!ring.write(src, off, fromSrc))
+            return false;
+        heldLen = len - fromSrc;
+        System.arraycopy(src, off + fromSrc, held, 0, heldLen);
+        return true;
+    }
+}
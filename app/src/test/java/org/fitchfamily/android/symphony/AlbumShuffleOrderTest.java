@@ -0,0 +1,150 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AlbumShuffleOrderTest {
+    private static final long SEED = 0x5eed;
+
+    // Albums of the given sizes, one after another in the list as the playlist has them.
+    private static AlbumShuffleOrder albums(long seed, int... sizes) {
+        int tracks = 0;
+        for (int n : sizes)
+            tracks += n;
+        int[] trackToAlbum = new int[tracks];
+        int[] firstTrack = new int[sizes.length];
+        int[] lastTrack = new int[sizes.length];
+        int track = 0;
+        for (int album = 0; album < sizes.length; album++) {
+            firstTrack[album] = track;
+            for (int i = 0; i < sizes[album]; i++)
+                trackToAlbum[track++] = album;
+            lastTrack[album] = track - 1;
+        }
+        return new AlbumShuffleOrder(new ShuffleOrder(PlayOrderChecks.ids(sizes.length), seed),
+                trackToAlbum, firstTrack, lastTrack);
+    }
+
+    private static int[] trackToAlbum(int... sizes) {
+        int tracks = 0;
+        for (int n : sizes)
+            tracks += n;
+        int[] rslt = new int[tracks];
+        int track = 0;
+        for (int album = 0; album < sizes.length; album++) {
+            for (int i = 0; i < sizes[album]; i++)
+                rslt[track++] = album;
+        }
+        return rslt;
+    }
+
+    //
+    // Each album is played whole, its tracks in list order, and is only started once in
+    // a cycle. Going back from the first track of an album gives the last track of the
+    // album played before it.
+    //
+    private static void checkAlbums(AlbumShuffleOrder engine, int... sizes) {
+        PlayOrderChecks.checkAll(engine);
+        int[] trackToAlbum = trackToAlbum(sizes);
+        if (trackToAlbum.length == 0)
+            return;
+        boolean[] started = new boolean[sizes.length];
+        int track = engine.next(-1);
+        for (int i = 0; i < trackToAlbum.length; i++) {
+            int album = trackToAlbum[track];
+            int next = engine.next(track);
+            if (trackToAlbum[next] == album && (next == track + 1)) {
+                track = next;
+                continue;
+            }
+            // Leaving the album (for one album, going round it again): only from its last
+            // track, and into the first track of an album.
+            assertFalse("album " + album + " played twice", started[album]);
+            started[album] = true;
+            assertEquals("left album " + album + " early", track, lastOf(trackToAlbum, album));
+            assertEquals(next, firstOf(trackToAlbum, trackToAlbum[next]));
+            assertEquals(track, engine.previous(next));
+            track = next;
+        }
+        for (int album = 0; album < sizes.length; album++)
+            assertTrue("album " + album + " not played", started[album]);
+    }
+
+    private static int firstOf(int[] trackToAlbum, int album) {
+        for (int t = 0; t < trackToAlbum.length; t++) {
+            if (trackToAlbum[t] == album)
+                return t;
+        }
+        return -1;
+    }
+
+    private static int lastOf(int[] trackToAlbum, int album) {
+        for (int t = trackToAlbum.length - 1; t >= 0; t--) {
+            if (trackToAlbum[t] == album)
+                return t;
+        }
+        return -1;
+    }
+
+    @Test
+    public void smallLists() {
+        for (long seed = 0; seed < 10; seed++) {
+            checkAlbums(albums(seed));
+            checkAlbums(albums(seed, 1), 1);
+            checkAlbums(albums(seed, 2), 2);
+            checkAlbums(albums(seed, 1, 1), 1, 1);
+            checkAlbums(albums(seed, 3), 3);
+            checkAlbums(albums(seed, 1, 2), 1, 2);
+            checkAlbums(albums(seed, 2, 1), 2, 1);
+            checkAlbums(albums(seed, 1, 1, 1), 1, 1, 1);
+        }
+    }
+
+    @Test
+    public void largeList() {
+        Random random = new Random(SEED);
+        int[] sizes = new int[10000];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = 1 + random.nextInt(19);
+        checkAlbums(albums(SEED, sizes), sizes);
+    }
+
+    @Test
+    public void outOfRange() {
+        AlbumShuffleOrder engine = albums(SEED, 2, 3);
+        int first = engine.next(-1);
+        int last = engine.previous(-1);
+        // The first track of the first album and the last of the last album.
+        assertEquals((first == 0) ? 4 : 1, last);
+        assertEquals(first, engine.next(5));
+        assertEquals(last, engine.previous(5));
+
+        AlbumShuffleOrder empty = albums(SEED);
+        assertEquals(0, empty.next(0));
+        assertEquals(0, empty.previous(0));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private static byte[] bytes(int from, int count) {
+        byte[] rslt = new byte[count];
+        for (int i = 0; i < count; i++)
+            rslt[i] = (byte) (from + i);
+        return rslt;
+    }
+
+    @Test
+    public void readsWhatWasWritten() {
+        PcmRing ring = new PcmRing(16);
+        assertTrue(ring.write(bytes(0, 10), 0, 10));
+        assertEquals(10, ring.available());
+
+        byte[] dst = new byte[16];
+        assertEquals(4, ring.read(dst, 0, 4));
+        assertEquals(6, ring.read(dst, 4, 16));
+        assertEquals(0, ring.read(dst, 0, 16));
+        assertArrayEquals(bytes(0, 10), Arrays.copyOf(dst, 10));
+        assertEquals(10, ring.getReadPosition());
+        assertEquals(10, ring.getWritePosition());
+    }
+
+    @Test
+    public void wrapsAround() {
+        PcmRing ring = new PcmRing(8);
+        byte[] dst = new byte[8];
+        int next = 0;
+        int expected = 0;
+        // Sizes that don't divide the capacity, so writes and reads straddle the end.
+        for (int round = 0; round < 50; round++) {
+            int n = 1 + (round % 7);
+            assertTrue(ring.write(bytes(next, n), 0, n));
+            next += n;
+            int got = ring.read(dst, 0, 1 + (round % 5));
+            for (int i = 0; i < got; i++)
+                assertEquals((byte) expected++, dst[i]);
+            while (ring.available() > 1) {          // Room for the next write
+                got = ring.read(dst, 0, 8);
+                for (int i = 0; i < got; i++)
+                    assertEquals((byte) expected++, dst[i]);
+            }
+        }
+        int got = ring.read(dst, 0, 8);
+        for (int i = 0; i < got; i++)
+            assertEquals((byte) expected++, dst[i]);
+        assertEquals(next, expected);
+        assertEquals(next, ring.getReadPosition());
+        assertEquals(next, ring.getWritePosition());
+    }
+
+    @Test
+    public void writeWaitsForRoom() throws InterruptedException {
+        final PcmRing ring = new PcmRing(8);
+        final AtomicBoolean wrote = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> wrote.set(ring.write(bytes(0, 20), 0, 20)));
+        writer.start();
+
+        byte[] dst = new byte[20];
+        int got = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((got < 20) && (System.currentTimeMillis() < deadline)) {
+            assertTrue(ring.available() <= 8);
+            got += ring.read(dst, got, 3);
+        }
+        writer.join(TIMEOUT_MS);
+        assertFalse(writer.isAlive());
+        assertTrue(wrote.get());
+        assertArrayEquals(bytes(0, 20), dst);
+    }
+
+    @Test
+    public void closeWakesBlockedWriter() throws InterruptedException {
+        final PcmRing ring = new PcmRing(8);
+        final AtomicBoolean wrote = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> wrote.set(ring.write(bytes(0, 12), 0, 12)));
+        writer.start();
+
+        // Wait for it to fill the ring and block.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((writer.getState() != Thread.State.WAITING) && (System.currentTimeMillis() < deadline))
+            Thread.sleep(1);
+        assertEquals(Thread.State.WAITING, writer.getState());
+        assertEquals(8, ring.available());
+
+        ring.close();
+        writer.join(TIMEOUT_MS);
+        assertFalse(writer.isAlive());
+        assertFalse(wrote.get());
+        assertFalse(ring.write(bytes(0, 1), 0, 1));
+    }
+
+    @Test
+    public void writeNotifiesReader() throws InterruptedException {
+        final Object reader = new Object();
+        final PcmRing ring = new PcmRing(8, reader);
+        final AtomicBoolean woken = new AtomicBoolean(false);
+        Thread waiter = new Thread(() -> {
+            synchronized (reader) {
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                while ((ring.available() == 0) && (System.currentTimeMillis() < deadline)) {
+                    try {
+                        reader.wait(TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                woken.set(ring.available() > 0);
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+
+        long start = System.currentTimeMillis();
+        assertTrue(ring.write(bytes(0, 4), 0, 4));
+        waiter.join(TIMEOUT_MS);
+        assertTrue(woken.get());
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT_MS);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+//
+// Checks every PlayOrderEngine must pass, whatever its order (see PlayOrderEngine).
+//
+final class PlayOrderChecks {
+    private PlayOrderChecks() {
+    }
+
+    static void checkAll(PlayOrderEngine engine) {
+        checkOutOfRange(engine);
+        checkCycle(engine);
+        checkInverse(engine);
+    }
+
+    // A track that isn't in the list goes to the first track forward and the last back.
+    static void checkOutOfRange(PlayOrderEngine engine) {
+        int size = engine.size();
+        int first = engine.next(-1);
+        int last = engine.previous(-1);
+        if (size == 0) {
+            assertEquals(0, first);
+            assertEquals(0, last);
+        } else {
+            assertEquals(last, engine.previous(first));
+            assertEquals(first, engine.next(last));
+        }
+        for (int track : new int[]{-1, size, size + 1, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            assertEquals(first, engine.next(track));
+            assertEquals(last, engine.previous(track));
+        }
+    }
+
+    // Going either way from the first track, every track is played once and then the
+    // first comes round again.
+    static void checkCycle(PlayOrderEngine engine) {
+        int size = engine.size();
+        if (size == 0)
+            return;
+        int first = engine.next(-1);
+        boolean[] seen = new boolean[size];
+        int track = first;
+        for (int i = 0; i < size; i++) {
+            assertFalse("track " + track + " played twice", seen[track]);
+            seen[track] = true;
+            track = engine.next(track);
+        }
+        assertEquals(first, track);
+
+        seen = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            assertFalse("track " + track + " played twice going back", seen[track]);
+            seen[track] = true;
+            track = engine.previous(track);
+        }
+        assertEquals(first, track);
+    }
+
+    static void checkInverse(PlayOrderEngine engine) {
+        for (int track = 0; track < engine.size(); track++) {
+            assertEquals(track, engine.previous(engine.next(track)));
+            assertEquals(track, engine.next(engine.previous(track)));
+        }
+    }
+
+    static long[] ids(int size) {
+        long[] rslt = new long[size];
+        for (int i = 0; i < size; i++)
+            rslt[i] = 1000 + i * 7L;
+        return rslt;
+    }
+}
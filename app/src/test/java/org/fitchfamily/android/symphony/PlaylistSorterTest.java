@@ -0,0 +1,150 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlaylistSorterTest {
+    private static SortKeys keys() {
+        return new SortKeys(new String[]{"The"}, Locale.ENGLISH);
+    }
+
+    private static SongTable.Builder table() {
+        return new SongTable.Builder(new StringPool());
+    }
+
+    private static String[] titles(SongTable songs, int[] rows) {
+        String[] rslt = new String[rows.length];
+        for (int i = 0; i < rows.length; i++)
+            rslt[i] = songs.getTitle(rows[i]);
+        return rslt;
+    }
+
+    @Test
+    public void radixSortCarriesRows() {
+        long[] keys = {5, 1L << 40, 0, 255, 256, 1L << 40 | 1, 3};
+        int[] rows = {0, 1, 2, 3, 4, 5, 6};
+        PlaylistSorter.radixSort(keys, rows);
+        assertArrayEquals(new long[]{0, 3, 5, 255, 256, 1L << 40, 1L << 40 | 1}, keys);
+        assertArrayEquals(new int[]{2, 6, 0, 3, 4, 1, 5}, rows);
+    }
+
+    @Test
+    public void radixSortIsStable() {
+        long[] keys = {7, 2, 7, 2, 7};
+        int[] rows = {0, 1, 2, 3, 4};
+        PlaylistSorter.radixSort(keys, rows);
+        assertArrayEquals(new long[]{2, 2, 7, 7, 7}, keys);
+        assertArrayEquals(new int[]{1, 3, 0, 2, 4}, rows);
+    }
+
+    @Test
+    public void radixSortMatchesArraysSort() {
+        Random rand = new Random(0x5eed);
+        long[] keys = new long[5000];
+        int[] rows = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rand.nextLong() & Long.MAX_VALUE;
+            rows[i] = i;
+        }
+        long[] original = keys.clone();
+        long[] expected = keys.clone();
+        Arrays.sort(expected);
+        PlaylistSorter.radixSort(keys, rows);
+        assertArrayEquals(expected, keys);
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(keys[i], original[rows[i]]);
+    }
+
+    // Track numbers are signed, the packed key must still put them in numeric order.
+    @Test
+    public void negativeTrackNumbersSortFirst() {
+        SongTable songs = table()
+                .add(1, "max", null, "Album", 10, null, Integer.MAX_VALUE)
+                .add(2, "zero", null, "Album", 10, null, 0)
+                .add(3, "minus one", null, "Album", 10, null, -1)
+                .add(4, "three", null, "Album", 10, null, 3)
+                .add(5, "min", null, "Album", 10, null, Integer.MIN_VALUE)
+                .build();
+        int[] rows = PlaylistSorter.sort(songs, keys());
+        assertArrayEquals(new String[]{"min", "minus one", "zero", "three", "max"}, titles(songs, rows));
+    }
+
+    @Test
+    public void albumsByTitleThenId() {
+        SongTable songs = table()
+                .add(1, "b1", null, "The Bach", 30, null, 1)
+                .add(2, "a2", null, "Albinoni", 20, null, 2)
+                .add(3, "b0", null, "Bach", 5, null, 1)
+                .add(4, "a1", null, "Albinoni", 20, null, 1)
+                .build();
+        int[] rows = PlaylistSorter.sort(songs, keys());
+        assertArrayEquals(new String[]{"a1", "a2", "b0", "b1"}, titles(songs, rows));
+    }
+
+    // Tracks of one album with the same number are put in title order after the radix sort.
+    @Test
+    public void equalTrackNumbersByTitle() {
+        SongTable songs = table()
+                .add(1, "Part 10", null, "Album", 10, null, 2)
+                .add(2, "coda", null, "Album", 10, null, 3)
+                .add(3, "Part 9", null, "Album", 10, null, 2)
+                .add(4, "Overture", null, "Album", 10, null, 1)
+                .add(5, "Aria", null, "Album", 10, null, 2)
+                .add(6, "Bourrée", null, "Album", 10, null, 3)
+                .build();
+        int[] rows = PlaylistSorter.sort(songs, keys());
+        assertArrayEquals(new String[]{"Overture", "Aria", "Part 9", "Part 10", "Bourrée", "coda"},
+                titles(songs, rows));
+    }
+
+    // Enough tracks to take the parallel path where there is more than one core.
+    @Test
+    public void matchesPlayOrderComparator() {
+        Random rand = new Random(0x5eed);
+        SongTable.Builder b = table();
+        for (int i = 0; i < PlaylistSorter.PARALLEL_THRESHOLD + 1000; i++) {
+            int album = rand.nextInt(400);
+            b.add(i, "Title " + rand.nextInt(30), null, "Album " + (album % 250), album, null,
+                    rand.nextInt(20) - 2);
+        }
+        SongTable songs = b.build();
+        SortKeys keys = keys();
+        int[] rows = PlaylistSorter.sort(songs, keys);
+
+        boolean[] seen = new boolean[songs.size()];
+        for (int row : rows)
+            seen[row] = true;
+        for (boolean s : seen)
+            assertTrue(s);
+        SongTable.RowComparator order = keys.playOrder();
+        for (int i = 1; i < rows.length; i++)
+            assertTrue("rows " + rows[i - 1] + ", " + rows[i],
+                    order.compare(songs, rows[i - 1], songs, rows[i]) <= 0);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SequentialOrderTest {
+
+    @Test
+    public void smallLists() {
+        for (int size = 0; size <= 3; size++)
+            PlayOrderChecks.checkAll(new SequentialOrder(size));
+    }
+
+    @Test
+    public void largeList() {
+        PlayOrderChecks.checkAll(new SequentialOrder(100000));
+    }
+
+    @Test
+    public void listOrder() {
+        SequentialOrder order = new SequentialOrder(3);
+        assertEquals(1, order.next(0));
+        assertEquals(2, order.next(1));
+        assertEquals(0, order.next(2));
+        assertEquals(2, order.previous(0));
+        assertEquals(0, order.previous(1));
+        assertEquals(1, order.previous(2));
+    }
+
+    @Test
+    public void outOfRange() {
+        SequentialOrder order = new SequentialOrder(3);
+        assertEquals(0, order.next(-1));
+        assertEquals(0, order.next(3));
+        assertEquals(2, order.previous(-1));
+        assertEquals(2, order.previous(3));
+
+        SequentialOrder empty = new SequentialOrder(0);
+        assertEquals(0, empty.next(0));
+        assertEquals(0, empty.previous(0));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SongBitmapTest {
+    private static final int CHUNK = 65536;
+
+    private static int[] toArray(BitSet set) {
+        return set.stream().toArray();
+    }
+
+    //
+    // A set over a few chunks: each chunk is left empty, sparse (stored as an array)
+    // or dense (stored as a bit map) at random, so and/or meet every pairing.
+    //
+    private static BitSet randomSet(Random rand, int chunks) {
+        BitSet set = new BitSet();
+        for (int c = 0; c < chunks; c++) {
+            int kind = rand.nextInt(3);
+            if (kind == 0)
+                continue;
+            int members = (kind == 1) ? 1 + rand.nextInt(3000) : 5000 + rand.nextInt(40000);
+            for (int i = 0; i < members; i++)
+                set.set(c * CHUNK + rand.nextInt(CHUNK));
+        }
+        return set;
+    }
+
+    private static void check(BitSet expected, SongBitmap actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        assertArrayEquals(toArray(expected), actual.toArray());
+    }
+
+    @Test
+    public void fromSortedKeepsMembers() {
+        int[] ordinals = {0, 1, 1, 65535, 65536, 200000, 200000, Integer.MAX_VALUE};
+        SongBitmap set = SongBitmap.fromSorted(ordinals);
+        assertArrayEquals(new int[]{0, 1, 65535, 65536, 200000, Integer.MAX_VALUE}, set.toArray());
+        assertEquals(6, set.cardinality());
+        assertTrue(set.contains(65535));
+        assertTrue(set.contains(Integer.MAX_VALUE));
+        assertFalse(set.contains(2));
+        assertFalse(set.contains(131072));
+    }
+
+    @Test
+    public void denseChunkIsStillExact() {
+        BitSet expected = new BitSet();
+        for (int i = CHUNK; i < 2 * CHUNK; i += 3)
+            expected.set(i);
+        SongBitmap set = SongBitmap.fromSorted(toArray(expected));
+        check(expected, set);
+        assertTrue(set.contains(CHUNK + 3));
+        assertFalse(set.contains(CHUNK + 4));
+    }
+
+    @Test
+    public void emptySets() {
+        SongBitmap some = SongBitmap.fromSorted(new int[]{3, 70000});
+        assertEquals(0, SongBitmap.EMPTY.cardinality());
+        assertArrayEquals(new int[0], SongBitmap.fromSorted(new int[0]).toArray());
+        assertArrayEquals(some.toArray(), some.or(SongBitmap.EMPTY).toArray());
+        assertArrayEquals(some.toArray(), SongBitmap.EMPTY.or(some).toArray());
+        assertEquals(0, some.and(SongBitmap.EMPTY).cardinality());
+    }
+
+    // Two sparse chunks whose union is too big for an array.
+    @Test
+    public void unionOfArraysBecomesBitmap() {
+        BitSet a = new BitSet();
+        BitSet b = new BitSet();
+        for (int i = 0; i < 4000; i++) {
+            a.set(2 * i);
+            b.set(2 * i + 1);
+        }
+        BitSet union = (BitSet) a.clone();
+        union.or(b);
+        check(union, SongBitmap.fromSorted(toArray(a)).or(SongBitmap.fromSorted(toArray(b))));
+    }
+
+    // Two dense chunks with little in common.
+    @Test
+    public void intersectionOfBitmapsBecomesArray() {
+        BitSet a = new BitSet();
+        BitSet b = new BitSet();
+        for (int i = 0; i < CHUNK; i++) {
+            if (i % 2 == 0)
+                a.set(i);
+            if (i % 7 == 0)
+                b.set(i);
+        }
+        a.clear(0, CHUNK / 2);
+        b.clear(CHUNK / 2 + 100, CHUNK);
+        BitSet common = (BitSet) a.clone();
+        common.and(b);
+        check(common, SongBitmap.fromSorted(toArray(a)).and(SongBitmap.fromSorted(toArray(b))));
+    }
+
+    @Test
+    public void andOrMatchBitSet() {
+        Random rand = new Random(0x5eed);
+        for (int round = 0; round < 40; round++) {
+            BitSet a = randomSet(rand, 4);
+            BitSet b = randomSet(rand, 4);
+            SongBitmap x = SongBitmap.fromSorted(toArray(a));
+            SongBitmap y = SongBitmap.fromSorted(toArray(b));
+            check(a, x);
+
+            BitSet union = (BitSet) a.clone();
+            union.or(b);
+            check(union, x.or(y));
+            check(union, y.or(x));
+
+            BitSet common = (BitSet) a.clone();
+            common.and(b);
+            check(common, x.and(y));
+            check(common, y.and(x));
+        }
+    }
+}
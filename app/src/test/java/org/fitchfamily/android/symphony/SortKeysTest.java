@@ -0,0 +1,87 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SortKeysTest {
+    private static SortKeys keys() {
+        return new SortKeys(new String[]{"The", "A", " "}, Locale.ENGLISH);
+    }
+
+    @Test
+    public void numbersGetTheirLengthInFront() {
+        assertEquals("No. 019", SortKeys.naturalNumbers("No. 9"));
+        assertEquals("No. 0210", SortKeys.naturalNumbers("No. 10"));
+        assertEquals("BWV 0299, Op. 03125", SortKeys.naturalNumbers("BWV 99, Op. 125"));
+        assertEquals("no digits", SortKeys.naturalNumbers("no digits"));
+    }
+
+    @Test
+    public void leadingZerosAreDropped() {
+        assertEquals("Track 017", SortKeys.naturalNumbers("Track 007"));
+        assertEquals("Track 010", SortKeys.naturalNumbers("Track 000"));
+        assertEquals(SortKeys.naturalNumbers("Track 7"), SortKeys.naturalNumbers("Track 0007"));
+    }
+
+    @Test
+    public void shorterNumbersSortFirst() {
+        String[] inOrder = {"No. 2", "No. 9", "No. 10", "No. 99", "No. 100", "No. 1000"};
+        for (int i = 1; i < inOrder.length; i++) {
+            String a = SortKeys.naturalNumbers(inOrder[i - 1]);
+            String b = SortKeys.naturalNumbers(inOrder[i]);
+            assertTrue(a + " before " + b, a.compareTo(b) < 0);
+        }
+    }
+
+    @Test
+    public void titlesCompareNumbersByValue() {
+        SortKeys keys = keys();
+        assertTrue(keys.compareTitles("Symphony No. 9", "Symphony No. 10") < 0);
+        assertTrue(keys.compareTitles("symphony no. 10", "Symphony No. 9") > 0);
+        assertEquals(0, keys.compareTitles(null, ""));
+    }
+
+    @Test
+    public void ignoredPrefixesAreDropped() {
+        SortKeys keys = keys();
+        assertEquals("Planets", keys.sortTitle("The Planets"));
+        assertEquals("Theory", keys.sortTitle("Theory"));
+        assertEquals("Hymn", keys.sortTitle("  a Hymn "));
+        assertEquals("", keys.sortTitle(null));
+        assertTrue(keys.albumKey(1, "The Planets").compareTo(keys.albumKey(2, "Messiah")) > 0);
+        assertTrue(keys.albumKey(3, "A Hymn").compareTo(keys.albumKey(4, "Messiah")) < 0);
+    }
+
+    @Test
+    public void albumKeysAreKeptUntilForgotten() {
+        SortKeys keys = keys();
+        assertTrue(keys.albumKey(1, "Alpha").compareTo(keys.albumKey(2, "Beta")) < 0);
+        // Same id, the cached key is used whatever the title.
+        assertTrue(keys.albumKey(1, "Gamma").compareTo(keys.albumKey(2, "Beta")) < 0);
+        keys.forgetAlbum(1);
+        assertTrue(keys.albumKey(1, "Gamma").compareTo(keys.albumKey(2, "Beta")) > 0);
+    }
+}
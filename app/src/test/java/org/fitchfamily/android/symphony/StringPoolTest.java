@@ -0,0 +1,87 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class StringPoolTest {
+    @Test
+    public void internGivesBackTheString() {
+        StringPool pool = new StringPool();
+        int bach = pool.intern("Bach");
+        int handel = pool.intern("Handel");
+        assertNotEquals(bach, handel);
+        assertEquals("Bach", pool.get(bach));
+        assertEquals("Handel", pool.get(handel));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void repeatsShareAnIndex() {
+        StringPool pool = new StringPool();
+        int first = pool.intern("Bach");
+        pool.intern("Handel");
+        assertEquals(first, pool.intern(new String("Bach")));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void nullIsNone() {
+        StringPool pool = new StringPool();
+        assertEquals(StringPool.NONE, pool.intern(null));
+        assertNull(pool.get(StringPool.NONE));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void indexesSurviveGrowing() {
+        StringPool pool = new StringPool();
+        int[] refs = new int[1000];
+        for (int i = 0; i < refs.length; i++)
+            refs[i] = pool.intern("s" + i);
+        for (int i = 0; i < refs.length; i++) {
+            assertEquals("s" + i, pool.get(refs[i]));
+            assertEquals(refs[i], pool.intern("s" + i));
+        }
+        assertEquals(refs.length, pool.size());
+    }
+
+    @Test
+    public void restoredPoolKeepsIndexes() {
+        StringPool pool = new StringPool();
+        int bach = pool.intern("Bach");
+        int handel = pool.intern("Handel");
+        String[] saved = pool.toArray();
+        assertArrayEquals(new String[]{"Bach", "Handel"}, saved);
+
+        StringPool restored = new StringPool(saved);
+        assertEquals(2, restored.size());
+        assertEquals("Bach", restored.get(bach));
+        assertEquals(handel, restored.intern("Handel"));
+        int telemann = restored.intern("Telemann");
+        assertEquals(2, telemann);
+        assertEquals("Telemann", restored.get(telemann));
+    }
+}
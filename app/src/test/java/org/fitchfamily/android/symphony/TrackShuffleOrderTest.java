@@ -0,0 +1,79 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrackShuffleOrderTest {
+    private static final long SEED = 0x5eed;
+
+    private static TrackShuffleOrder shuffle(int size, long seed) {
+        return new TrackShuffleOrder(new ShuffleOrder(PlayOrderChecks.ids(size), seed));
+    }
+
+    @Test
+    public void smallLists() {
+        for (int size = 0; size <= 3; size++) {
+            for (long seed = 0; seed < 10; seed++)
+                PlayOrderChecks.checkAll(shuffle(size, seed));
+        }
+    }
+
+    @Test
+    public void largeList() {
+        PlayOrderChecks.checkAll(shuffle(100000, SEED));
+    }
+
+    @Test
+    public void spreadList() {
+        int size = 10000;
+        int[] groups = new int[size];
+        for (int i = 0; i < size; i++)
+            groups[i] = (i % 37 == 0) ? StringPool.NONE : i % 11;
+        PlayOrderChecks.checkAll(new TrackShuffleOrder(
+                ShuffleOrder.spread(PlayOrderChecks.ids(size), groups, SEED)));
+    }
+
+    @Test
+    public void followsShuffleOrder() {
+        ShuffleOrder order = new ShuffleOrder(PlayOrderChecks.ids(50), SEED);
+        TrackShuffleOrder engine = new TrackShuffleOrder(order);
+        assertEquals(order.trackAt(0), engine.next(-1));
+        for (int pos = 0; pos < 49; pos++)
+            assertEquals(order.trackAt(pos + 1), engine.next(order.trackAt(pos)));
+        assertEquals(order.trackAt(0), engine.next(order.trackAt(49)));
+    }
+
+    @Test
+    public void outOfRange() {
+        ShuffleOrder order = new ShuffleOrder(PlayOrderChecks.ids(3), SEED);
+        TrackShuffleOrder engine = new TrackShuffleOrder(order);
+        assertEquals(order.trackAt(0), engine.next(3));
+        assertEquals(order.trackAt(2), engine.previous(3));
+        assertEquals(order.trackAt(0), engine.next(-1));
+        assertEquals(order.trackAt(2), engine.previous(-1));
+
+        TrackShuffleOrder empty = shuffle(0, SEED);
+        assertEquals(0, empty.next(0));
+        assertEquals(0, empty.previous(0));
+    }
+}
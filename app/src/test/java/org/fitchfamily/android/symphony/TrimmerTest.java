@@ -0,0 +1,107 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TrimmerTest {
+    private static final int FRAME_BYTES = 4;           // 16 bit stereo
+
+    // A track of the given number of frames, each byte numbered so any slip shows.
+    private static byte[] track(int frames) {
+        byte[] rslt = new byte[frames * FRAME_BYTES];
+        for (int i = 0; i < rslt.length; i++)
+            rslt[i] = (byte) (i * 7 + i / 256);
+        return rslt;
+    }
+
+    // Feed the track to a trimmer in chunks of the given sizes (in frames, repeated) and
+    // return what got to the ring.
+    private static byte[] trim(byte[] track, int skip, int padding, int... chunkFrames) {
+        PcmRing ring = new PcmRing(track.length + 1);
+        Trimmer trimmer = new Trimmer(ring, skip, padding, FRAME_BYTES);
+        int off = 0;
+        for (int i = 0; off < track.length; i++) {
+            int len = Math.min(chunkFrames[i % chunkFrames.length] * FRAME_BYTES, track.length - off);
+            byte[] chunk = Arrays.copyOfRange(track, off, off + len);
+            if (!trimmer.add(chunk, len))
+                throw new AssertionError("ring closed");
+            off += len;
+        }
+        byte[] rslt = new byte[ring.available()];
+        ring.read(rslt, 0, rslt.length);
+        return rslt;
+    }
+
+    private static void check(int frames, int skip, int padding, int... chunkFrames) {
+        byte[] track = track(frames);
+        int from = Math.min(skip, frames) * FRAME_BYTES;
+        int to = Math.max(from, (frames - padding) * FRAME_BYTES);
+        assertArrayEquals(Arrays.copyOfRange(track, from, to), trim(track, skip, padding, chunkFrames));
+    }
+
+    @Test
+    public void nothingToTrim() {
+        check(100, 0, 0, 7);
+        check(100, 0, 0, 100);
+    }
+
+    @Test
+    public void delayAcrossChunks() {
+        check(1000, 529, 0, 100);       // Ends part way through a chunk
+        check(1000, 500, 0, 100);       // Ends on a chunk boundary
+        check(1000, 529, 0, 1, 3, 250);
+    }
+
+    @Test
+    public void paddingAcrossChunks() {
+        check(1000, 0, 288, 100);       // Bigger than a chunk
+        check(1000, 0, 288, 1000);      // All in one chunk
+        check(1000, 0, 50, 100, 7, 1);  // Smaller than some chunks, bigger than others
+        check(1000, 0, 300, 100);       // On a chunk boundary
+    }
+
+    @Test
+    public void delayAndPadding() {
+        check(4608, 1105, 1152, 1152);  // Typical MP3 frames
+        check(4608, 1105, 1152, 1024, 17, 333);
+        check(2048, 2112, 0, 1024);     // AAC with all of it delay
+    }
+
+    @Test
+    public void shorterThanDelayAndPadding() {
+        check(100, 60, 60, 30);
+        check(100, 0, 200, 30);
+        check(100, 200, 0, 30);
+    }
+
+    @Test
+    public void closedRing() {
+        PcmRing ring = new PcmRing(1024);
+        Trimmer trimmer = new Trimmer(ring, 0, 0, FRAME_BYTES);
+        ring.close();
+        assertFalse(trimmer.add(track(10), 10 * FRAME_BYTES));
+    }
+}
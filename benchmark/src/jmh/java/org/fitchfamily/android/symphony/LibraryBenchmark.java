@@ -0,0 +1,93 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.List;
+
+//
+// Building a genre's play list: sorting it into play order, making the album
+// index and the album title sort keys.
+//
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class LibraryBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private SongTable library;          // Media store order
+    private SongTable sorted;           // Play order
+    private SortKeys warmKeys;          // Album keys already made
+    private String[] albumTitles;
+
+    @Setup
+    public void setup() {
+        library = SyntheticLibrary.build(tracks);
+        warmKeys = SyntheticLibrary.sortKeys();
+        sorted = library.select(PlaylistSorter.sort(library, warmKeys));
+        albumTitles = new String[library.size()];
+        for (int i = 0; i < albumTitles.length; i++)
+            albumTitles[i] = library.getAlbum(i);
+    }
+
+    // Sort as done when a genre is first loaded, album keys not yet made.
+    @Benchmark
+    public int[] sortCold() {
+        return PlaylistSorter.sort(library, SyntheticLibrary.sortKeys());
+    }
+
+    // Sort again with the album keys cached, as on a library change.
+    @Benchmark
+    public int[] sortWarm() {
+        return PlaylistSorter.sort(library, warmKeys);
+    }
+
+    // The play order comparator, used when merging tables. A comparison sort
+    // with it is what PlaylistSorter replaces.
+    @Benchmark
+    public Integer[] sortComparator() {
+        final SongTable.RowComparator order = warmKeys.playOrder();
+        Integer[] rows = new Integer[library.size()];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = i;
+        Arrays.sort(rows, (a, b) -> order.compare(library, a, library, b));
+        return rows;
+    }
+
+    @Benchmark
+    public List<Album> albumIndexes() {
+        return Album.getAlbumIndexes(sorted);
+    }
+
+    @Benchmark
+    public void sortTitle(Blackhole bh) {
+        for (String title : albumTitles)
+            bh.consume(warmKeys.sortTitle(title));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+//
+// Making shuffle orders and moving through them.
+//
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class PlayOrderBenchmark {
+    private static final int STEPS = 1000;
+
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private SongTable songs;
+    private long[] ids;
+    private int[] groups;
+    private ShuffleOrder songOrder;
+    private PlayOrderEngine trackEngine;
+    private PlayOrderEngine albumEngine;
+    private long seed;
+
+    @Setup
+    public void setup() {
+        SongTable library = SyntheticLibrary.build(tracks);
+        songs = library.select(PlaylistSorter.sort(library, SyntheticLibrary.sortKeys()));
+        ids = songs.idColumn();
+        groups = new int[songs.size()];
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = ShuffleOrder.artistGroup(songs, i);
+
+        songOrder = new ShuffleOrder(ids, 1);
+        songOrder.trackAt(0);
+        trackEngine = new TrackShuffleOrder(songOrder);
+
+        int[] trackToAlbum = new int[songs.size()];
+        List<Album> albums = Album.getAlbumIndexes(songs, trackToAlbum);
+        long[] albumIds = new long[albums.size()];
+        int[] firstTrack = new int[albums.size()];
+        int[] lastTrack = new int[albums.size()];
+        for (int i = 0; i < albumIds.length; i++) {
+            albumIds[i] = albums.get(i).getID();
+            firstTrack[i] = albums.get(i).getTrack();
+            lastTrack[i] = albums.get(i).getLastTrackIndex();
+        }
+        albumEngine = new AlbumShuffleOrder(new ShuffleOrder(albumIds, 1), trackToAlbum,
+                firstTrack, lastTrack);
+    }
+
+    // New shuffle order, as on a genre or mode change.
+    @Benchmark
+    public int genPlayOrder() {
+        ShuffleOrder order = new ShuffleOrder(ids, seed++);
+        return order.trackAt(0);
+    }
+
+    @Benchmark
+    public int genSmartPlayOrder() {
+        ShuffleOrder order = ShuffleOrder.spread(ids, groups, seed++);
+        return order.trackAt(0);
+    }
+
+    // Finding where the user's choice of track is in the shuffle order.
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public int shufflePosition() {
+        int rslt = 0;
+        int track = (int) (seed++ % tracks);
+        for (int i = 0; i < STEPS; i++) {
+            rslt += songOrder.positionOf(track);
+            track += 7919;
+            if (track >= tracks)
+                track -= tracks;
+        }
+        return rslt;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public int nextTrackShuffle() {
+        int track = 0;
+        for (int i = 0; i < STEPS; i++)
+            track = trackEngine.next(track);
+        return track;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public int nextAlbumShuffle() {
+        int track = 0;
+        for (int i = 0; i < STEPS; i++)
+            track = albumEngine.next(track);
+        return track;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public int previousTrackShuffle() {
+        int track = 0;
+        for (int i = 0; i < STEPS; i++)
+            track = trackEngine.previous(track);
+        return track;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+import java.util.Locale;
+import java.util.Random;
+
+//
+// Made up libraries for the benchmarks. The same size always gives the same
+// library. Albums have 1 to 20 tracks and album titles mix ignored prefixes,
+// numbers and case the way real collections do. Rows are in media store
+// order (by id), not play order.
+//
+final class SyntheticLibrary {
+    static final String[] IGNORE_PREFIXES = {"The", "A", "An"};
+
+    private static final String[] PREFIXES = {"", "", "", "The ", "A ", "the "};
+    private static final String[] WORDS = {
+            "Symphony", "Concerto", "Sonata", "Quartet", "Nocturne", "Etude", "Suite",
+            "Requiem", "Overture", "Prelude", "Fugue", "Serenade", "Variations", "Mass"
+    };
+
+    private SyntheticLibrary() {
+    }
+
+    static SongTable build(int tracks) {
+        Random rand = new Random(tracks);
+        StringPool strings = new StringPool();
+        SongTable.Builder b = new SongTable.Builder(strings, tracks);
+        int artists = Math.max(1, tracks / 50);
+        long albumId = 0;
+        int row = 0;
+        while (row < tracks) {
+            albumId += 1 + rand.nextInt(3);
+            String album = PREFIXES[rand.nextInt(PREFIXES.length)] +
+                    WORDS[rand.nextInt(WORDS.length)] + " No. " + (1 + rand.nextInt(120));
+            String artist = "Artist " + rand.nextInt(artists);
+            String composer = (rand.nextInt(4) == 0) ? null : "Composer " + rand.nextInt(artists);
+            int albumTracks = Math.min(tracks - row, 1 + rand.nextInt(20));
+            for (int t = 1; t <= albumTracks; t++) {
+                b.add(row * 7L + 1, WORDS[rand.nextInt(WORDS.length)] + " " + t,
+                        artist, album, albumId, composer, t);
+                row++;
+            }
+        }
+        return b.build();
+    }
+
+    static SortKeys sortKeys() {
+        return new SortKeys(IGNORE_PREFIXES, Locale.ENGLISH);
+    }
+}
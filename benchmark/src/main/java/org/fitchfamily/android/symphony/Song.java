@@ -0,0 +1,38 @@
+/*
+ *    Symphony
+ *
+ *    Copyright (C) 2019 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.fitchfamily.android.symphony;
+
+//
+// Stand in for the app's Song, which needs Android to load artwork. SongTable
+// hands out Songs but nothing benchmarked asks for one.
+//
+public class Song {
+    private final SongTable songs;
+    private final int row;
+
+    Song(SongTable songs, int row) {
+        this.songs = songs;
+        this.row = row;
+    }
+
+    public long getID() {
+        return songs.getId(row);
+    }
+}